@@ -1,7 +1,6 @@
 package com.sleepchaos;
 
 import android.content.Context;
-import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.net.Uri;
@@ -10,252 +9,345 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.util.Random;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Renders a chaos mix of one source to a WAV file in Music/SleepChaos, using the same
+ * {@link ChaosSchedule} as layered playback.
+ *
+ * Long exports checkpoint roughly once per minute of audio: the WAV is flushed with a header
+ * that covers it, then an {@link ExportJournal} records the schedule, source position and
+ * output length. If the process dies, {@link #resumeExport} truncates the file back to the last
+ * checkpoint and keeps appending from there. Any other failure deletes the journal and the
+ * output, since resuming would only fail the same way.
+ *
+ * With a part length set, the timeline is written as numbered files of that length instead. A
+ * finished part is flushed and closed on a separate thread while the next one renders.
+ *
+ * Everything renders on the calling thread; {@link ExportService} runs jobs on its worker pool.
+ */
 public class AudioExporter {
 
     private static final String TAG = "AudioExporter";
-    private static final int SAMPLE_RATE = 44100;
-    private static final int CHANNELS = 2;
-    private static final int BIT_DEPTH = 16;
+    private static final int BLOCK_FRAMES = 4096;
+    private static final long CHECKPOINT_FRAMES = 60L * PcmSource.SAMPLE_RATE;
+    // A decoder that produces nothing for this many consecutive blocks is treated as dead
+    private static final int MAX_STALLS = 100;
 
-    public interface ExportCallback {
-        void onSuccess(String path);
-        void onError(String error);
+    /** Whole-percent progress, reported on the render thread whenever it changes. */
+    public interface ProgressListener {
+        void onProgress(int percent);
     }
 
-    public static void exportChaosAudio(Context context, Uri sourceUri, int durationMins, 
-                                        int minPlaySec, int maxPlaySec, 
-                                        int minPauseSec, int maxPauseSec,
-                                        float minVol, float maxVol, int volFreq,
-                                        ExportCallback callback) {
-        new Thread(() -> {
-            MediaExtractor extractor = new MediaExtractor();
-            MediaCodec decoder = null;
-            RandomAccessFile raf = null;
+    /** One output of a batch render: its own parameters and seed. */
+    public static class Variant {
+        public final ChaosParams params;
+        public final long seed;
 
-            try {
-                // 1. Setup Source
-                extractor.setDataSource(context, sourceUri, null);
-                int trackIndex = selectAudioTrack(extractor);
-                if (trackIndex < 0) {
-                    callback.onError("No audio track found in file");
-                    return;
-                }
-                extractor.selectTrack(trackIndex);
-                MediaFormat format = extractor.getTrackFormat(trackIndex);
-                String mime = format.getString(MediaFormat.KEY_MIME);
-
-                // 2. Setup Decoder
-                decoder = MediaCodec.createDecoderByType(mime);
-                decoder.configure(format, null, null, 0);
-                decoder.start();
+        public Variant(ChaosParams params, long seed) {
+            this.params = params;
+            this.seed = seed;
+        }
+    }
 
-                // 3. Setup Output File (WAV)
-                File musicDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC);
-                File appDir = new File(musicDir, "SleepChaos");
-                if (!appDir.exists()) appDir.mkdirs();
-                File outFile = new File(appDir, "chaos_mix_" + System.currentTimeMillis() + ".wav");
-                raf = new RandomAccessFile(outFile, "rw");
+    /**
+     * Renders a single export into {@code output} on the calling thread and returns the paths of
+     * its files. {@code partMins} > 0 splits the export into files of that many minutes. If
+     * an earlier run into the same output left a journal, rendering continues from it.
+     */
+    public static List<String> export(Context context, Uri sourceUri, File output, int durationMins,
+                                      ChaosParams params, int partMins, DecoderPool decoders,
+                                      ProgressListener progress) throws IOException {
+        ExportJournal journal = ExportJournal.findFor(context, output);
+        if (journal != null) return render(context, journal, true, decoders, progress);
+        long totalFrames = durationMins * 60L * PcmSource.SAMPLE_RATE;
+        long partFrames = partMins > 0 && partMins < durationMins ? partMins * 60L * PcmSource.SAMPLE_RATE : 0;
+        journal = new ExportJournal(context, sourceUri, output, params, System.nanoTime(), totalFrames, partFrames);
+        return render(context, journal, false, decoders, progress);
+    }
 
-                writeWavHeader(raf, 0, SAMPLE_RATE, CHANNELS, BIT_DEPTH);
+    /**
+     * Renders several variants of one source from a single decode pass, on the calling thread,
+     * into {@code outputs} (one per variant). Every variant's schedule is applied to the same
+     * timeline-locked stream (see {@link ChaosSchedule#apply}), so the source keeps playing
+     * through silences instead of pausing as in a single export, and K variants cost one decode
+     * plus K gain passes and writes. {@code loopSeed} picks the loop start points. On failure
+     * every output is deleted, finished or not.
+     */
+    public static List<String> exportVariants(Context context, Uri sourceUri, List<File> outputs, int durationMins,
+                                              List<Variant> variants, long loopSeed, DecoderPool decoders,
+                                              ProgressListener progress) throws IOException {
+        PcmSource source = null;
+        List<WavWriter> writers = new ArrayList<>();
+        boolean done = false;
+        try {
+            List<ChaosSchedule> schedules = new ArrayList<>();
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; i < variants.size(); i++) {
+                Variant v = variants.get(i);
+                File outFile = outputs.get(i);
+                writers.add(WavWriter.create(outFile, BLOCK_FRAMES));
+                schedules.add(new ChaosSchedule(v.params, v.seed));
+                paths.add(outFile.getAbsolutePath());
+            }
+            source = openSource(context, sourceUri, new SeededRandom(loopSeed), true, 0, decoders);
 
-                // 4. Processing Loop
-                long totalBytesWritten = 0;
-                long targetDurationBytes = (long) durationMins * 60 * SAMPLE_RATE * CHANNELS * (BIT_DEPTH / 8);
-                
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                boolean inputDone = false;
-                boolean outputDone = false;
-                Random random = new Random();
+            short[] decoded = new short[BLOCK_FRAMES * PcmSource.CHANNELS];
+            short[] block = new short[decoded.length];
+            long totalFrames = durationMins * 60L * PcmSource.SAMPLE_RATE;
+            long frames = 0;
+            long decodeNanos = 0;
+            long renderNanos = 0;
+            int stalls = 0;
+            int percent = -1;
+            while (frames < totalFrames) {
+                checkInterrupted();
+                int want = (int) Math.min(BLOCK_FRAMES, totalFrames - frames);
+                long t0 = System.nanoTime();
+                int n = source.read(decoded, 0, want);
+                long t1 = System.nanoTime();
+                decodeNanos += t1 - t0;
+                if (n < 0) throw new IOException("Source ended");
+                if (n == 0) {
+                    if (++stalls > MAX_STALLS) throw new IOException("Decoder stopped producing audio");
+                    continue;
+                }
+                stalls = 0;
+                for (int i = 0; i < schedules.size(); i++) {
+                    System.arraycopy(decoded, 0, block, 0, n * PcmSource.CHANNELS);
+                    ChaosTrace.begin("export.gain");
+                    try {
+                        schedules.get(i).apply(block, 0, n);
+                    } finally {
+                        ChaosTrace.end();
+                    }
+                    ChaosTrace.begin("export.write");
+                    try {
+                        writers.get(i).write(block, n);
+                    } finally {
+                        ChaosTrace.end();
+                    }
+                }
+                renderNanos += System.nanoTime() - t1;
+                frames += n;
+                int p = (int) (frames * 100 / totalFrames);
+                if (p != percent) progress.onProgress(percent = p);
+            }
 
-                // State Machine for Chaos Play/Pause
-                boolean isPlaying = true;
-                long stateEndTimeBytes = 0;
-                long initialDuration = (minPlaySec + random.nextInt(maxPlaySec - minPlaySec + 1)) * 1000L;
-                long currentSegmentBytes = msToBytes(initialDuration);
-                stateEndTimeBytes = currentSegmentBytes;
+            for (WavWriter w : writers) w.finish();
+            writers.clear();
+            Log.i(TAG, String.format(Locale.US, "%d variants of %d min: decode %d ms, render+write %d ms",
+                    variants.size(), durationMins, decodeNanos / 1_000_000, renderNanos / 1_000_000));
+            done = true;
+            return paths;
+        } finally {
+            for (WavWriter w : writers) w.close();
+            if (source != null) source.release();
+            if (!done) {
+                for (File f : outputs) f.delete();
+            }
+        }
+    }
 
-                // State Machine for Volume Drift
-                float currentVolume = (minVol + maxVol) / 2;
-                float targetVolume = currentVolume;
-                long volumeDriftBytesRemaining = 0;
-                float volumeStepPerByte = 0;
+    /** Continues an export found by {@link ExportJournal#findInterrupted} into the same file, on the calling thread. */
+    public static List<String> resumeExport(Context context, ExportJournal journal, DecoderPool decoders,
+                                            ProgressListener progress) throws IOException {
+        return render(context, journal, true, decoders, progress);
+    }
 
-                while (!outputDone && totalBytesWritten < targetDurationBytes) {
-                    
-                    // State Management (Play vs Pause)
-                    if (totalBytesWritten >= stateEndTimeBytes) {
-                        isPlaying = !isPlaying; // Toggle Play/Pause
-                        long nextDurationMs;
-                        if (isPlaying) {
-                            nextDurationMs = (minPlaySec + random.nextInt(maxPlaySec - minPlaySec + 1)) * 1000L;
-                        } else {
-                            nextDurationMs = (minPauseSec + random.nextInt(maxPauseSec - minPauseSec + 1)) * 1000L;
-                        }
-                        stateEndTimeBytes += msToBytes(nextDurationMs);
-                    }
+    private static List<String> render(Context context, ExportJournal journal, boolean resume,
+                                       DecoderPool decoders, ProgressListener progress) throws IOException {
+        if (!journal.tryLock()) throw new IOException("Already exporting " + journal.output.getName());
+        try {
+            return renderLocked(context, journal, resume, decoders, progress);
+        } catch (IOException | RuntimeException e) {
+            if (!isInterruption(e)) journal.deleteWithOutputs();
+            throw e;
+        } finally {
+            journal.unlock();
+        }
+    }
 
-                    if (!isPlaying) {
-                        // PAUSE STATE
-                        int silenceChunk = 4096;
-                        byte[] silence = new byte[silenceChunk];
-                        raf.write(silence);
-                        totalBytesWritten += silenceChunk;
-                    } else {
-                        // PLAY STATE
-                        if (!inputDone) {
-                            int inputIndex = decoder.dequeueInputBuffer(10000);
-                            if (inputIndex >= 0) {
-                                ByteBuffer inputBuffer = decoder.getInputBuffer(inputIndex);
-                                int sampleSize = extractor.readSampleData(inputBuffer, 0);
-                                if (sampleSize < 0) {
-                                    extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                                    sampleSize = extractor.readSampleData(inputBuffer, 0);
-                                    if (sampleSize < 0) {
-                                        inputDone = true;
-                                        decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                    } else {
-                                        decoder.queueInputBuffer(inputIndex, 0, sampleSize, extractor.getSampleTime(), 0);
-                                        extractor.advance();
-                                    }
-                                } else {
-                                    decoder.queueInputBuffer(inputIndex, 0, sampleSize, extractor.getSampleTime(), 0);
-                                    extractor.advance();
-                                }
-                            }
-                        }
+    // Cut off with its thread, as when the export service stops; the journal is still good
+    private static boolean isInterruption(Exception e) {
+        return Thread.currentThread().isInterrupted() || e instanceof InterruptedIOException
+                || e instanceof ClosedByInterruptException;
+    }
 
-                        int outputIndex = decoder.dequeueOutputBuffer(info, 10000);
-                        if (outputIndex >= 0) {
-                            ByteBuffer outputBuffer = decoder.getOutputBuffer(outputIndex);
-                            byte[] chunk = new byte[info.size];
-                            outputBuffer.get(chunk);
-                            outputBuffer.clear();
+    // shutdownNow only interrupts the worker; decoding and buffered writes never look at the flag
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Export stopped");
+    }
 
-                            // Volume Drift Logic
-                            if (volumeDriftBytesRemaining <= 0) {
-                                // Pick new target volume and duration based on freq
-                                float range = maxVol - minVol;
-                                targetVolume = minVol + (random.nextFloat() * range);
-                                
-                                int baseDelay = 30000 - ((volFreq - 1) * 3000);
-                                if (baseDelay < 2000) baseDelay = 2000;
-                                int variance = baseDelay / 2;
-                                int driftDurationMs = baseDelay / 2 + random.nextInt(variance);
-                                
-                                volumeDriftBytesRemaining = msToBytes(driftDurationMs);
-                                float volDiff = targetVolume - currentVolume;
-                                volumeStepPerByte = volDiff / volumeDriftBytesRemaining;
-                            }
+    private static List<String> renderLocked(Context context, ExportJournal journal, boolean resume,
+                                             DecoderPool decoders, ProgressListener progress) throws IOException {
+        ChaosSchedule schedule = new ChaosSchedule(journal.params, journal.seed);
+        SeededRandom loopRandom = new SeededRandom(journal.seed ^ 0x5DEECE66DL);
+        PcmSource source = null;
+        WavWriter writer = null;
+        // Finished parts are flushed here while the next part renders
+        ExecutorService finisher = null;
+        List<Future<?>> finishing = new ArrayList<>();
+        try {
+            // Generator state is not journaled; a freshly seeded stream is indistinguishable by ear
+            source = openSource(context, journal.sourceUri, loopRandom, true, resume ? journal.framesDone : 0, decoders);
+            if (resume && source instanceof DecodedSource) {
+                loopRandom.setState(journal.loopRandomState);
+                ((DecodedSource) source).seekExact(journal.sourcePositionUs);
+            }
 
-                            // Apply volume with interpolation
-                            chunk = adjustVolumeSmooth(chunk, currentVolume, volumeStepPerByte);
-                            
-                            // Update volume state
-                            currentVolume += (volumeStepPerByte * chunk.length);
-                            volumeDriftBytesRemaining -= chunk.length;
-                            
-                            // Clamp
-                            if (currentVolume > 1.0f) currentVolume = 1.0f;
-                            if (currentVolume < 0.0f) currentVolume = 0.0f;
+            if (resume) {
+                journal.restoreSchedule(schedule);
+                writer = WavWriter.openForAppend(journal.getCurrentOutput(), journal.dataBytes, BLOCK_FRAMES);
+                Log.i(TAG, "Resuming " + journal.getCurrentOutput().getName() + " at "
+                        + journal.framesDone / PcmSource.SAMPLE_RATE + " s");
+            } else {
+                writer = WavWriter.create(journal.getCurrentOutput(), BLOCK_FRAMES);
+                checkpoint(journal, writer, schedule, source, loopRandom, finishing);
+            }
+            if (journal.partFrames > 0) finisher = Executors.newSingleThreadExecutor();
 
-                            raf.write(chunk);
-                            totalBytesWritten += chunk.length;
-                            decoder.releaseOutputBuffer(outputIndex, false);
-                        }
-                    }
+            short[] block = new short[BLOCK_FRAMES * PcmSource.CHANNELS];
+            long nextCheckpoint = journal.framesDone + CHECKPOINT_FRAMES;
+            long frames = journal.framesDone;
+            int stalls = 0;
+            int percent = -1;
+            while (frames < journal.totalFrames) {
+                checkInterrupted();
+                int want = (int) Math.min(BLOCK_FRAMES, journal.totalFrames - frames);
+                if (journal.partFrames > 0) {
+                    // Blocks never straddle a part boundary
+                    want = (int) Math.min(want, journal.partFrames - frames % journal.partFrames);
                 }
+                // Split into ChaosSchedule.read (with DecodedSource.dequeue inside it) and ChaosSchedule.gain
+                ChaosTrace.begin("export.render");
+                int n;
+                try {
+                    n = schedule.render(source, block, 0, want);
+                } finally {
+                    ChaosTrace.end();
+                }
+                if (n == 0) {
+                    if (++stalls > MAX_STALLS) throw new IOException("Decoder stopped producing audio");
+                    continue;
+                }
+                stalls = 0;
+                ChaosTrace.begin("export.write");
+                try {
+                    writer.write(block, n);
+                } finally {
+                    ChaosTrace.end();
+                }
+                frames += n;
+                int p = (int) (frames * 100 / journal.totalFrames);
+                if (p != percent) {
+                    progress.onProgress(percent = p);
+                    ChaosTrace.counter("export.percent", p);
+                }
+                if (journal.partFrames > 0 && frames % journal.partFrames == 0 && frames < journal.totalFrames) {
+                    WavWriter done = writer;
+                    writer = null;
+                    finishing.add(finisher.submit(() -> {
+                        done.finish();
+                        return null;
+                    }));
+                    writer = WavWriter.create(journal.getOutputFor(frames), BLOCK_FRAMES);
+                }
+                if (frames >= nextCheckpoint) {
+                    journal.framesDone = frames;
+                    checkpoint(journal, writer, schedule, source, loopRandom, finishing);
+                    nextCheckpoint = frames + CHECKPOINT_FRAMES;
+                }
+            }
 
-                // 5. Finalize
-                raf.seek(0);
-                writeWavHeader(raf, totalBytesWritten, SAMPLE_RATE, CHANNELS, BIT_DEPTH);
-                
-                extractor.release();
-                decoder.stop();
-                decoder.release();
-                raf.close();
-
-                callback.onSuccess(outFile.getAbsolutePath());
+            writer.finish();
+            writer = null;
+            awaitFinished(finishing);
+            journal.delete();
+            List<String> paths = new ArrayList<>();
+            for (File f : journal.getOutputs()) paths.add(f.getAbsolutePath());
+            return paths;
+        } finally {
+            if (writer != null) writer.close();
+            if (finisher != null) finisher.shutdown();
+            if (source != null) source.release();
+        }
+    }
 
-            } catch (Exception e) {
-                Log.e(TAG, "Export failed", e);
-                callback.onError(e.getMessage());
-            } finally {
-               try { if (raf != null) raf.close(); } catch (IOException e) {}
-            }
-        }).start();
+    /**
+     * The looping source an export renders from. Decoded files start, and restart at each loop,
+     * at random sync points once a {@link SeekIndex} exists; {@code waitForIndex} builds it first.
+     */
+    static PcmSource openSource(Context context, Uri uri, SeededRandom loopRandom, boolean waitForIndex,
+                                long noiseReseed) throws IOException {
+        return openSource(context, uri, loopRandom, waitForIndex, noiseReseed, null);
     }
 
-    private static int selectAudioTrack(MediaExtractor extractor) {
-        for (int i = 0; i < extractor.getTrackCount(); i++) {
-            MediaFormat format = extractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            if (mime.startsWith("audio/")) return i;
+    /** As above, with the decoder taken from and returned to {@code decoders} if not null. */
+    static PcmSource openSource(Context context, Uri uri, SeededRandom loopRandom, boolean waitForIndex,
+                                long noiseReseed, DecoderPool decoders) throws IOException {
+        if (NoiseGenerator.isNoiseUri(uri)) return NoiseGenerator.fromUri(uri, noiseReseed);
+        DecodedSource decoded = new DecodedSource(context, uri, decoders);
+        SeekIndex.Cache cache = SeekIndex.Cache.getInstance(context);
+        SeekIndex seekIndex = waitForIndex ? cache.get(uri) : cache.peek(uri);
+        if (seekIndex != null) {
+            decoded.setLoopStarts(seekIndex, loopRandom);
+            decoded.seekTo(seekIndex.pickStartUs(loopRandom));
         }
-        return -1;
+        return decoded;
     }
 
-    private static long msToBytes(long ms) {
-        return (ms * SAMPLE_RATE * CHANNELS * 2) / 1000;
+    private static void checkpoint(ExportJournal journal, WavWriter writer, ChaosSchedule schedule,
+                                   PcmSource source, SeededRandom loopRandom, List<Future<?>> finishing)
+            throws IOException {
+        // Audio and header first: the journal must never claim more than is on disk
+        awaitFinished(finishing);
+        journal.dataBytes = writer.checkpoint();
+        journal.setScheduleState(schedule);
+        if (source instanceof DecodedSource) {
+            DecodedSource decoded = (DecodedSource) source;
+            journal.sourcePositionUs = decoded.getPositionUs();
+            // The state at the written frame, not after restarts the decoder has only read ahead to
+            journal.loopRandomState = decoded.getLoopStateAtPosition();
+        } else {
+            journal.loopRandomState = loopRandom.getState();
+        }
+        journal.save();
     }
 
-    // Process chunk while interpolating volume to avoid steps/clicks
-    private static byte[] adjustVolumeSmooth(byte[] pcmData, float startVolume, float stepPerByte) {
-        byte[] adjusted = new byte[pcmData.length];
-        float currentVol = startVolume;
-        
-        // 16-bit PCM processing
-        for (int i = 0; i < pcmData.length; i += 2) {
-            short sample = (short) ((pcmData[i] & 0xFF) | (pcmData[i + 1] << 8));
-            
-            // Linear to Log approximation for better perception? 
-            // Standard AudioTrack uses linear, but perception is log. 
-            // We apply linear here for simplicity in raw PCM math, matching "setVolume".
-            // To match Service "setLogarithmicVolume", we should square it.
-            float logVol = currentVol * currentVol;
-            
-            sample = (short) (sample * logVol);
-            adjusted[i] = (byte) (sample & 0xFF);
-            adjusted[i + 1] = (byte) ((sample >> 8) & 0xFF);
-            
-            currentVol += (stepPerByte * 2); 
+    private static void awaitFinished(List<Future<?>> finishing) throws IOException {
+        try {
+            for (Future<?> f : finishing) f.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Could not finish export part", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finishing export parts", e);
         }
-        return adjusted;
+        finishing.clear();
+    }
+
+    static File getOutputDir() {
+        File musicDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC);
+        File appDir = new File(musicDir, "SleepChaos");
+        if (!appDir.exists()) appDir.mkdirs();
+        return appDir;
     }
 
-    private static void writeWavHeader(RandomAccessFile out, long totalAudioLen, long longSampleRate, int channels, long byteRate) throws IOException {
-        long totalDataLen = totalAudioLen + 36;
-        long bitrate = longSampleRate * channels * byteRate / 8;
-        
-        byte[] header = new byte[44];
-        header[0] = 'R'; header[1] = 'I'; header[2] = 'F'; header[3] = 'F';
-        header[4] = (byte) (totalDataLen & 0xff);
-        header[5] = (byte) ((totalDataLen >> 8) & 0xff);
-        header[6] = (byte) ((totalDataLen >> 16) & 0xff);
-        header[7] = (byte) ((totalDataLen >> 24) & 0xff);
-        header[8] = 'W'; header[9] = 'A'; header[10] = 'V'; header[11] = 'E';
-        header[12] = 'f'; header[13] = 'm'; header[14] = 't'; header[15] = ' ';
-        header[16] = 16; header[17] = 0; header[18] = 0; header[19] = 0;
-        header[20] = 1; header[21] = 0;
-        header[22] = (byte) channels; header[23] = 0;
-        header[24] = (byte) (longSampleRate & 0xff);
-        header[25] = (byte) ((longSampleRate >> 8) & 0xff);
-        header[26] = (byte) ((longSampleRate >> 16) & 0xff);
-        header[27] = (byte) ((longSampleRate >> 24) & 0xff);
-        header[28] = (byte) (bitrate & 0xff);
-        header[29] = (byte) ((bitrate >> 8) & 0xff);
-        header[30] = (byte) ((bitrate >> 16) & 0xff);
-        header[31] = (byte) ((bitrate >> 24) & 0xff);
-        header[32] = (byte) (channels * 16 / 8); header[33] = 0;
-        header[34] = 16; header[35] = 0;
-        header[36] = 'd'; header[37] = 'a'; header[38] = 't'; header[39] = 'a';
-        header[40] = (byte) (totalAudioLen & 0xff);
-        header[41] = (byte) ((totalAudioLen >> 8) & 0xff);
-        header[42] = (byte) ((totalAudioLen >> 16) & 0xff);
-        header[43] = (byte) ((totalAudioLen >> 24) & 0xff);
-        out.write(header, 0, 44);
+    static int selectAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime.startsWith("audio/")) return i;
+        }
+        return -1;
     }
-}
\ No newline at end of file
+}
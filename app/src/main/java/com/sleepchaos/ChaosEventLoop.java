@@ -0,0 +1,283 @@
+package com.sleepchaos;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One owner thread for a state machine. Inputs are queued from any thread on a lock-free queue
+ * and applied one at a time on the owner thread, so the state they touch has a single writer and
+ * needs no locks. Timers are inputs too: delayed posts come back through the same queue.
+ *
+ * Every dispatched event, timers included, is kept in a trace stamped with the time it ran at;
+ * {@link #beginTrace} starts it over. A loop made with {@link #forReplay} feeds such a trace to a
+ * fresh machine with {@link #now} pinned to the recorded times and no real timers, which
+ * reproduces the original run as long as the machine reads time only through {@link #now} and
+ * seeds its randomness from its events. The trace is bounded: once it has wrapped, it is still
+ * good for reading but no longer replays from the start.
+ *
+ * A replay loop keeps its Runnable timers in due order, so {@link #runNextTimer} can also drive
+ * a machine on a virtual clock without a thread, as the unit tests record their traces.
+ */
+public class ChaosEventLoop {
+
+    private static final String TAG = "ChaosEventLoop";
+    private static final int TRACE_CAPACITY = 8192;
+    // Runnables posted with postDelayed(Runnable, long); run by the loop itself
+    private static final int TIMER = -1;
+
+    /** Applies events; only ever called on the owner thread. */
+    public interface Machine {
+        void onEvent(Event event);
+    }
+
+    public static final class Event {
+        public final int what;
+        public final long arg;
+        public final Object obj;
+        long postedAt;
+        long at;
+
+        Event(int what, long arg, Object obj) {
+            this.what = what;
+            this.arg = arg;
+            this.obj = obj;
+        }
+
+        /** Uptime at which the event was dispatched. */
+        public long getTime() {
+            return at;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d %d %d%s", at, what, arg, obj != null ? " " + obj : "");
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainPosted = new AtomicBoolean();
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Machine machine;
+    private final boolean replaying;
+
+    // Owner thread only from here on
+    private final Map<Long, Runnable> timers = new HashMap<>();
+    // Replay loops only: pending Runnable timers, earliest first
+    private final PriorityQueue<Event> replayTimers = new PriorityQueue<>((a, b) ->
+            a.postedAt != b.postedAt ? Long.compare(a.postedAt, b.postedAt) : Long.compare(a.arg, b.arg));
+    private long nextTimerId;
+    private final Event[] trace = new Event[TRACE_CAPACITY];
+    private int traceNext;
+    private int traceSize;
+    private long dispatched;
+    private boolean dispatching;
+    private long eventTime;
+
+    private long maxQueuedMs;
+    private long maxHandleMs;
+
+    public ChaosEventLoop(String name, Machine machine) {
+        this.machine = machine;
+        this.replaying = false;
+        thread = new HandlerThread(name);
+        thread.start();
+        handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                // Due timer: already on the owner thread, so straight into the queue and out again
+                queue.offer((Event) msg.obj);
+                drain();
+            }
+        };
+    }
+
+    private ChaosEventLoop() {
+        machine = null;
+        replaying = true;
+        thread = null;
+        handler = null;
+    }
+
+    /** A loop without a thread, for {@link #replay}: posts are ignored, timers only registered. */
+    public static ChaosEventLoop forReplay() {
+        return new ChaosEventLoop();
+    }
+
+    public Looper getLooper() {
+        return thread.getLooper();
+    }
+
+    public void post(int what) {
+        post(what, 0, null);
+    }
+
+    public void post(int what, long arg) {
+        post(what, arg, null);
+    }
+
+    /** Queues an event from any thread. */
+    public void post(int what, long arg, Object obj) {
+        if (replaying) return;
+        Event e = new Event(what, arg, obj);
+        e.postedAt = SystemClock.uptimeMillis();
+        queue.offer(e);
+        if (drainPosted.compareAndSet(false, true)) handler.post(this::drain);
+    }
+
+    /** Queues an event {@code delayMs} after {@link #now}; owner thread. Cancel with {@link #cancel}. */
+    public void postDelayed(int what, long arg, long delayMs) {
+        if (replaying) return;
+        Event e = new Event(what, arg, null);
+        e.postedAt = now() + Math.max(0, delayMs);
+        handler.sendMessageAtTime(handler.obtainMessage(what, e), e.postedAt);
+    }
+
+    public void cancel(int what) {
+        if (!replaying) handler.removeMessages(what);
+    }
+
+    /** Runs {@code r} on the owner thread {@code delayMs} after {@link #now}; it is traced as a timer event. */
+    public void postDelayed(Runnable r, long delayMs) {
+        long id = nextTimerId++;
+        timers.put(id, r);
+        Event e = new Event(TIMER, id, null);
+        e.postedAt = now() + Math.max(0, delayMs);
+        if (replaying) {
+            replayTimers.add(e);
+            return;
+        }
+        handler.sendMessageAtTime(handler.obtainMessage(TIMER, e), e.postedAt);
+    }
+
+    /** Drops every Runnable posted with {@link #postDelayed(Runnable, long)}. */
+    public void cancelTimers() {
+        timers.clear();
+        if (replaying) replayTimers.clear();
+        else handler.removeMessages(TIMER);
+    }
+
+    /** Time of the event being handled, so handling it again in a replay sees the same clock. */
+    public long now() {
+        return dispatching ? eventTime : SystemClock.uptimeMillis();
+    }
+
+    /** Lets queued events run, then ends the owner thread. */
+    public void quitSafely() {
+        thread.quitSafely();
+    }
+
+    private void drain() {
+        // Cleared first: an event offered from now on either posts a new drain or is seen below
+        drainPosted.set(false);
+        Event e;
+        while ((e = queue.poll()) != null) {
+            long start = SystemClock.uptimeMillis();
+            maxQueuedMs = Math.max(maxQueuedMs, start - e.postedAt);
+            e.at = start;
+            dispatch(e, machine);
+            maxHandleMs = Math.max(maxHandleMs, SystemClock.uptimeMillis() - start);
+        }
+    }
+
+    private void dispatch(Event e, Machine target) {
+        trace[traceNext] = e;
+        traceNext = (traceNext + 1) % TRACE_CAPACITY;
+        traceSize++;
+        dispatched++;
+        dispatching = true;
+        eventTime = e.at;
+        try {
+            if (e.what == TIMER) {
+                Runnable r = timers.remove(e.arg);
+                if (r != null) r.run();
+            } else {
+                target.onEvent(e);
+            }
+        } finally {
+            dispatching = false;
+        }
+    }
+
+    /**
+     * Feeds {@code trace} to {@code target} on the calling thread. Only for loops from
+     * {@link #forReplay}; {@code target} must have been built on this loop.
+     */
+    public void replay(List<Event> trace, Machine target) {
+        if (!replaying) throw new IllegalStateException("Not a replay loop");
+        for (Event e : trace) dispatch(e, target);
+    }
+
+    /**
+     * Dispatches the earliest pending Runnable timer at its due time, and traces it as the real
+     * loop would. False if none is due by {@code untilMs}. Only for loops from {@link #forReplay}.
+     */
+    boolean runNextTimer(Machine target, long untilMs) {
+        if (!replaying) throw new IllegalStateException("Not a replay loop");
+        Event e = replayTimers.peek();
+        if (e == null || e.postedAt > untilMs) return false;
+        replayTimers.poll();
+        e.at = e.postedAt;
+        dispatch(e, target);
+        return true;
+    }
+
+    /**
+     * Restarts the trace at the event being handled and drops pending Runnable timers, so a new
+     * session replays from its own first event. Owner thread, while handling an event.
+     */
+    public void beginTrace() {
+        cancelTimers();
+        nextTimerId = 0;
+        Event current = trace[(traceNext - 1 + TRACE_CAPACITY) % TRACE_CAPACITY];
+        trace[0] = current;
+        traceNext = 1;
+        traceSize = 1;
+    }
+
+    /** False once events have been dropped from the front of the trace. */
+    public boolean isTraceComplete() {
+        return traceSize <= TRACE_CAPACITY;
+    }
+
+    /** The dispatched events since {@link #beginTrace}, or the last ones if it wrapped, oldest first; owner thread. */
+    public List<Event> getTrace() {
+        int size = Math.min(traceSize, TRACE_CAPACITY);
+        List<Event> events = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            events.add(trace[(traceNext - size + i + TRACE_CAPACITY) % TRACE_CAPACITY]);
+        }
+        return events;
+    }
+
+    /** Writes {@link #getTrace} as one {@code time what arg [obj]} line per event. */
+    public void writeTrace(File file) {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            for (Event e : getTrace()) out.println(e);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write trace", e);
+        }
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "%d events, max queued %d ms, max handled %d ms",
+                dispatched, maxQueuedMs, maxHandleMs);
+    }
+}
@@ -0,0 +1,22 @@
+package com.sleepchaos;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.service.notification.NotificationListenerService;
+
+import androidx.core.app.NotificationManagerCompat;
+
+/**
+ * Never looks at notifications. Being an enabled listener is what lets
+ * {@link ExternalTransport} read other apps' media sessions.
+ */
+public class ChaosNotificationListener extends NotificationListenerService {
+
+    public static ComponentName getComponent(Context context) {
+        return new ComponentName(context, ChaosNotificationListener.class);
+    }
+
+    public static boolean isAccessGranted(Context context) {
+        return NotificationManagerCompat.getEnabledListenerPackages(context).contains(context.getPackageName());
+    }
+}
@@ -0,0 +1,47 @@
+package com.sleepchaos;
+
+/**
+ * Immutable set of chaos parameters. Ranges are normalised on construction so callers can pass
+ * raw slider values.
+ */
+public final class ChaosParams {
+
+    public final int minPlaySec;
+    public final int maxPlaySec;
+    public final int minPauseSec;
+    public final int maxPauseSec;
+    public final float minVolume;
+    public final float maxVolume;
+    public final int volumeFreq;
+
+    public ChaosParams(int minPlaySec, int maxPlaySec, int minPauseSec, int maxPauseSec,
+                       float minVolume, float maxVolume, int volumeFreq) {
+        this.minPlaySec = Math.min(minPlaySec, maxPlaySec);
+        this.maxPlaySec = Math.max(minPlaySec, maxPlaySec);
+        this.minPauseSec = Math.min(minPauseSec, maxPauseSec);
+        this.maxPauseSec = Math.max(minPauseSec, maxPauseSec);
+        this.minVolume = Math.min(minVolume, maxVolume);
+        this.maxVolume = Math.max(minVolume, maxVolume);
+        this.volumeFreq = volumeFreq;
+    }
+
+    /** Play and pause ranges scaled by the given factors, a second at least; volumes as they are. */
+    public ChaosParams scaled(float playScale, float pauseScale) {
+        return new ChaosParams(scale(minPlaySec, playScale), scale(maxPlaySec, playScale),
+                scale(minPauseSec, pauseScale), scale(maxPauseSec, pauseScale), minVolume, maxVolume, volumeFreq);
+    }
+
+    private static int scale(int sec, float factor) {
+        return Math.max(1, Math.round(sec * factor));
+    }
+
+    public float midVolume() {
+        return minVolume + (maxVolume - minVolume) / 2;
+    }
+
+    // Base interval between volume drifts; higher frequency means shorter drifts
+    public int driftBaseDelayMs() {
+        int baseDelay = 30000 - ((volumeFreq - 1) * 3000);
+        return Math.max(baseDelay, 2000);
+    }
+}
@@ -0,0 +1,216 @@
+package com.sleepchaos;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Frame-accurate play/pause and volume drift state machine applied to a {@link PcmSource}.
+ * Mirrors the live service behaviour (random phase lengths, drifting volume, soft phase edges)
+ * but runs entirely on the render thread, so it costs a multiply per sample and no timers.
+ */
+public class ChaosSchedule {
+
+    private static final int FADE_IN_MS = 1000;
+    private static final int FADE_OUT_MS = 2000;
+    private static final int CHANNELS = PcmSource.CHANNELS;
+    /** Size of what {@link #writeState} writes. */
+    public static final int STATE_BYTES = 41;
+
+    // Swapped in atomically; read only when a new phase or drift is chosen
+    private volatile ChaosParams params;
+    private final SeededRandom random;
+
+    private boolean playing;
+    private long phaseFrames;
+    private long phasePosition;
+
+    private float volume;
+    private float volumeStep;
+    private long driftFramesLeft;
+
+    public ChaosSchedule(ChaosParams params, long seed) {
+        this.params = params;
+        this.random = new SeededRandom(seed);
+        this.volume = params.midVolume();
+        this.playing = true;
+        this.phaseFrames = nextPhaseFrames(params, true);
+    }
+
+    public void setParams(ChaosParams params) {
+        this.params = params;
+    }
+
+    public ChaosParams getParams() {
+        return params;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public long getFramesLeftInPhase() {
+        return phaseFrames - phasePosition;
+    }
+
+    public float getVolume() {
+        return volume;
+    }
+
+    /** Writes everything needed to continue this schedule exactly, except its params. */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeLong(random.getState());
+        out.writeBoolean(playing);
+        out.writeLong(phaseFrames);
+        out.writeLong(phasePosition);
+        out.writeFloat(volume);
+        out.writeFloat(volumeStep);
+        out.writeLong(driftFramesLeft);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        random.setState(in.readLong());
+        playing = in.readBoolean();
+        phaseFrames = in.readLong();
+        phasePosition = in.readLong();
+        volume = in.readFloat();
+        volumeStep = in.readFloat();
+        driftFramesLeft = in.readLong();
+    }
+
+    /**
+     * Renders {@code frames} frames into {@code buffer}, pulling from {@code source} only while in a
+     * play phase so the source resumes where it left off after silence. Returns frames rendered.
+     */
+    public int render(PcmSource source, short[] buffer, int offset, int frames) {
+        int done = 0;
+        while (done < frames) {
+            int chunk = (int) Math.min(frames - done, phaseFrames - phasePosition);
+            int idx = offset + done * CHANNELS;
+            int n;
+            if (playing) {
+                ChaosTrace.begin("ChaosSchedule.read");
+                try {
+                    n = source.read(buffer, idx, chunk);
+                } finally {
+                    ChaosTrace.end();
+                }
+                if (n < 0) {
+                    // Exhausted source: keep the timeline running on silence
+                    Arrays.fill(buffer, idx, idx + chunk * CHANNELS, (short) 0);
+                    n = chunk;
+                } else if (n == 0) {
+                    return done;
+                } else {
+                    ChaosTrace.begin("ChaosSchedule.gain");
+                    applyGain(buffer, idx, n);
+                    ChaosTrace.end();
+                }
+            } else {
+                Arrays.fill(buffer, idx, idx + chunk * CHANNELS, (short) 0);
+                n = chunk;
+            }
+            phasePosition += n;
+            if (phasePosition >= phaseFrames) nextPhase();
+            done += n;
+        }
+        return done;
+    }
+
+    /**
+     * Timeline-locked variant of {@link #render}: {@code buffer} already holds the source audio
+     * for these frames, which is kept with gain applied in play phases and silenced otherwise. The
+     * source runs on through silences, so many schedules can share one decoded stream.
+     */
+    public void apply(short[] buffer, int offset, int frames) {
+        int done = 0;
+        while (done < frames) {
+            int chunk = (int) Math.min(frames - done, phaseFrames - phasePosition);
+            int idx = offset + done * CHANNELS;
+            if (playing) applyGain(buffer, idx, chunk);
+            else Arrays.fill(buffer, idx, idx + chunk * CHANNELS, (short) 0);
+            phasePosition += chunk;
+            if (phasePosition >= phaseFrames) nextPhase();
+            done += chunk;
+        }
+    }
+
+    /**
+     * Advances the timeline by {@code frames} as if they had been rendered, without reading the
+     * source. Volume drift and phase changes come out the same as when rendering.
+     */
+    public void skip(long frames) {
+        while (frames > 0) {
+            long chunk = Math.min(frames, phaseFrames - phasePosition);
+            if (playing) advanceVolume(chunk);
+            phasePosition += chunk;
+            if (phasePosition >= phaseFrames) nextPhase();
+            frames -= chunk;
+        }
+    }
+
+    private void advanceVolume(long frames) {
+        while (frames > 0) {
+            if (driftFramesLeft <= 0) pickDrift();
+            long n = Math.min(frames, driftFramesLeft);
+            volume += volumeStep * n;
+            if (volume > 1f) volume = 1f;
+            else if (volume < 0f) volume = 0f;
+            driftFramesLeft -= n;
+            frames -= n;
+        }
+    }
+
+    private void applyGain(short[] buffer, int offset, int frames) {
+        int fadeIn = (int) msToFrames(FADE_IN_MS);
+        int fadeOut = (int) msToFrames(FADE_OUT_MS);
+        long pos = phasePosition;
+        int idx = offset;
+        for (int i = 0; i < frames; i++, pos++) {
+            if (driftFramesLeft <= 0) pickDrift();
+
+            float envelope = 1f;
+            if (pos < fadeIn) envelope = (float) pos / fadeIn;
+            long left = phaseFrames - pos;
+            if (left < fadeOut) envelope = Math.min(envelope, (float) left / fadeOut);
+
+            // Square law, matching the perceived curve of the exported mix
+            float gain = volume * volume * envelope;
+            for (int ch = 0; ch < CHANNELS; ch++, idx++) {
+                buffer[idx] = (short) (buffer[idx] * gain);
+            }
+
+            volume += volumeStep;
+            if (volume > 1f) volume = 1f;
+            else if (volume < 0f) volume = 0f;
+            driftFramesLeft--;
+        }
+    }
+
+    private void pickDrift() {
+        ChaosParams p = params;
+        float target = p.minVolume + random.nextFloat() * (p.maxVolume - p.minVolume);
+        int baseDelay = p.driftBaseDelayMs();
+        int durationMs = baseDelay / 2 + random.nextInt(baseDelay / 2);
+        driftFramesLeft = Math.max(1, msToFrames(durationMs));
+        volumeStep = (target - volume) / driftFramesLeft;
+    }
+
+    private void nextPhase() {
+        playing = !playing;
+        phasePosition = 0;
+        phaseFrames = nextPhaseFrames(params, playing);
+    }
+
+    private long nextPhaseFrames(ChaosParams p, boolean play) {
+        int min = play ? p.minPlaySec : p.minPauseSec;
+        int max = play ? p.maxPlaySec : p.maxPauseSec;
+        long ms = (min + random.nextInt(max - min + 1)) * 1000L;
+        return Math.max(1, msToFrames(ms));
+    }
+
+    static long msToFrames(long ms) {
+        return ms * PcmSource.SAMPLE_RATE / 1000;
+    }
+}
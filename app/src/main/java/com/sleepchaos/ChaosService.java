@@ -1,5 +1,6 @@
 package com.sleepchaos;
 
+import android.app.ForegroundServiceStartNotAllowedException;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -14,11 +15,10 @@ import android.media.AudioFocusRequest;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Build;
-import android.os.CountDownTimer;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.view.KeyEvent;
@@ -27,9 +27,20 @@ import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
 import androidx.core.app.NotificationCompat;
 import androidx.media.session.MediaButtonReceiver;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Runs a chaos session as a state machine on a {@link ChaosEventLoop}. Intents, media buttons,
+ * focus changes, the noisy broadcast, player completions, timers and fade steps all arrive as
+ * events, so session state is only ever read and written on the loop's thread.
+ */
 public class ChaosService extends Service implements AudioManager.OnAudioFocusChangeListener {
 
     public static final String ACTION_START = "ACTION_START";
@@ -37,9 +48,12 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
     public static final String ACTION_PAUSE = "ACTION_PAUSE";
     public static final String ACTION_RESUME = "ACTION_RESUME";
     
-    public static final String EXTRA_URI_LIST = "EXTRA_URI_LIST";
+    public static final String EXTRA_PLAYLIST_ID = "EXTRA_PLAYLIST_ID";
     public static final String EXTRA_DURATION_MINS = "EXTRA_DURATION_MINS";
     public static final String EXTRA_IS_EXTERNAL_MODE = "EXTRA_IS_EXTERNAL_MODE";
+    public static final String EXTRA_LAYERED = "EXTRA_LAYERED";
+    public static final String EXTRA_DIRECT_TRANSPORT = "EXTRA_DIRECT_TRANSPORT";
+    public static final String EXTRA_OFFLOAD = "EXTRA_OFFLOAD";
     
     // New Range Extras
     public static final String EXTRA_PLAY_MIN_SEC = "EXTRA_PLAY_MIN_SEC";
@@ -53,26 +67,100 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
     
     public static final String CHANNEL_ID = "ChaosServiceChannel";
 
+    // Events of the state machine
+    private static final int EV_START = 1;      // obj: StartRequest
+    private static final int EV_RESTORE = 2;    // sticky restart without an intent
+    private static final int EV_PAUSE = 3;
+    private static final int EV_RESUME = 4;
+    private static final int EV_STOP = 5;
+    private static final int EV_NOISY = 6;
+    private static final int EV_FOCUS = 7;      // arg: focus change
+    private static final int EV_TRACK_END = 8;  // arg: track index
+    private static final int EV_SLEEP_TIMER = 9;
+    private static final int EV_FADE_STEP = 10; // arg: fade generation
+    private static final int EV_FADE_DONE = 11; // arg: fade generation
+    private static final int EV_PARAMS = 12;    // obj: ChaosParams
+    private static final int EV_DESTROY = 13;   // obj: CountDownLatch released once stopped
+    private static final int EV_OFFLOAD_LOST = 14; // arg: position us, obj: OffloadPlayer
+    private static final int EV_LAYERS_OPENED = 15; // obj: MixEngine
+    private static final int EV_CLIP_READY = 16; // arg: track index
+    private static final int EV_CHECKPOINT = 17; // layered mode has no phase ticks to checkpoint on
+
+    private static final int FADE_STEPS = 20;
+    // How long onDestroy blocks the main thread for the loop to stop the session
+    private static final long DESTROY_TIMEOUT_MS = 2_000;
+
+    /** Where the session is; within RUNNING, play or silence is up to the ChaosSession. */
+    private enum State { STOPPED, RUNNING, FOCUS_LOST, PAUSED }
+
+    /** ACTION_START extras, read on the calling thread. */
+    private static final class StartRequest {
+        final long playlistId;
+        final int durationMins;
+        final boolean external;
+        final boolean layered;
+        final boolean directTransport;
+        final boolean offload;
+        final ChaosParams params;
+        final long seed = System.nanoTime();
+
+        StartRequest(Intent intent) {
+            playlistId = intent.getLongExtra(EXTRA_PLAYLIST_ID, -1);
+            durationMins = intent.getIntExtra(EXTRA_DURATION_MINS, 30);
+            external = intent.getBooleanExtra(EXTRA_IS_EXTERNAL_MODE, false);
+            layered = !external && intent.getBooleanExtra(EXTRA_LAYERED, false);
+            directTransport = intent.getBooleanExtra(EXTRA_DIRECT_TRANSPORT, false);
+            offload = !external && intent.getBooleanExtra(EXTRA_OFFLOAD, false);
+            // Normalised ranges, as the old safety checks did
+            params = new ChaosParams(intent.getIntExtra(EXTRA_PLAY_MIN_SEC, 10),
+                    intent.getIntExtra(EXTRA_PLAY_MAX_SEC, 60),
+                    intent.getIntExtra(EXTRA_PAUSE_MIN_SEC, 5),
+                    intent.getIntExtra(EXTRA_PAUSE_MAX_SEC, 20),
+                    intent.getFloatExtra(EXTRA_MIN_VOL, 0.2f),
+                    intent.getFloatExtra(EXTRA_MAX_VOL, 0.8f),
+                    intent.getIntExtra(EXTRA_VOL_FREQ, 5));
+        }
+
+        @Override
+        public String toString() {
+            return "start playlist=" + playlistId + " mins=" + durationMins + " external=" + external
+                    + " layered=" + layered + " seed=" + seed;
+        }
+    }
+
     private MediaPlayer mediaPlayer;
-    private Handler chaosHandler;
-    private Random random;
+    private Uri mediaPlayerUri;
+    private final MediaPlayerPool playerPool = new MediaPlayerPool(); // Local mode: prepared players survive track changes
+    private PcmPlayer pcmPlayer; // Generated sources (noise) bypass MediaPlayer entirely
+    private OffloadPlayer offloadPlayer; // Long MP3/AAC decoded on the audio DSP, when enabled
+    private boolean useOffload = false;
+    private boolean skipOffloadOnce = false; // Set after a tear-down: the track carries on via MediaPlayer
+    private boolean awaitingClip = false; // The current track is a clip still decoding off the loop
+    private boolean skipClipDecodeOnce = false; // Its decode is done; a miss now plays it as a file
+    private MixEngine mixEngine; // Source of pcmPlayer in layered mode
+    private ChaosEventLoop loop; // Owner thread of everything below
+    private Handler chaosHandler; // On the loop's thread, for the volume driver and transport
+    private SeededRandom random;
     
-    // Timers
-    private CountDownTimer sleepTimer; // Overall session timer
-    private CountDownTimer phaseTimer; // Current Play/Silence phase timer
+    private ChaosSession session; // Play/silence phases and drift of a single-track session
+    private long sessionEndsAt = 0; // Sleep timer deadline on the loop clock; 0 when not counting
     
-    // State Tracking
-    private boolean isServiceRunning = false;
-    private boolean isManuallyPaused = false;
-    private boolean isPausedByFocus = false;
-    private boolean isInIntermittentPause = false; // "Silence Phase"
+    // State Tracking; written on the loop thread, volatile for isSessionRunning()
+    private volatile State state = State.STOPPED;
     private boolean isExternalMode = false;
+    private boolean isLayeredMode = false; // Local: all tracks mixed at once, each with its own schedule
     
     // Resume State Tracking
-    private long timeRemainingInPhase = 0;
     private long timeRemainingInSession = 0;
     
     private float currentVolume = 0.5f;
+    // The one fade in progress; a new fade bumps the generation and so cancels the old one
+    private int fadeGeneration = 0;
+    private int fadeStep;
+    private long fadeStepDelay;
+    private float fadeFrom;
+    private float fadeTo;
+    private Runnable fadeOnComplete;
     private float minVolume = 0.2f;
     private float maxVolume = 0.8f;
     private int volumeFreq = 5;
@@ -83,22 +171,67 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
     private int maxPauseSec = 20;
     
     private int originalStreamVolume = -1;
+
+    // How much local playback ran offloaded, by loop time
+    private long localPlayingSince = 0; // 0 while no local player plays
+    private boolean localPlayingOffloaded;
+    private long localPlayMs;
+    private long offloadPlayMs;
+    private int offloadTracks;
+    private int offloadFallbacks;
+    private int offloadTearDowns;
+
+    // Async trace span of the current phase
+    private String tracedPhase;
+    private int phaseCookie;
+
+    // Long silences: players released, then pre-rolled at zero gain just before the play phase
+    private boolean releasedForSilence;
+    private boolean preRolled;
+    private long releasedAt;
+    private long releasedMs;
+    private int silenceReleases;
+    private int preRolls;
+    private int coldResumes; // Play phase came with the player still released
+    private long maxWarmUpMs;
+    private long totalWarmUpMs;
+    
+    // Crash recovery
+    private static final int CHECKPOINT_EVERY_TICKS = 10;
+    private static final long LAYERED_CHECKPOINT_MS = 10_000;
+    private SessionSnapshot snapshot;
+    private int ticksSinceCheckpoint = 0;
+    private int pendingSeekMs = 0;
     
-    private ArrayList<Uri> playlist = new ArrayList<>();
+    // Tracks are read from the saved playlist by position as playback reaches them
+    private long playlistId = -1;
+    private PlaylistStore.Reader tracks;
     private int currentTrackIndex = 0;
     
     private AudioManager audioManager;
+    private StreamVolumeDriver volumeDriver; // External mode: STREAM_MUSIC index changes only
+    private ExternalTransport transport; // External mode play/pause, direct or via keys and focus
+    private boolean directTransportRequested; // The user's choice; transport may have fallen back
     private AudioFocusRequest audioFocusRequest;
     private PowerManager.WakeLock wakeLock;
     private MediaSessionCompat mediaSession;
     private NotificationManager notificationManager;
     private NotificationCompat.Builder notificationBuilder;
     
+    /** In-process control interface for a running session; calls are queued onto the session's loop. */
+    public class LocalBinder extends Binder {
+        public ChaosService getService() {
+            return ChaosService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+
     private final BroadcastReceiver noisyReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(intent.getAction())) {
-                pauseChaos();
+                loop.post(EV_NOISY);
             }
         }
     };
@@ -106,9 +239,11 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
     @Override
     public void onCreate() {
         super.onCreate();
-        chaosHandler = new Handler(Looper.getMainLooper());
-        random = new Random();
+        loop = new ChaosEventLoop("ChaosLoop", this::onEvent);
+        chaosHandler = new Handler(loop.getLooper());
+        random = new SeededRandom(System.nanoTime());
         audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        volumeDriver = new StreamVolumeDriver(audioManager, chaosHandler);
         notificationManager = getSystemService(NotificationManager.class);
         
         PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
@@ -125,11 +260,11 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
         mediaSession = new MediaSessionCompat(this, "ChaosMediaSession");
         mediaSession.setCallback(new MediaSessionCompat.Callback() {
             @Override
-            public void onPlay() { resumeChaos(); }
+            public void onPlay() { loop.post(EV_RESUME); }
             @Override
-            public void onPause() { pauseChaos(); }
+            public void onPause() { loop.post(EV_PAUSE); }
             @Override
-            public void onStop() { stopChaos(); }
+            public void onStop() { loop.post(EV_STOP); }
         });
         mediaSession.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS | MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
         mediaSession.setActive(true);
@@ -138,53 +273,340 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         MediaButtonReceiver.handleIntent(mediaSession, intent);
-        if (intent != null) {
-            String action = intent.getAction();
-            if (ACTION_START.equals(action)) {
-                ArrayList<String> uriStrings = intent.getStringArrayListExtra(EXTRA_URI_LIST);
-                int durationMins = intent.getIntExtra(EXTRA_DURATION_MINS, 30);
-                isExternalMode = intent.getBooleanExtra(EXTRA_IS_EXTERNAL_MODE, false);
-                
-                minPlaySec = intent.getIntExtra(EXTRA_PLAY_MIN_SEC, 10);
-                maxPlaySec = intent.getIntExtra(EXTRA_PLAY_MAX_SEC, 60);
-                minPauseSec = intent.getIntExtra(EXTRA_PAUSE_MIN_SEC, 5);
-                maxPauseSec = intent.getIntExtra(EXTRA_PAUSE_MAX_SEC, 20);
-
-                minVolume = intent.getFloatExtra(EXTRA_MIN_VOL, 0.2f);
-                maxVolume = intent.getFloatExtra(EXTRA_MAX_VOL, 0.8f);
-                volumeFreq = intent.getIntExtra(EXTRA_VOL_FREQ, 5);
-                
-                // Safety checks
-                if (minPlaySec > maxPlaySec) { int t = minPlaySec; minPlaySec = maxPlaySec; maxPlaySec = t; }
-                if (minPauseSec > maxPauseSec) { int t = minPauseSec; minPauseSec = maxPauseSec; maxPauseSec = t; }
-                if (minVolume > maxVolume) { float t = minVolume; minVolume = maxVolume; maxVolume = t; }
-                
-                currentVolume = minVolume + (maxVolume - minVolume) / 2;
-                
-                // Handle Mode Specific Setup
-                if (!isExternalMode && uriStrings != null && !uriStrings.isEmpty()) {
-                    playlist.clear();
-                    for (String s : uriStrings) {
-                        playlist.add(Uri.parse(s));
-                    }
-                    if (requestAudioFocus()) {
-                        startChaos(durationMins);
-                    }
-                } else if (isExternalMode) {
-                    // For external mode, we start immediately. Focus will be handled in phases.
-                    // Save initial volume
-                    originalStreamVolume = audioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
-                    startChaos(durationMins);
-                }
-            } else if (ACTION_PAUSE.equals(action)) {
+        if (intent == null) {
+            // Sticky restart after the process was killed: pick the session up from its last checkpoint
+            loop.post(EV_RESTORE);
+            return START_STICKY;
+        }
+        String action = intent.getAction();
+        if (ACTION_START.equals(action)) {
+            loop.post(EV_START, 0, new StartRequest(intent));
+            return START_STICKY;
+        } else if (ACTION_PAUSE.equals(action)) {
+            loop.post(EV_PAUSE);
+        } else if (ACTION_RESUME.equals(action)) {
+            loop.post(EV_RESUME);
+        } else if (ACTION_STOP.equals(action)) {
+            loop.post(EV_STOP);
+        }
+        return state != State.STOPPED ? START_STICKY : START_NOT_STICKY;
+    }
+
+    // The state machine: every input lands here, one at a time, on the loop thread
+    private void onEvent(ChaosEventLoop.Event e) {
+        switch (e.what) {
+            case EV_START:
+                start((StartRequest) e.obj);
+                break;
+            case EV_RESTORE:
+                if (state == State.STOPPED) restoreFromCheckpoint();
+                break;
+            case EV_PAUSE:
+            case EV_NOISY:
                 pauseChaos();
-            } else if (ACTION_RESUME.equals(action)) {
+                break;
+            case EV_RESUME:
                 resumeChaos();
-            } else if (ACTION_STOP.equals(action)) {
-                stopChaos();
+                break;
+            case EV_STOP:
+            case EV_SLEEP_TIMER:
+                endSession();
+                break;
+            case EV_FOCUS:
+                onFocusChange((int) e.arg);
+                break;
+            case EV_TRACK_END:
+                // A player released since it finished is not the current track any more
+                if (e.arg == currentTrackIndex) playNextTrack();
+                break;
+            case EV_FADE_STEP:
+                onFadeStep((int) e.arg);
+                break;
+            case EV_FADE_DONE:
+                onFadeDone((int) e.arg);
+                break;
+            case EV_PARAMS:
+                applyParameters((ChaosParams) e.obj);
+                break;
+            case EV_OFFLOAD_LOST:
+                if (e.obj == offloadPlayer) onOffloadLost(e.arg);
+                break;
+            case EV_LAYERS_OPENED:
+                if (e.obj == mixEngine) onLayersOpened();
+                break;
+            case EV_CLIP_READY:
+                if (awaitingClip && e.arg == currentTrackIndex) onClipReady();
+                break;
+            case EV_CHECKPOINT:
+                checkpoint();
+                loop.postDelayed(EV_CHECKPOINT, 0, LAYERED_CHECKPOINT_MS);
+                break;
+            case EV_DESTROY:
+                try {
+                    stopChaos();
+                    // Not in stopChaos: a restart via startChaos has already opened the new playlist
+                    closeTracks();
+                } finally {
+                    if (e.obj != null) ((CountDownLatch) e.obj).countDown();
+                }
+                break;
+        }
+    }
+
+    private void start(StartRequest request) {
+        isExternalMode = request.external;
+        isLayeredMode = request.layered;
+        useOffload = request.offload;
+        setParams(request.params);
+        random = new SeededRandom(request.seed);
+        currentVolume = request.params.midVolume();
+
+        // Handle Mode Specific Setup
+        if (!isExternalMode && openTracks(request.playlistId)) {
+            if (requestAudioFocus()) {
+                startChaos(request.durationMins);
+            }
+        } else if (isExternalMode) {
+            // For external mode, we start immediately. Focus will be handled in phases.
+            // Save initial volume
+            originalStreamVolume = audioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
+            startTransport(request.directTransport);
+            startChaos(request.durationMins);
+        }
+    }
+
+    private void restoreFromCheckpoint() {
+        SessionSnapshot saved = SessionSnapshot.load(getSnapshotFile());
+        if (saved != null && isSnapshotResumable(saved)) {
+            restoreSession(saved);
+        } else {
+            if (saved != null) saved.delete();
+            stopSelf();
+        }
+    }
+
+    private void setParams(ChaosParams params) {
+        minPlaySec = params.minPlaySec;
+        maxPlaySec = params.maxPlaySec;
+        minPauseSec = params.minPauseSec;
+        maxPauseSec = params.maxPauseSec;
+        minVolume = params.minVolume;
+        maxVolume = params.maxVolume;
+        volumeFreq = params.volumeFreq;
+    }
+
+    private File getSnapshotFile() {
+        return new File(getFilesDir(), SessionSnapshot.FILE_NAME);
+    }
+
+    // Opens the saved playlist; false if it is missing or has nothing selected
+    private boolean openTracks(long id) {
+        closeTracks();
+        if (id < 0) return false;
+        try {
+            tracks = new PlaylistStore.Reader(PlaylistStore.getInstance(this).getPlaylistFile(id));
+        } catch (IOException e) {
+            Log.e("ChaosService", "Could not open playlist " + id, e);
+            return false;
+        }
+        playlistId = id;
+        if (tracks.nextSelected(0) >= 0) return true;
+        closeTracks();
+        return false;
+    }
+
+    private void closeTracks() {
+        if (tracks != null) {
+            tracks.close();
+            tracks = null;
+        }
+    }
+
+    private Uri getTrack(int index) {
+        try {
+            return tracks.get(index).uri;
+        } catch (IOException e) {
+            Log.e("ChaosService", "Unreadable playlist entry " + index, e);
+            return null;
+        }
+    }
+
+    private boolean isSnapshotResumable(SessionSnapshot s) {
+        // If we were dead for longer than the sleep timer had left, the session is over
+        return s.sessionRemainingMs == 0 || getDowntimeMs(s) < s.sessionRemainingMs;
+    }
+
+    // Session time that passed while the process was dead; none for a paused session, whose clocks were held
+    private static long getDowntimeMs(SessionSnapshot s) {
+        if (s.manuallyPaused) return 0;
+        return Math.max(0, System.currentTimeMillis() - s.savedAtMillis);
+    }
+
+    private void restoreSession(SessionSnapshot s) {
+        loop.beginTrace();
+        isExternalMode = s.externalMode;
+        isLayeredMode = s.layeredMode;
+        useOffload = s.offload;
+        setParams(s.params);
+        originalStreamVolume = s.originalStreamVolume;
+        if (!isExternalMode) {
+            // The playlist may have been edited since; nextSelected() clamps onto what is there now
+            if (!openTracks(s.playlistId)) {
+                s.delete();
+                stopSelf();
+                return;
+            }
+            currentTrackIndex = s.trackIndex < tracks.size() ? s.trackIndex : 0;
+        }
+        random.setState(s.rngState);
+        currentVolume = s.currentVolume;
+        pendingSeekMs = s.trackPositionMs;
+        snapshot = s;
+        long downtime = getDowntimeMs(s);
+        long phaseRemaining = s.phaseRemainingMs - downtime;
+
+        state = State.RUNNING;
+        if (!wakeLock.isHeld()) wakeLock.acquire(4 * 60 * 60 * 1000L);
+        initNotificationBuilder(true);
+        try {
+            startForeground(1, notificationBuilder.build());
+        } catch (IllegalStateException e) {
+            // A sticky restart comes from the background, where API 31+ may refuse it; retrying
+            // the same snapshot would only fail again
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                    || !(e instanceof ForegroundServiceStartNotAllowedException)) throw e;
+            Log.w("ChaosService", "Not allowed to restore in the background", e);
+            state = State.STOPPED;
+            if (wakeLock.isHeld()) wakeLock.release();
+            closeTracks();
+            snapshot = null;
+            s.delete();
+            stopSelf();
+            return;
+        }
+        updateMediaSessionState(PlaybackStateCompat.STATE_PLAYING);
+
+        if (!isExternalMode) requestAudioFocus();
+        else startTransport(s.directTransport);
+        // isSnapshotResumable() saw to it that some is left
+        if (s.sessionRemainingMs > 0) startSessionTimer(s.sessionRemainingMs - downtime);
+
+        if (isLayeredMode) {
+            List<MixEngine.LayerState> layers = null;
+            if (s.layerState != null) {
+                try {
+                    layers = MixEngine.loadLayers(s.layerState);
+                } catch (IOException e) {
+                    Log.w("ChaosService", "Unreadable layer state, layers start afresh", e);
+                }
             }
+            startLayeredSession(layers, downtime);
+        } else if (phaseRemaining <= 0) {
+            // The phase ran out while we were dead; carry on with a new one
+            session = newSession();
+            session.start();
+        } else if (s.inSilence) {
+            session = newSession();
+            if (isExternalMode) externalPause();
+            session.resumePhase(true, phaseRemaining);
+        } else {
+            session = newSession();
+            if (isExternalMode) {
+                externalPlay();
+                fadeVolume(0, currentVolume, 1000, null);
+            } else {
+                initAndPlayCurrentTrack();
+            }
+            session.resumePhase(false, phaseRemaining);
         }
-        return START_NOT_STICKY;
+
+        if (s.manuallyPaused) pauseChaos();
+        Log.i("ChaosService", "Session restored from checkpoint");
+    }
+
+    private void beginSnapshot() {
+        snapshot = new SessionSnapshot(getSnapshotFile());
+        snapshot.externalMode = isExternalMode;
+        snapshot.layeredMode = isLayeredMode;
+        // Asked for, not resolved: access granted after a restore still gets used
+        snapshot.directTransport = directTransportRequested;
+        snapshot.offload = useOffload;
+        snapshot.params = new ChaosParams(minPlaySec, maxPlaySec, minPauseSec, maxPauseSec,
+                minVolume, maxVolume, volumeFreq);
+        snapshot.originalStreamVolume = originalStreamVolume;
+        snapshot.playlistId = playlistId;
+        fillSnapshotState();
+        try {
+            snapshot.save();
+        } catch (IOException e) {
+            Log.w("ChaosService", "Could not write session snapshot", e);
+        }
+    }
+
+    private void checkpoint() {
+        if (snapshot == null || state == State.STOPPED) return;
+        ticksSinceCheckpoint = 0;
+        fillSnapshotState();
+        try {
+            snapshot.saveDynamic();
+        } catch (IOException e) {
+            Log.w("ChaosService", "Checkpoint failed", e);
+        }
+    }
+
+    private void fillSnapshotState() {
+        snapshot.rngState = random.getState();
+        snapshot.inSilence = isInSilence();
+        snapshot.manuallyPaused = state == State.PAUSED;
+        snapshot.currentVolume = liveVolume();
+        snapshot.phaseRemainingMs = session != null ? session.getPhaseRemainingMs() : 0;
+        snapshot.sessionRemainingMs = getSessionRemainingMs();
+        snapshot.trackIndex = currentTrackIndex;
+        snapshot.trackPositionMs = releasedForSilence ? pendingSeekMs : getTrackPositionMs();
+        snapshot.layerState = mixEngine != null ? mixEngine.saveLayers() : null;
+    }
+
+    // Position in the current file; 0 for generated and cached sources
+    private int getTrackPositionMs() {
+        if (mediaPlayer != null) {
+            try { return mediaPlayer.getCurrentPosition(); } catch (IllegalStateException e) {}
+        } else if (offloadPlayer != null) {
+            return (int) (offloadPlayer.getPositionUs() / 1000);
+        }
+        return 0;
+    }
+
+    // Explicit end of a session (user stop, sleep timer): unlike stopChaos from onDestroy, nothing to resume
+    private void endSession() {
+        if (snapshot != null) {
+            snapshot.delete();
+            snapshot = null;
+        } else {
+            getSnapshotFile().delete();
+        }
+        stopChaos();
+    }
+
+    private void startTransport(boolean direct) {
+        directTransportRequested = direct;
+        if (transport != null) transport.stop();
+        transport = new ExternalTransport(this, audioManager, chaosHandler, direct);
+        transport.start();
+    }
+
+    // External play: tell the session to play, or drop focus and send a media key
+    private void externalPlay() {
+        transport.play(() -> {
+            abandonAudioFocus();
+            transport.sendMediaKey(KeyEvent.KEYCODE_MEDIA_PLAY);
+        });
+        volumeDriver.setTarget(transport.getController());
+        StartupMetrics.onAudioStarted();
+    }
+
+    // External pause: tell the session to pause, or take focus so it pauses itself
+    private void externalPause() {
+        transport.pause(this::requestAudioFocus);
     }
 
     private boolean requestAudioFocus() {
@@ -213,10 +635,21 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
     }
 
     private void startChaos(int durationMins) {
-        if (isServiceRunning) stopChaos();
-        isServiceRunning = true;
-        isManuallyPaused = false;
+        if (state != State.STOPPED) stopChaos();
+        // The trace of this session starts at its START event
+        loop.beginTrace();
+        state = State.RUNNING;
         currentTrackIndex = 0;
+        timeRemainingInSession = 0;
+        volumeDriver.resetStats();
+        volumeDriver.invalidate();
+        playerPool.resetStats();
+        localPlayMs = offloadPlayMs = 0;
+        offloadTracks = offloadFallbacks = offloadTearDowns = 0;
+        skipOffloadOnce = false;
+        releasedForSilence = preRolled = false;
+        releasedMs = maxWarmUpMs = totalWarmUpMs = 0;
+        silenceReleases = preRolls = coldResumes = 0;
         
         if (!wakeLock.isHeld()) wakeLock.acquire(4 * 60 * 60 * 1000L); 
 
@@ -225,183 +658,393 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
         
         updateMediaSessionState(PlaybackStateCompat.STATE_PLAYING);
         
-        startPlaybackPhase();
-
-        if (durationMins > 0) {
-            long millis = durationMins * 60 * 1000L;
-            timeRemainingInSession = millis;
-            startSessionTimer(millis);
+        if (isLayeredMode) {
+            startLayeredSession(null, 0);
+        } else {
+            session = newSession();
+            session.start();
         }
+
+        if (durationMins > 0) startSessionTimer(durationMins * 60 * 1000L);
+        
+        beginSnapshot();
     }
     
     private void startSessionTimer(long millis) {
-        if (sleepTimer != null) sleepTimer.cancel();
-        sleepTimer = new CountDownTimer(millis, 1000) {
-            @Override
-            public void onTick(long l) {
-                timeRemainingInSession = l;
-            }
-            @Override
-            public void onFinish() {
-                stopChaos();
-            }
-        }.start();
+        timeRemainingInSession = millis;
+        sessionEndsAt = loop.now() + millis;
+        loop.cancel(EV_SLEEP_TIMER);
+        loop.postDelayed(EV_SLEEP_TIMER, 0, millis);
+    }
+
+    // Stops the sleep timer, keeping what was left of it for a later startSessionTimer
+    private void holdSessionTimer() {
+        timeRemainingInSession = getSessionRemainingMs();
+        sessionEndsAt = 0;
+        loop.cancel(EV_SLEEP_TIMER);
+    }
+
+    // 0 when there is no sleep timer
+    private long getSessionRemainingMs() {
+        if (sessionEndsAt == 0) return timeRemainingInSession;
+        return Math.max(1, sessionEndsAt - loop.now());
     }
 
     private void pauseChaos() {
-        if (!isServiceRunning || isManuallyPaused) return;
-        isManuallyPaused = true;
+        if (state == State.STOPPED || state == State.PAUSED) return;
+        state = State.PAUSED;
+        tracePhase("paused");
+        ChaosTrace.counter("chaos.phase", -1);
         
         // Local Mode Pause
-        if (!isExternalMode && mediaPlayer != null && mediaPlayer.isPlaying()) {
-            mediaPlayer.pause();
+        if (!isExternalMode && isLocalPlaying()) {
+            pauseLocalPlayer();
         }
         
         // External Mode Pause - We must Request Focus to ensure silence if user manually pauses
         if (isExternalMode) {
-             requestAudioFocus(); 
+             externalPause();
              // Restore volume on manual pause so user has control back
+             volumeDriver.setTarget(null);
              if (originalStreamVolume != -1) {
-                 audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, originalStreamVolume, 0);
+                 volumeDriver.setIndex(originalStreamVolume);
              }
+             // The user owns the volume while paused
+             volumeDriver.invalidate();
         }
         
-        if (phaseTimer != null) {
-            phaseTimer.cancel(); 
-        }
-        if (sleepTimer != null) {
-            sleepTimer.cancel(); 
-        }
+        if (session != null) session.pause();
+        holdSessionTimer();
         
+        cancelFade();
         chaosHandler.removeCallbacksAndMessages(null);
         
         if (wakeLock.isHeld()) wakeLock.release();
         
         updateNotificationManuallyPaused();
         updateMediaSessionState(PlaybackStateCompat.STATE_PAUSED);
+        checkpoint();
     }
     
     private void resumeChaos() {
-        if (!isServiceRunning || !isManuallyPaused) return;
+        if (state != State.PAUSED) return;
         
-        isManuallyPaused = false;
+        state = State.RUNNING;
         if (!wakeLock.isHeld()) wakeLock.acquire(4 * 60 * 60 * 1000L);
+        checkpoint();
         
         if (timeRemainingInSession > 0) {
             startSessionTimer(timeRemainingInSession);
         }
+
+        if (isLayeredMode) {
+            // Layer schedules live on the render thread; just resume the mix
+            if (requestAudioFocus()) startLocalPlayer();
+            updateNotificationLayered();
+            updateMediaSessionState(PlaybackStateCompat.STATE_PLAYING);
+            return;
+        }
         
         // Determine Resume Action based on current phase
-        if (isInIntermittentPause) {
+        if (session.isInSilence()) {
              // We were in silence
-             startPhaseTimer(timeRemainingInPhase, false);
+             session.resume();
              updateMediaSessionState(PlaybackStateCompat.STATE_PLAYING);
-             // External: Ensure focus is held to keep silence
-             if (isExternalMode) requestAudioFocus();
+             // External: Ensure focus is held (or the session paused) to keep silence
+             if (isExternalMode) externalPause();
         } else {
              // We were playing
              if (isExternalMode) {
                  // Trigger External Play
-                 abandonAudioFocus();
-                 sendMediaKey(KeyEvent.KEYCODE_MEDIA_PLAY);
+                 externalPlay();
              } else {
                  if (requestAudioFocus()) {
-                     if (mediaPlayer != null) mediaPlayer.start();
-                     else initAndPlayCurrentTrack();
+                     if (hasLocalPlayer()) startLocalPlayer();
+                     else if (!awaitingClip) initAndPlayCurrentTrack();
                  }
              }
              
-             startPhaseTimer(timeRemainingInPhase, true);
-             scheduleVolumeDrift(timeRemainingInPhase);
+             session.resume();
              updateMediaSessionState(PlaybackStateCompat.STATE_PLAYING);
         }
     }
 
-    // Phase 1: Play Audio
-    private void startPlaybackPhase() {
-        if (!isServiceRunning || isManuallyPaused) return;
-        isInIntermittentPause = false;
-        
-        chaosHandler.removeCallbacksAndMessages(null);
-
-        if (isExternalMode) {
-            // EXTERNAL: Release focus to let other app play, and send PLAY command
-            abandonAudioFocus();
-            // Send PLAY command to wake up the potential player
-            sendMediaKey(KeyEvent.KEYCODE_MEDIA_PLAY);
-            // Start Volume Fade In
-            fadeVolume(0, currentVolume, 1000, null);
-        } else {
-            // LOCAL
-            if (mediaPlayer == null || !mediaPlayer.isPlaying()) {
-                if (mediaPlayer == null) {
-                    initAndPlayCurrentTrack();
-                } else {
-                    mediaPlayer.start();
-                    fadeVolume(0, currentVolume, 1000, null);
+    // Layered mode: every playlist item plays simultaneously through one MixEngine. Saved layers
+    // (restore) continue their schedules skipMs later; other selected tracks start fresh.
+    private void startLayeredSession(List<MixEngine.LayerState> saved, long skipMs) {
+        releaseLocalPlayer();
+        // Seeds are drawn here so the session RNG stays on the loop thread
+        List<Uri> uris = new ArrayList<>();
+        List<MixEngine.LayerState> states = new ArrayList<>();
+        List<Long> startSeeds = new ArrayList<>();
+        for (int i = 0; i < tracks.size(); i++) {
+            try {
+                PlaylistStore.Entry entry = tracks.get(i);
+                if (!entry.selected) continue;
+                MixEngine.LayerState state = findLayer(saved, i);
+                uris.add(entry.uri);
+                states.add(state != null ? state : new MixEngine.LayerState(i, random.nextLong()));
+                startSeeds.add(random.nextLong());
+            } catch (IOException e) {
+                Log.e("ChaosService", "Skipping layer " + i, e);
+            }
+        }
+        long skipFrames = ChaosSchedule.msToFrames(skipMs);
+        if (uris.isEmpty()) {
+            endSession();
+            return;
+        }
+        // Gain and phases are applied per layer inside the engine; it plays silence until layers arrive
+        MixEngine engine = new MixEngine(new ChaosParams(minPlaySec, maxPlaySec, minPauseSec, maxPauseSec,
+                minVolume, maxVolume, volumeFreq));
+        mixEngine = engine;
+        pcmPlayer = new PcmPlayer(engine);
+        startLocalPlayer();
+        updateNotificationLayered();
+        // Opening decodes clips and probes files, so it stays off the loop; layers join as they open
+        new Thread(() -> {
+            for (int i = 0; i < uris.size(); i++) {
+                Uri uri = uris.get(i);
+                try {
+                    PcmSource source = openPcmSource(uri, new SeededRandom(startSeeds.get(i)));
+                    if (!engine.addLayer(states.get(i), source, skipFrames)) {
+                        // Session stopped meanwhile
+                        source.release();
+                        break;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.e("ChaosService", "Skipping layer " + uri, e);
                 }
             }
+            loop.post(EV_LAYERS_OPENED, 0, engine);
+        }, "LayerOpener").start();
+    }
+
+    private static MixEngine.LayerState findLayer(List<MixEngine.LayerState> layers, int key) {
+        if (layers == null) return null;
+        for (MixEngine.LayerState layer : layers) {
+            if (layer.key == key) return layer;
         }
-        
-        long playDuration = getNextDuration(minPlaySec, maxPlaySec);
-        scheduleVolumeDrift(playDuration);
-        
-        startPhaseTimer(playDuration, true);
+        return null;
     }
-    
-    // Phase 2: Pause Audio (Silence Phase)
-    private void startPausePhase() {
-        if (!isServiceRunning || isManuallyPaused) return;
-        isInIntermittentPause = true;
 
-        chaosHandler.removeCallbacksAndMessages(null);
+    private void onLayersOpened() {
+        if (mixEngine.getLayerCount() == 0) {
+            Log.w("ChaosService", "No layer could be opened");
+            endSession();
+            return;
+        }
+        updateNotificationLayered();
+        // From here on checkpoints carry the layers' schedules
+        checkpoint();
+        loop.cancel(EV_CHECKPOINT);
+        loop.postDelayed(EV_CHECKPOINT, 0, LAYERED_CHECKPOINT_MS);
+    }
 
-        fadeVolume(currentVolume, 0.0f, 2000, () -> {
-             if (isExternalMode) {
-                 // EXTERNAL: Request Focus to force pause other apps
-                 requestAudioFocus();
-             } else {
-                 // LOCAL
-                 if (mediaPlayer != null && isServiceRunning && !isManuallyPaused) {
-                     try { mediaPlayer.pause(); } catch (Exception e) {}
-                 }
-             }
-        });
-        
-        long pauseDuration = getNextDuration(minPauseSec, maxPauseSec);
-        startPhaseTimer(pauseDuration, false);
+    // Any thread; random only picks where long layers start
+    private PcmSource openPcmSource(Uri uri, Random random) throws IOException {
+        if (NoiseGenerator.isNoiseUri(uri)) return NoiseGenerator.fromUri(uri);
+        PcmSource cached = ClipCache.getInstance(this).open(this, uri, true);
+        if (cached != null) return cached;
+        DecodedSource decoded = new DecodedSource(this, uri);
+        // Long layers start somewhere random so the same opening is not heard every night
+        SeekIndex index = SeekIndex.Cache.getInstance(this).peek(uri);
+        if (index != null) decoded.seekTo(index.pickStartUs(random));
+        return decoded;
     }
 
-    private void startPhaseTimer(long durationMs, boolean isPlayingPhase) {
-        if (phaseTimer != null) phaseTimer.cancel();
-        timeRemainingInPhase = durationMs;
-        
-        updateNotificationProgress(durationMs, durationMs, isPlayingPhase);
+    private ChaosSession newSession() {
+        if (session != null) session.stop();
+        return new ChaosSession(sessionScheduler, sessionBackend, random,
+                new ChaosParams(minPlaySec, maxPlaySec, minPauseSec, maxPauseSec, minVolume, maxVolume, volumeFreq));
+    }
 
-        phaseTimer = new CountDownTimer(durationMs, 1000) {
-            @Override
-            public void onTick(long millisUntilFinished) {
-                timeRemainingInPhase = millisUntilFinished;
-                updateNotificationProgress(durationMs, millisUntilFinished, isPlayingPhase);
+    // Local audio resumes for a play phase only while we hold focus
+    private boolean mayPlayLocally() {
+        return state == State.RUNNING;
+    }
+
+    private boolean isInSilence() {
+        return session != null && session.isInSilence();
+    }
+
+    // Session callbacks are loop timers, so they are traced; a new phase still clears every pending callback
+    private final ChaosSession.Scheduler sessionScheduler = new ChaosSession.Scheduler() {
+        @Override
+        public long now() {
+            return loop.now();
+        }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMs) {
+            loop.postDelayed(r, delayMs);
+        }
+
+        @Override
+        public void cancelAll() {
+            loop.cancelTimers();
+            cancelFade();
+            chaosHandler.removeCallbacksAndMessages(null);
+        }
+    };
+
+    private final ChaosSession.Backend sessionBackend = new ChaosSession.Backend() {
+        // Phase 1: Play Audio
+        @Override
+        public void onPlayPhase() {
+            ChaosTrace.begin("ChaosService.playPhase");
+            try {
+                startPlayback();
+            } finally {
+                ChaosTrace.end();
             }
+        }
 
-            @Override
-            public void onFinish() {
-                if (!isServiceRunning || isManuallyPaused) return;
-                if (isPlayingPhase) {
-                    startPausePhase();
-                } else {
-                    startPlaybackPhase();
+        private void startPlayback() {
+            if (isExternalMode) {
+                // EXTERNAL: Let the other app play (directly, or by releasing focus and sending PLAY)
+                externalPlay();
+                // Start Volume Fade In
+                fadeVolume(0, currentVolume, 1000, null);
+            } else if (mayPlayLocally()) {
+                // LOCAL; without focus the phase runs silently until it comes back
+                notePreRollOutcome();
+                if (!isLocalPlaying() && !awaitingClip) {
+                    if (!hasLocalPlayer()) {
+                        initAndPlayCurrentTrack();
+                    } else {
+                        startLocalPlayer();
+                        fadeVolume(0, currentVolume, 1000, null);
+                    }
+                }
+            }
+        }
+
+        // Phase 2: Pause Audio (Silence Phase), once the fade-out is done
+        @Override
+        public void onSilence() {
+            ChaosTrace.begin("ChaosService.silence");
+            try {
+                stopPlayback();
+            } finally {
+                ChaosTrace.end();
+            }
+        }
+
+        private void stopPlayback() {
+            if (isExternalMode) {
+                // EXTERNAL: Pause the session, or request focus to force other apps to pause
+                externalPause();
+            } else {
+                // LOCAL
+                if (hasLocalPlayer() && state == State.RUNNING) {
+                    try { pauseLocalPlayer(); } catch (Exception e) {}
+                    if (session.getPhaseRemainingMs() >= ChaosSession.RELEASE_SILENCE_MS) releaseForSilence();
                 }
             }
-        }.start();
+        }
+
+        @Override
+        public void fadeVolume(float from, float to, int durationMs, Runnable onComplete) {
+            ChaosService.this.fadeVolume(from, to, durationMs, onComplete);
+        }
+
+        @Override
+        public float getVolume() {
+            return liveVolume();
+        }
+
+        @Override
+        public void onPhaseTick(boolean playing, long durationMs, long remainingMs) {
+            if (remainingMs == durationMs) {
+                tracePhase(playing ? "phase.play" : "phase.silence");
+                ChaosTrace.counter("chaos.phase", playing ? 1 : 0);
+            }
+            updateNotificationProgress(durationMs, remainingMs, playing);
+            if (remainingMs == durationMs || ++ticksSinceCheckpoint >= CHECKPOINT_EVERY_TICKS) checkpoint();
+        }
+
+        @Override
+        public long getPreRollLeadMs(long remainingMs) {
+            // Local players are released for long silences in stopPlayback; external apps never are
+            if (isExternalMode) return 0;
+            return ChaosSession.preRollLeadMs(remainingMs, maxWarmUpMs);
+        }
+
+        @Override
+        public void onPreRoll() {
+            preRoll();
+        }
+    };
+
+    // A long silence keeps only the track and position: no decoder, buffers or audio track sit idle
+    private void releaseForSilence() {
+        int position = getTrackPositionMs();
+        releaseLocalPlayer();
+        playerPool.releaseAll();
+        // Files carry on where they stopped; generated and cached sources just restart
+        if (position > 0) pendingSeekMs = position;
+        releasedForSilence = true;
+        releasedAt = loop.now();
+        silenceReleases++;
+    }
+
+    // Builds the player again and starts it at zero gain, so the play phase only has to fade in
+    private void preRoll() {
+        if (!releasedForSilence || state != State.RUNNING) return;
+        releasedForSilence = false;
+        releasedMs += loop.now() - releasedAt;
+        long start = SystemClock.uptimeMillis();
+        ChaosTrace.begin("ChaosService.preRoll");
+        try {
+            if (openCurrentTrack()) startLocalPlayer();
+        } finally {
+            ChaosTrace.end();
+        }
+        long warmUpMs = SystemClock.uptimeMillis() - start;
+        maxWarmUpMs = Math.max(maxWarmUpMs, warmUpMs);
+        totalWarmUpMs += warmUpMs;
+        preRolls++;
+        preRolled = true;
+    }
+
+    // At the start of a local play phase: was the audio already warm?
+    private void notePreRollOutcome() {
+        if (releasedForSilence) {
+            // Too short a silence left after a pause or restore; the track opens cold
+            releasedForSilence = false;
+            releasedMs += loop.now() - releasedAt;
+            coldResumes++;
+        }
+        preRolled = false;
+    }
+
+    private String getSilenceStats() {
+        return String.format(Locale.US, "%d silences released for %d s, %d pre-rolls (warm-up max %d ms avg %d ms), %d cold resumes",
+                silenceReleases, releasedMs / 1000, preRolls, maxWarmUpMs, preRolls > 0 ? totalWarmUpMs / preRolls : 0,
+                coldResumes);
     }
     
+    // One async span per phase, so phases line up against everything else in a trace
+    private void tracePhase(String name) {
+        if (tracedPhase != null) ChaosTrace.endAsync(tracedPhase, phaseCookie);
+        tracedPhase = name;
+        if (name != null) ChaosTrace.beginAsync(name, ++phaseCookie);
+    }
+
     // ... Notification Update methods remain the same ... 
     
     private void updateNotificationProgress(long maxMs, long remainingMs, boolean isPlayingPhase) {
-        if (notificationBuilder == null || isManuallyPaused) return;
-        
+        if (notificationBuilder == null || state == State.PAUSED) return;
+        ChaosTrace.begin("ChaosService.updateNotificationProgress");
+        try {
+            notifyProgress(maxMs, remainingMs, isPlayingPhase);
+        } finally {
+            ChaosTrace.end();
+        }
+    }
+
+    private void notifyProgress(long maxMs, long remainingMs, boolean isPlayingPhase) {
         String stateTitle = isPlayingPhase ? getString(R.string.state_active) : getString(R.string.state_silence);
         long sec = remainingMs / 1000;
         String timeStr = String.format(getString(R.string.time_remaining), sec / 60, sec % 60);
@@ -424,6 +1067,27 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
         notificationManager.notify(1, notificationBuilder.build());
     }
     
+    private void updateNotificationLayered() {
+        if (notificationBuilder == null || state == State.PAUSED) return;
+
+        Intent pauseIntent = new Intent(this, ChaosService.class);
+        pauseIntent.setAction(ACTION_PAUSE);
+        PendingIntent pausePendingIntent = PendingIntent.getService(this, 2, pauseIntent, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+
+        Intent stopIntent = new Intent(this, ChaosService.class);
+        stopIntent.setAction(ACTION_STOP);
+        PendingIntent stopPendingIntent = PendingIntent.getService(this, 1, stopIntent, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+
+        notificationBuilder.setContentTitle(getString(R.string.state_layered))
+                           .setContentText(String.format(getString(R.string.layers_active), mixEngine != null ? mixEngine.getLayerCount() : 0))
+                           .setProgress(0, 0, false)
+                           .clearActions()
+                           .addAction(android.R.drawable.ic_media_pause, "Pause", pausePendingIntent)
+                           .addAction(android.R.drawable.ic_menu_close_clear_cancel, "Stop", stopPendingIntent);
+
+        notificationManager.notify(1, notificationBuilder.build());
+    }
+    
     private void updateNotificationManuallyPaused() {
         if (notificationBuilder == null) return;
         
@@ -445,32 +1109,6 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
         notificationManager.notify(1, notificationBuilder.build());
     }
 
-    private long getNextDuration(int minSec, int maxSec) {
-        if (minSec >= maxSec) return minSec * 1000L;
-        return (minSec + random.nextInt(maxSec - minSec + 1)) * 1000L;
-    }
-
-    private void scheduleVolumeDrift(long maxDurationAvailable) {
-        if (!isServiceRunning || isInIntermittentPause || isManuallyPaused) return;
-        
-        float range = maxVolume - minVolume;
-        float targetVol = minVolume + (random.nextFloat() * range);
-        
-        int freqLevel = volumeFreq;
-        int baseDelay = 30000 - ((freqLevel - 1) * 3000); 
-        if (baseDelay < 2000) baseDelay = 2000;
-        
-        int variance = baseDelay / 2;
-        int fadeTime = baseDelay / 2 + random.nextInt(variance); 
-        int nextDelay = fadeTime + (baseDelay / 2) + random.nextInt(variance);
-
-        fadeVolume(currentVolume, targetVol, fadeTime, null);
-        
-        if (nextDelay < maxDurationAvailable) {
-            chaosHandler.postDelayed(() -> scheduleVolumeDrift(maxDurationAvailable - nextDelay), nextDelay);
-        }
-    }
-
     private void initNotificationBuilder(boolean isPlaying) {
         Intent notificationIntent = new Intent(this, MainActivity.class);
         PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_IMMUTABLE);
@@ -502,135 +1140,317 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
     }
 
     private void initAndPlayCurrentTrack() {
-        if (playlist.isEmpty()) return;
+        ChaosTrace.begin("ChaosService.initAndPlayCurrentTrack");
+        try {
+            playCurrentTrack();
+        } finally {
+            ChaosTrace.end();
+        }
+    }
+
+    private void playCurrentTrack() {
+        if (!openCurrentTrack()) return;
+        startLocalPlayer();
+        // A track that ends during a zero-gain pre-roll carries on silent
+        if (!isInSilence()) fadeVolume(0, minVolume + (maxVolume - minVolume) / 2, 2000, null);
+    }
+
+    // The player for the current track, ready at zero gain; false if there is none
+    private boolean openCurrentTrack() {
+        if (tracks == null) return false;
+        currentTrackIndex = tracks.nextSelected(currentTrackIndex);
+        if (currentTrackIndex < 0) {
+            currentTrackIndex = 0;
+            return false;
+        }
         try {
-            if (mediaPlayer != null) {
-                mediaPlayer.release();
+            releaseLocalPlayer();
+
+            Uri uri = getTrack(currentTrackIndex);
+            if (uri == null) return false;
+            boolean onlyTrack = tracks.getSelectedCount() == 1;
+            int trackIndex = currentTrackIndex; // Completions arrive as events tagged with it
+            PcmSource pcmSource;
+            if (NoiseGenerator.isNoiseUri(uri)) {
+                pcmSource = NoiseGenerator.fromUri(uri);
+            } else {
+                // Short clips restart from memory; a single-track playlist just loops the cached PCM
+                ClipCache clips = ClipCache.getInstance(this);
+                pcmSource = clips.openCached(uri, onlyTrack);
+                boolean decoded = skipClipDecodeOnce;
+                skipClipDecodeOnce = false;
+                if (pcmSource == null && !decoded
+                        && clips.decodeAsync(this, uri, () -> loop.post(EV_CLIP_READY, trackIndex))) {
+                    // Nothing plays until EV_CLIP_READY, then the track opens again from memory or as a file
+                    awaitingClip = true;
+                    return true;
+                }
             }
-            mediaPlayer = new MediaPlayer();
-            mediaPlayer.setAudioAttributes(
-                    new AudioAttributes.Builder()
-                            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                            .setUsage(AudioAttributes.USAGE_MEDIA)
-                            .build()
-            );
-            
-            Uri uri = playlist.get(currentTrackIndex);
-            mediaPlayer.setDataSource(this, uri);
-            mediaPlayer.setOnCompletionListener(mp -> {
-                currentTrackIndex = (currentTrackIndex + 1) % playlist.size();
-                initAndPlayCurrentTrack(); 
-            });
-            mediaPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-            mediaPlayer.prepare();
-            setLogarithmicVolume(0); 
-            mediaPlayer.start();
-            
-            float initialVol = minVolume + (maxVolume - minVolume) / 2;
-            fadeVolume(0, initialVol, 2000, null);
-            
+            if (pcmSource != null) {
+                pcmPlayer = new PcmPlayer(pcmSource);
+                pcmPlayer.setOnCompletionListener(() -> loop.post(EV_TRACK_END, trackIndex));
+                setLogarithmicVolume(0);
+                currentVolume = 0;
+                return true;
+            }
+
+            // Resuming a restored session (or a torn-down offload) at its position, else a random sync point;
+            // until the index is built the track starts at 0
+            boolean resuming = pendingSeekMs > 0;
+            long startUs = pendingSeekMs * 1000L;
+            pendingSeekMs = 0;
+            if (!resuming) {
+                SeekIndex index = SeekIndex.Cache.getInstance(this).peek(uri);
+                startUs = index != null ? index.pickStartUs(random) : 0;
+            }
+
+            if (useOffload && !skipOffloadOnce) {
+                // Looping is done by the feeder for a single track, as setLooping does below
+                offloadPlayer = OffloadPlayer.open(this, uri, startUs, onlyTrack, new OffloadPlayer.Listener() {
+                    @Override
+                    public void onCompletion() {
+                        loop.post(EV_TRACK_END, trackIndex);
+                    }
+
+                    @Override
+                    public void onTearDown(OffloadPlayer player, long positionUs) {
+                        loop.post(EV_OFFLOAD_LOST, positionUs, player);
+                    }
+                });
+                if (offloadPlayer != null) offloadTracks++;
+                else offloadFallbacks++;
+            }
+            skipOffloadOnce = false;
+
+            if (offloadPlayer == null) {
+                mediaPlayer = playerPool.acquire(this, uri);
+                mediaPlayerUri = uri;
+                // A single track loops natively; nothing is rebuilt when it ends
+                mediaPlayer.setLooping(onlyTrack);
+                mediaPlayer.setOnCompletionListener(mp -> loop.post(EV_TRACK_END, trackIndex));
+                // Pooled players may still sit where they stopped
+                if (resuming) mediaPlayer.seekTo(startUs / 1000, MediaPlayer.SEEK_PREVIOUS_SYNC);
+                else mediaPlayer.seekTo(startUs / 1000, MediaPlayer.SEEK_CLOSEST_SYNC);
+            }
+            setLogarithmicVolume(0);
+            currentVolume = 0;
+            return true;
         } catch (Exception e) {
             Log.e("ChaosService", "Error playing track", e);
+            return false;
         }
     }
     
+    // The current track finished decoding; it starts if playback has got to it meanwhile
+    private void onClipReady() {
+        awaitingClip = false;
+        skipClipDecodeOnce = true;
+        if (state == State.STOPPED || !openCurrentTrack()) return;
+        // Paused or without focus, the resume paths start the opened player
+        if (state != State.RUNNING || (isInSilence() && !preRolled)) return;
+        startLocalPlayer();
+        if (!isInSilence()) fadeVolume(0, minVolume + (maxVolume - minVolume) / 2, 2000, null);
+    }
+
+    private void playNextTrack() {
+        if (state == State.STOPPED || tracks == null) return;
+        currentTrackIndex = (currentTrackIndex + 1) % tracks.size();
+        initAndPlayCurrentTrack();
+        checkpoint();
+    }
+    
+    // A new fade replaces the one in progress, including its onComplete
     private void fadeVolume(float from, float to, int durationMs, Runnable onComplete) {
-        final int steps = 20;
-        final long stepDelay = Math.max(20, durationMs / steps);
-        final float diff = to - from;
+        cancelFade();
+        int generation = fadeGeneration;
+        fadeFrom = from;
+        fadeTo = to;
+        fadeOnComplete = onComplete;
+        if (isExternalMode) {
+            // Only real index changes reach AudioManager, each at the moment the ramp crosses it
+            volumeDriver.rampTo(from, to, durationMs, () -> loop.post(EV_FADE_DONE, generation));
+            return;
+        }
+        fadeStep = 0;
+        fadeStepDelay = Math.max(20, durationMs / FADE_STEPS);
+        loop.postDelayed(EV_FADE_STEP, generation, 0);
+    }
 
-        new Thread(() -> {
-            for (int i = 1; i <= steps; i++) {
-                if (!isServiceRunning) return;
-                if (isManuallyPaused) return; 
-                
-                float progress = (float) i / steps;
-                float newVol = from + (diff * progress);
-                
-                chaosHandler.post(() -> {
-                    if (isManuallyPaused) return;
-
-                    if (isExternalMode) {
-                        setStreamVolume(newVol);
-                    } else {
-                        if (mediaPlayer != null) {
-                            try {
-                                setLogarithmicVolume(newVol);
-                            } catch (IllegalStateException e) {}
-                        }
-                    }
-                    currentVolume = newVol;
-                });
+    private void cancelFade() {
+        fadeGeneration++;
+        fadeOnComplete = null;
+        loop.cancel(EV_FADE_STEP);
+        loop.cancel(EV_FADE_DONE);
+    }
 
-                try { Thread.sleep(stepDelay); } catch (InterruptedException e) { return; }
+    private void onFadeStep(int generation) {
+        if (generation != fadeGeneration || state == State.STOPPED || state == State.PAUSED) return;
+        ChaosTrace.begin("ChaosService.fadeStep");
+        try {
+            fadeStep++;
+            float newVol = fadeFrom + (fadeTo - fadeFrom) * fadeStep / FADE_STEPS;
+            if (hasLocalPlayer()) {
+                try {
+                    setLogarithmicVolume(newVol);
+                } catch (IllegalStateException e) {}
             }
-            if (onComplete != null && !isManuallyPaused) chaosHandler.post(onComplete);
-        }).start();
+            currentVolume = newVol;
+            ChaosTrace.counter("chaos.volume", Math.round(newVol * 100));
+        } finally {
+            ChaosTrace.end();
+        }
+        if (fadeStep < FADE_STEPS) loop.postDelayed(EV_FADE_STEP, generation, fadeStepDelay);
+        else loop.postDelayed(EV_FADE_DONE, generation, fadeStepDelay);
+    }
+
+    private void onFadeDone(int generation) {
+        if (generation != fadeGeneration) return;
+        currentVolume = fadeTo;
+        ChaosTrace.counter("chaos.volume", Math.round(fadeTo * 100));
+        Runnable onComplete = fadeOnComplete;
+        fadeOnComplete = null;
+        if (onComplete != null && state != State.STOPPED && state != State.PAUSED) onComplete.run();
     }
     
     private void setLogarithmicVolume(float rawVolume) {
-        if (mediaPlayer == null) return;
+        if (!hasLocalPlayer()) return;
         float powerVol = (float) Math.pow(rawVolume, 2.5);
         if (powerVol > 1.0f) powerVol = 1.0f;
         if (powerVol < 0.0f) powerVol = 0.0f;
-        mediaPlayer.setVolume(powerVol, powerVol);
+        if (pcmPlayer != null) pcmPlayer.setVolume(powerVol);
+        else if (offloadPlayer != null) offloadPlayer.setVolume(powerVol);
+        else mediaPlayer.setVolume(powerVol, powerVol);
     }
-    
-    private void setStreamVolume(float percent) {
-        if (audioManager == null) return;
-        int max = audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
-        int index = Math.round(percent * max);
-        try {
-            audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, index, 0); // 0 = no UI flags
-        } catch (SecurityException e) {
-            // Might happen in DND mode
+
+    // Local player helpers: exactly one of mediaPlayer / pcmPlayer / offloadPlayer is active at a time
+    private boolean hasLocalPlayer() {
+        return mediaPlayer != null || pcmPlayer != null || offloadPlayer != null;
+    }
+
+    private boolean isLocalPlaying() {
+        if (pcmPlayer != null) return pcmPlayer.isPlaying();
+        if (offloadPlayer != null) return offloadPlayer.isPlaying();
+        return mediaPlayer != null && mediaPlayer.isPlaying();
+    }
+
+    private void startLocalPlayer() {
+        if (pcmPlayer != null) pcmPlayer.start();
+        else if (offloadPlayer != null) offloadPlayer.start();
+        else if (mediaPlayer != null) mediaPlayer.start();
+        else return;
+        notePlaying(true);
+        StartupMetrics.onAudioStarted();
+    }
+
+    private void pauseLocalPlayer() {
+        if (pcmPlayer != null) pcmPlayer.pause();
+        else if (offloadPlayer != null) offloadPlayer.pause();
+        else if (mediaPlayer != null) mediaPlayer.pause();
+        notePlaying(false);
+    }
+
+    // Play-time accounting for the offload share; called on every local start, pause and release
+    private void notePlaying(boolean playing) {
+        long now = loop.now();
+        if (localPlayingSince > 0) {
+            long ms = now - localPlayingSince;
+            localPlayMs += ms;
+            if (localPlayingOffloaded) offloadPlayMs += ms;
         }
+        localPlayingSince = playing ? now : 0;
+        localPlayingOffloaded = playing && offloadPlayer != null;
     }
-    
-    private void sendMediaKey(int keyCode) {
-         if (audioManager == null) return;
-         try {
-             long eventTime = SystemClock.uptimeMillis();
-             KeyEvent down = new KeyEvent(eventTime, eventTime, KeyEvent.ACTION_DOWN, keyCode, 0);
-             KeyEvent up = new KeyEvent(eventTime, eventTime, KeyEvent.ACTION_UP, keyCode, 0);
-             
-             audioManager.dispatchMediaKeyEvent(down);
-             audioManager.dispatchMediaKeyEvent(up);
-         } catch (Exception e) {
-             Log.e("ChaosService", "Failed to send media key", e);
-         }
+
+    // The system took the offloaded track; carry on from the same spot through MediaPlayer
+    private void onOffloadLost(long positionUs) {
+        offloadTearDowns++;
+        Log.i("ChaosService", "Offload torn down at " + positionUs / 1000 + " ms");
+        boolean wasPlaying = localPlayingSince > 0;
+        releaseLocalPlayer();
+        pendingSeekMs = (int) Math.max(1, positionUs / 1000);
+        skipOffloadOnce = true;
+        // Otherwise the next play phase or resume builds the player
+        if (wasPlaying) initAndPlayCurrentTrack();
+    }
+
+    private String getOffloadStats() {
+        return String.format(Locale.US, "%d of %d s local playback offloaded (%d%%), %d tracks offloaded, %d fell back, %d torn down",
+                offloadPlayMs / 1000, localPlayMs / 1000, localPlayMs > 0 ? offloadPlayMs * 100 / localPlayMs : 0,
+                offloadTracks, offloadFallbacks, offloadTearDowns);
     }
 
+    private void releaseLocalPlayer() {
+        notePlaying(false);
+        awaitingClip = false;
+        if (offloadPlayer != null) {
+            offloadPlayer.release();
+            offloadPlayer = null;
+        }
+        if (pcmPlayer != null) {
+            pcmPlayer.release();
+            pcmPlayer = null;
+            mixEngine = null;
+        }
+        if (mediaPlayer != null) {
+            playerPool.recycle(mediaPlayer, mediaPlayerUri);
+            mediaPlayer = null;
+        }
+    }
+    
+    // Volume as last set, including the point an external-mode ramp has reached
+    private float liveVolume() {
+        return isExternalMode ? volumeDriver.getLevel() : currentVolume;
+    }
+    
     private void stopChaos() {
-        isServiceRunning = false;
-        isManuallyPaused = false;
+        if (state != State.STOPPED) {
+            notePlaying(false);
+            Log.i("ChaosService", "Event loop: " + loop.getStats());
+            loop.writeTrace(new File(getCacheDir(), "chaos_trace.txt"));
+            Log.i("ChaosService", "Clip cache: " + ClipCache.getInstance(this).getStats());
+            if (!isExternalMode) {
+                Log.i("ChaosService", "Player pool: " + playerPool.getStats());
+                Log.i("ChaosService", "Silence: " + getSilenceStats());
+                if (useOffload) Log.i("ChaosService", "Offload: " + getOffloadStats());
+            }
+            if (isExternalMode) {
+                Log.i("ChaosService", "Volume driver: " + volumeDriver.getStats());
+                if (transport != null) Log.i("ChaosService", "Transport: " + transport.getStats());
+            }
+        }
+        state = State.STOPPED;
+        tracePhase(null);
+        if (snapshot != null) {
+            snapshot.close();
+            snapshot = null;
+        }
         
         if (wakeLock != null && wakeLock.isHeld()) wakeLock.release();
         
         // Restore volume if we were in external mode
-        if (isExternalMode && originalStreamVolume != -1) {
-            try {
-                audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, originalStreamVolume, 0);
-            } catch (Exception e) {}
+        if (isExternalMode) {
+            volumeDriver.setTarget(null);
+            if (originalStreamVolume != -1) volumeDriver.setIndex(originalStreamVolume);
         }
         
-        if (mediaPlayer != null) {
-            try {
-                if (mediaPlayer.isPlaying()) mediaPlayer.stop();
-                mediaPlayer.release();
-            } catch (Exception e) { e.printStackTrace(); }
-            mediaPlayer = null;
-        }
-        if (sleepTimer != null) {
-            sleepTimer.cancel();
-            sleepTimer = null;
-        }
-        if (phaseTimer != null) {
-            phaseTimer.cancel();
-            phaseTimer = null;
+        releaseLocalPlayer();
+        playerPool.releaseAll();
+        releasedForSilence = false;
+        loop.cancel(EV_SLEEP_TIMER);
+        loop.cancel(EV_CHECKPOINT);
+        sessionEndsAt = 0;
+        cancelFade();
+        if (session != null) {
+            Log.i("ChaosService", "Session: " + session.getStats());
+            session.stop();
+            session = null;
         }
         
         abandonAudioFocus();
+        if (transport != null) {
+            transport.stop();
+            transport = null;
+        }
         
         try {
             unregisterReceiver(noisyReceiver);
@@ -662,10 +1482,14 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
 
     @Override
     public void onAudioFocusChange(int focusChange) {
+        loop.post(EV_FOCUS, focusChange);
+    }
+
+    private void onFocusChange(int focusChange) {
         if (isExternalMode) {
             // In External Mode, we generally ignore focus loss because we deliberately abandon it to let others play.
             // But if we have gained focus (to silence others) and then lose it, it means someone else pressed play manually.
-            if (isInIntermittentPause && (focusChange == AudioManager.AUDIOFOCUS_LOSS || focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT)) {
+            if (isInSilence() && (focusChange == AudioManager.AUDIOFOCUS_LOSS || focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT)) {
                 // Someone else started playing during our silence phase.
                 // We could fight it, or just accept it. Let's respect user intent and pause our service logic manually.
                 pauseChaos();
@@ -675,32 +1499,69 @@ public class ChaosService extends Service implements AudioManager.OnAudioFocusCh
 
         switch (focusChange) {
             case AudioManager.AUDIOFOCUS_LOSS:
-                if (isServiceRunning) pauseChaos();
+                pauseChaos();
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                if (mediaPlayer != null && mediaPlayer.isPlaying()) {
-                    mediaPlayer.pause();
-                    isPausedByFocus = true;
-                }
+                if (state != State.RUNNING) break;
+                // Also in silence, so the next play phase waits for focus to come back
+                if (isLocalPlaying()) pauseLocalPlayer();
+                state = State.FOCUS_LOST;
                 break;
             case AudioManager.AUDIOFOCUS_GAIN:
-                if (isPausedByFocus && isServiceRunning && !isManuallyPaused && !isInIntermittentPause) {
-                    if (mediaPlayer != null) mediaPlayer.start();
-                    isPausedByFocus = false;
-                } else if (isPausedByFocus && isServiceRunning && isInIntermittentPause) {
-                    isPausedByFocus = false;
-                }
+                if (state != State.FOCUS_LOST) break;
+                state = State.RUNNING;
+                if (isLayeredMode) startLocalPlayer();
+                else if (!isInSilence()) sessionBackend.onPlayPhase();
                 break;
         }
     }
 
     @Override
-    public IBinder onBind(Intent intent) { return null; }
+    public IBinder onBind(Intent intent) { return binder; }
+
+    public boolean isSessionRunning() {
+        return state != State.STOPPED;
+    }
+
+    /**
+     * Swaps the chaos parameters of the running session. Nothing restarts: the current phase and
+     * fade run out as scheduled, and the next phase length and volume target are drawn from the new
+     * ranges. The sleep timer and mode are not affected.
+     */
+    public void updateParameters(ChaosParams params) {
+        loop.post(EV_PARAMS, 0, params);
+    }
+
+    private void applyParameters(ChaosParams params) {
+        setParams(params);
+        if (mixEngine != null) mixEngine.setParams(params);
+        if (session != null) session.setParams(params);
+        if (snapshot != null && state != State.STOPPED) {
+            snapshot.params = params;
+            fillSnapshotState();
+            try {
+                snapshot.save();
+            } catch (IOException e) {
+                Log.w("ChaosService", "Could not write session snapshot", e);
+            }
+        }
+    }
 
     @Override
     public void onDestroy() {
-        stopChaos();
+        // The stop unregisters the receiver and releases the media session and focus, so it has to
+        // finish before the service is gone; anything queued before it runs first
+        CountDownLatch stopped = new CountDownLatch(1);
+        loop.post(EV_DESTROY, 0, stopped);
+        try {
+            if (!stopped.await(DESTROY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w("ChaosService", "Event loop did not stop within " + DESTROY_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        loop.quitSafely();
         super.onDestroy();
     }
 }
\ No newline at end of file
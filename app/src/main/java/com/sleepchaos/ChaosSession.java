@@ -0,0 +1,252 @@
+package com.sleepchaos;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Play/silence phases and volume drift of a single-track session, free of Android types so it
+ * runs the same under the service's Handler and under the virtual clock in SessionSoakTest.
+ *
+ * Phase ends are kept as absolute times on the {@link Scheduler}'s clock; progress ticks and the
+ * end of a phase are derived from that, so a late callback delays one tick but never shifts the
+ * phases after it.
+ *
+ * A silence phase also gets a pre-roll callback the backend's lead time before it ends, so audio
+ * released during the silence can be ready again when the next play phase starts.
+ */
+public class ChaosSession {
+
+    private static final long TICK_MS = 1000;
+    private static final int FADE_OUT_MS = 2000;
+    // Silences with at least this much left after the fade-out let a local backend give its player back
+    static final long RELEASE_SILENCE_MS = 30_000;
+    // Pre-roll lead: twice the slowest warm-up seen, within these bounds
+    static final long PREROLL_MIN_MS = 1_000;
+    static final long PREROLL_MAX_MS = 5_000;
+
+    /**
+     * The pre-roll lead for a silence with {@code remainingMs} left, for a backend whose player
+     * has taken up to {@code maxWarmUpMs} to start again; 0 when the silence keeps the player.
+     */
+    static long preRollLeadMs(long remainingMs, long maxWarmUpMs) {
+        if (remainingMs < RELEASE_SILENCE_MS) return 0;
+        return Math.max(PREROLL_MIN_MS, Math.min(PREROLL_MAX_MS, 2 * maxWarmUpMs));
+    }
+
+    /** Clock and callback queue. cancelAll drops everything posted so far. */
+    public interface Scheduler {
+        long now();
+        void postDelayed(Runnable r, long delayMs);
+        void cancelAll();
+    }
+
+    /** Audio side of the session. Callbacks arrive on the scheduler's thread. */
+    public interface Backend {
+        // Start or continue audio for a play phase, including its fade-in
+        void onPlayPhase();
+        // The fade-out at the start of a silence phase finished
+        void onSilence();
+        void fadeVolume(float from, float to, int durationMs, Runnable onComplete);
+        float getVolume();
+        void onPhaseTick(boolean playing, long durationMs, long remainingMs);
+        // How long before the end of a silence with remainingMs left onPreRoll should run; 0 for never
+        long getPreRollLeadMs(long remainingMs);
+        // The next play phase starts in about the lead time given
+        void onPreRoll();
+    }
+
+    private final Scheduler scheduler;
+    private final Backend backend;
+    private final Random random;
+    private ChaosParams params;
+
+    private boolean running;
+    private boolean paused;
+    private boolean silence;
+    private long phaseDurationMs;
+    private long phaseEndsAt;
+    private long pausedRemainingMs;
+
+    private long phases;
+    private long drifts;
+    private long posts;
+    private long maxLatenessMs;
+    private long totalLatenessMs;
+
+    public ChaosSession(Scheduler scheduler, Backend backend, Random random, ChaosParams params) {
+        this.scheduler = scheduler;
+        this.backend = backend;
+        this.random = random;
+        this.params = params;
+    }
+
+    /** Takes effect from the next phase length or drift target drawn. */
+    public void setParams(ChaosParams params) {
+        this.params = params;
+    }
+
+    public void start() {
+        running = true;
+        paused = false;
+        startPlayPhase();
+    }
+
+    public void stop() {
+        running = false;
+        scheduler.cancelAll();
+    }
+
+    public boolean isInSilence() {
+        return silence;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public long getPhaseRemainingMs() {
+        if (paused) return pausedRemainingMs;
+        return Math.max(0, phaseEndsAt - scheduler.now());
+    }
+
+    /** Freezes the phase clock; the audio side is up to the caller. */
+    public void pause() {
+        if (!running || paused) return;
+        pausedRemainingMs = getPhaseRemainingMs();
+        paused = true;
+        scheduler.cancelAll();
+    }
+
+    /**
+     * Continues with {@code remainingMs} left in a silence or play phase, e.g. after {@link #pause}
+     * or from a checkpoint. The caller has already started or silenced the audio.
+     */
+    public void resumePhase(boolean silence, long remainingMs) {
+        running = true;
+        paused = false;
+        this.silence = silence;
+        beginPhase(remainingMs);
+        if (!silence) scheduleVolumeDrift();
+        else schedulePreRoll();
+        startPhaseTimer();
+    }
+
+    public void resume() {
+        resumePhase(silence, pausedRemainingMs);
+    }
+
+    public void startPlayPhase() {
+        if (!running || paused) return;
+        silence = false;
+        scheduler.cancelAll();
+        backend.onPlayPhase();
+        beginPhase(nextDuration(params.minPlaySec, params.maxPlaySec));
+        scheduleVolumeDrift();
+        startPhaseTimer();
+    }
+
+    public void startPausePhase() {
+        if (!running || paused) return;
+        silence = true;
+        scheduler.cancelAll();
+        backend.fadeVolume(backend.getVolume(), 0f, FADE_OUT_MS, backend::onSilence);
+        beginPhase(nextDuration(params.minPauseSec, params.maxPauseSec));
+        schedulePreRoll();
+        startPhaseTimer();
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "%d phases, %d drifts, %d callbacks, lateness max %d ms avg %.1f ms",
+                phases, drifts, posts, maxLatenessMs, phases > 0 ? (double) totalLatenessMs / phases : 0.0);
+    }
+
+    public long getPhases() {
+        return phases;
+    }
+
+    public long getDrifts() {
+        return drifts;
+    }
+
+    public long getCallbacksPosted() {
+        return posts;
+    }
+
+    public long getMaxLatenessMs() {
+        return maxLatenessMs;
+    }
+
+    public long getTotalLatenessMs() {
+        return totalLatenessMs;
+    }
+
+    private void beginPhase(long durationMs) {
+        phaseDurationMs = durationMs;
+        phaseEndsAt = scheduler.now() + durationMs;
+    }
+
+    private void startPhaseTimer() {
+        backend.onPhaseTick(!silence, phaseDurationMs, phaseDurationMs);
+        scheduleTick();
+    }
+
+    private void scheduleTick() {
+        long remaining = phaseEndsAt - scheduler.now();
+        // Land ticks on whole seconds of remaining time, and the last one on the phase end
+        long delay = remaining > TICK_MS ? (remaining - 1) % TICK_MS + 1 : Math.max(0, remaining);
+        post(this::onTick, delay);
+    }
+
+    private void onTick() {
+        if (!running || paused) return;
+        long remaining = phaseEndsAt - scheduler.now();
+        if (remaining > 0) {
+            backend.onPhaseTick(!silence, phaseDurationMs, remaining);
+            scheduleTick();
+            return;
+        }
+        phases++;
+        maxLatenessMs = Math.max(maxLatenessMs, -remaining);
+        totalLatenessMs += -remaining;
+        if (silence) startPlayPhase();
+        else startPausePhase();
+    }
+
+    private void schedulePreRoll() {
+        long remaining = phaseEndsAt - scheduler.now();
+        long lead = backend.getPreRollLeadMs(remaining);
+        if (lead > 0 && remaining > lead) post(this::onPreRoll, remaining - lead);
+    }
+
+    private void onPreRoll() {
+        if (running && !paused && silence) backend.onPreRoll();
+    }
+
+    private void scheduleVolumeDrift() {
+        if (!running || silence || paused) return;
+        ChaosParams p = params;
+        float targetVol = p.minVolume + (random.nextFloat() * (p.maxVolume - p.minVolume));
+
+        int baseDelay = p.driftBaseDelayMs();
+        int variance = baseDelay / 2;
+        int fadeTime = baseDelay / 2 + random.nextInt(variance);
+        int nextDelay = fadeTime + (baseDelay / 2) + random.nextInt(variance);
+
+        drifts++;
+        backend.fadeVolume(backend.getVolume(), targetVol, fadeTime, null);
+
+        if (scheduler.now() + nextDelay < phaseEndsAt) {
+            post(this::scheduleVolumeDrift, nextDelay);
+        }
+    }
+
+    private void post(Runnable r, long delayMs) {
+        posts++;
+        scheduler.postDelayed(r, delayMs);
+    }
+
+    private long nextDuration(int minSec, int maxSec) {
+        if (minSec >= maxSec) return minSec * 1000L;
+        return (minSec + random.nextInt(maxSec - minSec + 1)) * 1000L;
+    }
+}
@@ -0,0 +1,47 @@
+package com.sleepchaos;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Sections and counters for system traces (Perfetto, systrace) on the playback and export paths.
+ *
+ * Nothing is recorded unless the app is being traced: sections cost the platform's own enabled
+ * check, and counters and async spans (Android 10+) return before doing any work. With
+ * {@link #ENABLED} false the bodies compile away and R8 drops the calls.
+ */
+public final class ChaosTrace {
+
+    // On in debug builds; release builds only with -PtraceSections (see app/build.gradle)
+    static final boolean ENABLED = BuildConfig.TRACE_SECTIONS;
+    private static final boolean HAS_COUNTERS = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+
+    private ChaosTrace() {}
+
+    /** True while a trace is recording; guard work that only feeds a counter with it. */
+    public static boolean isTracing() {
+        return ENABLED && HAS_COUNTERS && Trace.isEnabled();
+    }
+
+    /** Starts a section on this thread; always pair with {@link #end}, in a finally if it can throw. */
+    public static void begin(String section) {
+        if (ENABLED) Trace.beginSection(section);
+    }
+
+    public static void end() {
+        if (ENABLED) Trace.endSection();
+    }
+
+    public static void counter(String name, long value) {
+        if (isTracing()) Trace.setCounter(name, value);
+    }
+
+    // Spans that outlive one callback, such as a whole phase; the cookie tells overlapping ones apart
+    public static void beginAsync(String name, int cookie) {
+        if (isTracing()) Trace.beginAsyncSection(name, cookie);
+    }
+
+    public static void endAsync(String name, int cookie) {
+        if (isTracing()) Trace.endAsyncSection(name, cookie);
+    }
+}
@@ -0,0 +1,259 @@
+package com.sleepchaos;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide LRU cache of short clips decoded once into PCM. Restarting or looping a cached clip
+ * is a memory copy instead of a new player and a new decode. Evicted arrays are pooled and reused
+ * for the next clip that fits.
+ */
+public class ClipCache {
+
+    private static final String TAG = "ClipCache";
+    public static final long MAX_CLIP_US = 30_000_000L;
+    private static final long MAX_BUDGET_BYTES = 32L * 1024 * 1024;
+    private static final int MAX_POOLED_ARRAYS = 4;
+    private static final int DECODE_BLOCK_FRAMES = 4096;
+
+    private static ClipCache instance;
+
+    private static class Clip {
+        final short[] pcm;
+        final int frames;
+        int refCount;
+        boolean evicted;
+
+        Clip(short[] pcm, int frames) {
+            this.pcm = pcm;
+            this.frames = frames;
+        }
+    }
+
+    private final long budgetBytes;
+    private final LinkedHashMap<String, Clip> clips = new LinkedHashMap<>(16, 0.75f, true);
+    // Sources that are too long or failed to decode, so misses do not re-probe them
+    private final Set<String> uncacheable = new HashSet<>();
+    private final ArrayList<short[]> pool = new ArrayList<>();
+    private long usedBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // Background decodes for openCached() misses, one at a time
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(r -> new Thread(r, "ClipDecode"));
+
+    public static synchronized ClipCache getInstance(Context context) {
+        if (instance == null) {
+            ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            long heapBudget = am.getMemoryClass() * 1024L * 1024L / 8;
+            instance = new ClipCache(Math.min(MAX_BUDGET_BYTES, heapBudget));
+        }
+        return instance;
+    }
+
+    ClipCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns a source reading {@code uri} from memory, decoding it on a miss, or null when the
+     * source is too long or too large to cache. Callers must {@link PcmSource#release} the result.
+     * Blocks for the decode; from a playback thread use {@link #openCached} and {@link #decodeAsync}.
+     */
+    public PcmSource open(Context context, Uri uri, boolean loop) {
+        String key = uri.toString();
+        synchronized (this) {
+            Clip clip = clips.get(key);
+            if (clip != null) {
+                hits++;
+                clip.refCount++;
+                return new ClipSource(clip, loop);
+            }
+            if (uncacheable.contains(key)) return null;
+            misses++;
+        }
+
+        Clip decoded = decode(context, uri);
+        synchronized (this) {
+            if (decoded == null) {
+                uncacheable.add(key);
+                return null;
+            }
+            Clip raced = clips.get(key);
+            if (raced != null) {
+                recycle(decoded.pcm);
+                decoded = raced;
+            } else {
+                clips.put(key, decoded);
+                usedBytes += decoded.pcm.length * 2L;
+                trim();
+            }
+            decoded.refCount++;
+            return new ClipSource(decoded, loop);
+        }
+    }
+
+    /** A source reading {@code uri} from memory if it is cached already, else null. Never decodes. */
+    public synchronized PcmSource openCached(Uri uri, boolean loop) {
+        Clip clip = clips.get(uri.toString());
+        if (clip == null) return null;
+        hits++;
+        clip.refCount++;
+        return new ClipSource(clip, loop);
+    }
+
+    /**
+     * Decodes {@code uri} into the cache on a background thread and then runs {@code onDone} there,
+     * whether or not it turned out cacheable. False, and nothing runs, if it is known not to be.
+     */
+    public boolean decodeAsync(Context context, Uri uri, Runnable onDone) {
+        String key = uri.toString();
+        synchronized (this) {
+            if (uncacheable.contains(key)) return false;
+        }
+        Context app = context.getApplicationContext();
+        decoder.execute(() -> {
+            PcmSource source = open(app, uri, false);
+            if (source != null) source.release();
+            onDone.run();
+        });
+        return true;
+    }
+
+    private Clip decode(Context context, Uri uri) {
+        DecodedSource source = null;
+        try {
+            source = new DecodedSource(context, uri);
+            long durationUs = source.getDurationUs();
+            if (durationUs <= 0 || durationUs > MAX_CLIP_US) return null;
+            long bytes = (ChaosSchedule.msToFrames(durationUs / 1000) + DECODE_BLOCK_FRAMES) * PcmSource.CHANNELS * 2;
+            if (bytes > budgetBytes) return null;
+
+            source.setLooping(false);
+            short[] pcm = obtain((int) (bytes / 2));
+            int frames = 0;
+            int capacity = pcm.length / PcmSource.CHANNELS;
+            while (frames < capacity) {
+                int n = source.read(pcm, frames * PcmSource.CHANNELS, Math.min(DECODE_BLOCK_FRAMES, capacity - frames));
+                if (n < 0) break;
+                if (n == 0) {
+                    // Stalled decoder; play this one through the regular path instead
+                    recycleLocked(pcm);
+                    return null;
+                }
+                frames += n;
+            }
+            return new Clip(pcm, frames);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to decode clip " + uri, e);
+            return null;
+        } finally {
+            if (source != null) source.release();
+        }
+    }
+
+    private synchronized short[] obtain(int samples) {
+        short[] best = null;
+        for (short[] a : pool) {
+            if (a.length >= samples && (best == null || a.length < best.length)) best = a;
+        }
+        if (best != null) {
+            pool.remove(best);
+            return best;
+        }
+        return new short[samples];
+    }
+
+    private synchronized void recycleLocked(short[] pcm) {
+        recycle(pcm);
+    }
+
+    private void recycle(short[] pcm) {
+        if (pool.size() >= MAX_POOLED_ARRAYS) pool.remove(0);
+        pool.add(pcm);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Clip>> it = clips.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Clip clip = it.next().getValue();
+            it.remove();
+            usedBytes -= clip.pcm.length * 2L;
+            evictions++;
+            clip.evicted = true;
+            // Clips still being played are recycled once their last reader releases them
+            if (clip.refCount == 0) recycle(clip.pcm);
+        }
+    }
+
+    private synchronized void releaseClip(Clip clip) {
+        clip.refCount--;
+        if (clip.refCount == 0 && clip.evicted) recycle(clip.pcm);
+    }
+
+    public synchronized float getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0f : (float) hits / total;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.US, "clips=%d hits=%d misses=%d hitRate=%.2f used=%dKB/%dKB evictions=%d",
+                clips.size(), hits, misses, getHitRate(), usedBytes / 1024, budgetBytes / 1024, evictions);
+    }
+
+    /** Reads a cached clip from memory, wrapping to the start when looping. */
+    private class ClipSource implements PcmSource {
+        private final Clip clip;
+        private final boolean loop;
+        private int position;
+        private boolean released;
+
+        ClipSource(Clip clip, boolean loop) {
+            this.clip = clip;
+            this.loop = loop;
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int frames) {
+            if (clip.frames == 0) return -1;
+            int done = 0;
+            while (done < frames) {
+                if (position >= clip.frames) {
+                    if (!loop) return done > 0 ? done : -1;
+                    position = 0;
+                }
+                int n = Math.min(frames - done, clip.frames - position);
+                System.arraycopy(clip.pcm, position * CHANNELS, buffer, offset + done * CHANNELS, n * CHANNELS);
+                position += n;
+                done += n;
+            }
+            return done;
+        }
+
+        @Override
+        public void release() {
+            if (released) return;
+            released = true;
+            releaseClip(clip);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.sleepchaos;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Decodes a media file into {@link PcmSource} blocks, by default looping seamlessly at the end of the file.
+ * Mono is duplicated to both channels and other sample rates are linearly resampled to
+ * {@link PcmSource#SAMPLE_RATE}.
+ *
+ * Given a {@link DecoderPool}, the decoder comes from it and goes back to it on release.
+ */
+public class DecodedSource implements PcmSource {
+
+    private static final String TAG = "DecodedSource";
+    private static final long TIMEOUT_US = 10000;
+    private static final int MAX_EMPTY_POLLS = 50;
+
+    private final MediaExtractor extractor;
+    private final MediaCodec decoder;
+    private final MediaFormat trackFormat;
+    private final DecoderPool pool;
+    private boolean failed;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    private final long durationUs;
+    private int sourceChannels;
+    private int sourceRate;
+    private double step;
+    private boolean looping = true;
+    // When set, each loop restarts at a random index point instead of 0
+    private SeekIndex loopIndex;
+    private SeededRandom loopRandom;
+    // RNG state before each restart picked on the input side whose audio has not come out yet
+    private final ArrayDeque<Long> pendingLoopStates = new ArrayDeque<>();
+    private long lastOutputTimeUs = -1;
+
+    // Last decoded block as interleaved stereo; grows to the decoder's largest block once
+    private short[] staging = new short[0];
+    private int stagingFrames;
+    // Read position in staging frames; -1 addresses the final frame of the previous block
+    private double position;
+    private short prevLeft;
+    private short prevRight;
+    // Presentation time of staging frame 0; decoded audio before skipUntilUs is dropped
+    private long stagingTimeUs;
+    private long skipUntilUs = -1;
+
+    private boolean inputDone = false;
+    private boolean outputDone = false;
+
+    public DecodedSource(Context context, Uri uri) throws IOException {
+        this(context, uri, null);
+    }
+
+    public DecodedSource(Context context, Uri uri, DecoderPool pool) throws IOException {
+        this.pool = pool;
+        extractor = new MediaExtractor();
+        extractor.setDataSource(context, uri, null);
+        int trackIndex = AudioExporter.selectAudioTrack(extractor);
+        if (trackIndex < 0) {
+            extractor.release();
+            throw new IOException("No audio track found in file");
+        }
+        extractor.selectTrack(trackIndex);
+        MediaFormat format = extractor.getTrackFormat(trackIndex);
+        trackFormat = format;
+        durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : -1;
+        applyFormat(format);
+
+        try {
+            MediaCodec pooled = pool != null ? pool.takeIdle(format) : null;
+            if (pooled != null) {
+                decoder = pooled;
+                // HE-AAC (SBR/PS) decodes to another rate or channel count than the container declares
+                applyFormat(pooled.getOutputFormat());
+            } else {
+                decoder = pool != null ? pool.newDecoder(format) : DecoderPool.create(format);
+            }
+        } catch (IOException | RuntimeException e) {
+            extractor.release();
+            throw e;
+        }
+    }
+
+    // When disabled, read() returns -1 after the last frame instead of wrapping around
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    /**
+     * Restarts decoding at {@code timeUs}. Lands exactly when given a {@link SeekIndex} point,
+     * otherwise at the sync sample before it.
+     */
+    public void seekTo(long timeUs) {
+        extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        decoder.flush();
+        stagingFrames = 0;
+        stagingTimeUs = timeUs;
+        position = 0;
+        inputDone = false;
+        outputDone = false;
+        // Flushed along with the decoder
+        if (loopRandom != null && !pendingLoopStates.isEmpty()) {
+            loopRandom.setState(pendingLoopStates.peekFirst());
+        }
+        pendingLoopStates.clear();
+        lastOutputTimeUs = -1;
+    }
+
+    /** Like {@link #seekTo} but decodes forward from the sync sample and starts exactly at {@code timeUs}. */
+    public void seekExact(long timeUs) {
+        seekTo(timeUs);
+        skipUntilUs = timeUs;
+    }
+
+    /** Source time of the next frame read() will return. */
+    public long getPositionUs() {
+        return stagingTimeUs + (long) (Math.max(0, position) * 1_000_000L / sourceRate);
+    }
+
+    public void setLoopStarts(SeekIndex index, SeededRandom random) {
+        loopIndex = index;
+        loopRandom = random;
+    }
+
+    /**
+     * The loop RNG state that goes with {@link #getPositionUs}: restarts already picked for input
+     * the decoder has not output yet are not counted. Restoring it and seeking there picks the same
+     * loop starts again.
+     */
+    public long getLoopStateAtPosition() {
+        return pendingLoopStates.isEmpty() ? loopRandom.getState() : pendingLoopStates.peekFirst();
+    }
+
+    // Container duration, or -1 if the file does not declare one
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    private void applyFormat(MediaFormat format) {
+        sourceChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        sourceRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        step = (double) sourceRate / SAMPLE_RATE;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int frames) {
+        int done = 0;
+        int idx = offset;
+        while (done < frames) {
+            int i0 = (int) Math.floor(position);
+            if (i0 + 1 >= stagingFrames) {
+                boolean refilled;
+                ChaosTrace.begin("DecodedSource.dequeue");
+                try {
+                    refilled = refill();
+                } finally {
+                    ChaosTrace.end();
+                }
+                ChaosTrace.counter("decode.staged", stagingFrames);
+                if (!refilled) {
+                    if (done > 0) return done;
+                    return outputDone ? -1 : 0;
+                }
+                continue;
+            }
+            float frac = (float) (position - i0);
+            int a = i0 * 2;
+            int b = a + 2;
+            short l0 = i0 < 0 ? prevLeft : staging[a];
+            short r0 = i0 < 0 ? prevRight : staging[a + 1];
+            buffer[idx++] = (short) (l0 + (staging[b] - l0) * frac);
+            buffer[idx++] = (short) (r0 + (staging[b + 1] - r0) * frac);
+            position += step;
+            done++;
+        }
+        return done;
+    }
+
+    private boolean refill() {
+        if (stagingFrames > 0) {
+            prevLeft = staging[(stagingFrames - 1) * 2];
+            prevRight = staging[(stagingFrames - 1) * 2 + 1];
+            position -= stagingFrames;
+            stagingFrames = 0;
+        }
+        int emptyPolls = 0;
+        try {
+            while (!outputDone && emptyPolls < MAX_EMPTY_POLLS) {
+                if (!inputDone) feedInput();
+
+                int outputIndex = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    applyFormat(decoder.getOutputFormat());
+                } else if (outputIndex >= 0) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) outputDone = true;
+                    if (info.size > 0) {
+                        copyToStaging(decoder.getOutputBuffer(outputIndex));
+                    }
+                    decoder.releaseOutputBuffer(outputIndex, false);
+                    if (stagingFrames > 0) return true;
+                } else {
+                    emptyPolls++;
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Decoder failed", e);
+            outputDone = true;
+            failed = true;
+        }
+        return false;
+    }
+
+    private void feedInput() {
+        int inputIndex = decoder.dequeueInputBuffer(0);
+        if (inputIndex < 0) return;
+        ByteBuffer inputBuffer = decoder.getInputBuffer(inputIndex);
+        int sampleSize = extractor.readSampleData(inputBuffer, 0);
+        if (sampleSize < 0 && looping) {
+            // Loop: rewind the extractor without flushing so the decoder runs on seamlessly
+            long restartUs = 0;
+            if (loopIndex != null) {
+                pendingLoopStates.addLast(loopRandom.getState());
+                restartUs = loopIndex.pickStartUs(loopRandom);
+            }
+            extractor.seekTo(restartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            sampleSize = extractor.readSampleData(inputBuffer, 0);
+        }
+        if (sampleSize < 0) {
+            inputDone = true;
+            decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return;
+        }
+        decoder.queueInputBuffer(inputIndex, 0, sampleSize, extractor.getSampleTime(), 0);
+        extractor.advance();
+    }
+
+    private void copyToStaging(ByteBuffer output) {
+        output.position(info.offset);
+        output.limit(info.offset + info.size);
+        ShortBuffer samples = output.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        int channels = Math.max(1, sourceChannels);
+        int frames = samples.remaining() / channels;
+        int skip = 0;
+        // Time going backwards is output reaching the restart of a loop
+        if (info.presentationTimeUs < lastOutputTimeUs) pendingLoopStates.pollFirst();
+        lastOutputTimeUs = info.presentationTimeUs;
+        stagingTimeUs = info.presentationTimeUs;
+        if (skipUntilUs >= 0) {
+            skip = (int) Math.min(frames, Math.max(0, (skipUntilUs - info.presentationTimeUs) * sourceRate / 1_000_000L));
+            if (skip < frames) {
+                skipUntilUs = -1;
+                stagingTimeUs += skip * 1_000_000L / sourceRate;
+            }
+            frames -= skip;
+        }
+        if (staging.length < frames * 2) staging = new short[frames * 2];
+        for (int f = 0; f < frames; f++) {
+            int s = (f + skip) * channels;
+            short left = samples.get(s);
+            short right = channels > 1 ? samples.get(s + 1) : left;
+            staging[f * 2] = left;
+            staging[f * 2 + 1] = right;
+        }
+        stagingFrames = frames;
+    }
+
+    @Override
+    public void release() {
+        if (pool != null && !failed) pool.recycle(decoder, trackFormat);
+        else DecoderPool.stopAndRelease(decoder);
+        extractor.release();
+    }
+}
@@ -0,0 +1,144 @@
+package com.sleepchaos;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Idle audio decoders kept configured between {@link DecodedSource}s. A decoder handed back is
+ * flushed rather than stopped, so the next source with the same format (codec type, rate,
+ * channels and codec config) takes it as is instead of creating and configuring a new one.
+ * Thread-safe; meant for one process's export workers.
+ */
+public class DecoderPool {
+
+    private static final int MAX_IDLE = 2;
+
+    private static class Entry {
+        final MediaCodec codec;
+        final String key;
+
+        Entry(MediaCodec codec, String key) {
+            this.codec = codec;
+            this.key = key;
+        }
+    }
+
+    // Least recently returned first
+    private final ArrayList<Entry> idle = new ArrayList<>();
+
+    private long created;
+    private long reused;
+    private long released;
+    // Set by releaseAll; a decoder handed back by a worker that outlived it is released
+    private boolean closed;
+
+    /** Identifies formats one configured decoder can take without reconfiguring. */
+    static String keyOf(MediaFormat format) {
+        StringBuilder key = new StringBuilder(format.getString(MediaFormat.KEY_MIME))
+                .append('/').append(format.getInteger(MediaFormat.KEY_SAMPLE_RATE))
+                .append('/').append(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer csd = format.getByteBuffer("csd-" + i);
+            if (csd == null) break;
+            key.append("/csd").append(i).append(':');
+            for (int b = csd.position(); b < csd.limit(); b++) key.append(Integer.toHexString(csd.get(b) & 0xFF)).append('.');
+        }
+        return key.toString();
+    }
+
+    /**
+     * An idle decoder for {@code format}, or null. It was flushed, not reconfigured, so it reports
+     * no INFO_OUTPUT_FORMAT_CHANGED: its {@code getOutputFormat()} still holds what it decoded to.
+     */
+    public synchronized MediaCodec takeIdle(MediaFormat format) {
+        String key = keyOf(format);
+        for (int i = idle.size() - 1; i >= 0; i--) {
+            if (key.equals(idle.get(i).key)) {
+                reused++;
+                return idle.remove(i).codec;
+            }
+        }
+        return null;
+    }
+
+    /** A new started decoder for {@code format}, counted in the stats; for when {@link #takeIdle} had none. */
+    public MediaCodec newDecoder(MediaFormat format) throws IOException {
+        synchronized (this) {
+            created++;
+        }
+        return create(format);
+    }
+
+    static MediaCodec create(MediaFormat format) throws IOException {
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        try {
+            codec.configure(format, null, null, 0);
+            codec.start();
+        } catch (RuntimeException e) {
+            codec.release();
+            throw e;
+        }
+        return codec;
+    }
+
+    /**
+     * Takes a healthy decoder back; the oldest idle one is released if the pool is full. After
+     * {@link #releaseAll} every decoder handed back is released.
+     */
+    public void recycle(MediaCodec codec, MediaFormat format) {
+        try {
+            codec.flush();
+        } catch (IllegalStateException e) {
+            // Not in a state worth keeping
+            codec.release();
+            synchronized (this) {
+                released++;
+            }
+            return;
+        }
+        MediaCodec evicted = null;
+        synchronized (this) {
+            if (closed) {
+                evicted = codec;
+                released++;
+            } else {
+                idle.add(new Entry(codec, keyOf(format)));
+                if (idle.size() > MAX_IDLE) {
+                    evicted = idle.remove(0).codec;
+                    released++;
+                }
+            }
+        }
+        if (evicted != null) stopAndRelease(evicted);
+    }
+
+    /** Releases the idle decoders and closes the pool to any handed back later. */
+    public void releaseAll() {
+        ArrayList<Entry> drained;
+        synchronized (this) {
+            closed = true;
+            drained = new ArrayList<>(idle);
+            released += idle.size();
+            idle.clear();
+        }
+        for (Entry e : drained) stopAndRelease(e.codec);
+    }
+
+    static void stopAndRelease(MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // Already stopped
+        }
+        codec.release();
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.US, "decoders created=%d reused=%d released=%d", created, reused, released);
+    }
+}
@@ -0,0 +1,209 @@
+package com.sleepchaos;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One entry of the export queue: a job {@link ExportService} has accepted and not yet ended.
+ * Saved in {@code files/exports/queue} before it is queued and deleted when it ends, so jobs cut
+ * off with the export process are found again on the next app start. Output names are fixed when
+ * the job is made, so a single export started again picks up its own {@link ExportJournal}.
+ * Runs are counted in the record, so a job that keeps taking its process down can be dropped.
+ * Written like the journal: replaced atomically, with a CRC.
+ */
+public class ExportJob {
+
+    private static final String TAG = "ExportJob";
+    private static final String DIR = "exports/queue";
+    private static final String SUFFIX = ".job";
+    private static final int MAGIC = 0x53435131; // "SCQ1"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8;
+
+    public static final int KIND_EXPORT = 1;
+    public static final int KIND_BATCH = 2;
+    public static final int KIND_RESUME = 3;
+
+    private static long lastId;
+
+    public final long id;
+    public final int kind;
+    // Unused fields are null or 0 for the kind
+    public final Uri source;
+    public final int durationMins;
+    public final ChaosParams params;
+    public final int partMins;
+    public final long[] seeds;
+    public final File journal;
+    // Runs started, saved as each starts; one the process never came back from still counts
+    public int attempts;
+
+    private ExportJob(long id, int kind, Uri source, int durationMins, ChaosParams params, int partMins,
+                      long[] seeds, File journal, int attempts) {
+        this.id = id;
+        this.kind = kind;
+        this.source = source;
+        this.durationMins = durationMins;
+        this.params = params;
+        this.partMins = partMins;
+        this.seeds = seeds;
+        this.journal = journal;
+        this.attempts = attempts;
+    }
+
+    public static ExportJob export(Uri source, int durationMins, ChaosParams params, int partMins) {
+        return new ExportJob(nextId(), KIND_EXPORT, source, durationMins, params, partMins, null, null, 0);
+    }
+
+    public static ExportJob batch(Uri source, int durationMins, ChaosParams params, long[] seeds) {
+        return new ExportJob(nextId(), KIND_BATCH, source, durationMins, params, 0, seeds.clone(), null, 0);
+    }
+
+    public static ExportJob resume(File journal) {
+        return new ExportJob(nextId(), KIND_RESUME, null, 0, null, 0, null, journal, 0);
+    }
+
+    // Wall-clock millis, so ids order jobs across restarts and name their files
+    private static synchronized long nextId() {
+        lastId = Math.max(lastId + 1, System.currentTimeMillis());
+        return lastId;
+    }
+
+    /** The file a single export writes, or a batch's {@code variant}-th file (from 0). */
+    public File getOutput(File dir, int variant) {
+        String suffix = kind == KIND_BATCH ? "_" + (variant + 1) : "";
+        return new File(dir, "chaos_mix_" + id + suffix + ".wav");
+    }
+
+    public void save(Context context) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(id);
+        out.writeInt(kind);
+        out.writeUTF(source != null ? source.toString() : "");
+        out.writeInt(durationMins);
+        out.writeBoolean(params != null);
+        if (params != null) {
+            out.writeInt(params.minPlaySec);
+            out.writeInt(params.maxPlaySec);
+            out.writeInt(params.minPauseSec);
+            out.writeInt(params.maxPauseSec);
+            out.writeFloat(params.minVolume);
+            out.writeFloat(params.maxVolume);
+            out.writeInt(params.volumeFreq);
+        }
+        out.writeInt(partMins);
+        out.writeInt(seeds != null ? seeds.length : 0);
+        if (seeds != null) for (long seed : seeds) out.writeLong(seed);
+        out.writeUTF(journal != null ? journal.getAbsolutePath() : "");
+        out.writeInt(attempts);
+        byte[] payload = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        File file = fileFor(context, id);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            DataOutputStream header = new DataOutputStream(stream);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(payload.length);
+            header.writeLong(crc.getValue());
+            header.write(payload);
+            header.flush();
+            stream.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Could not replace " + file);
+    }
+
+    public void delete(Context context) {
+        fileFor(context, id).delete();
+    }
+
+    static ExportJob read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) throw new IOException("Unknown job " + file);
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) throw new IOException("Unknown job " + file);
+            int length = in.readInt();
+            // loadPending drops a bad record only if it fails with an IOException
+            if (length < 0 || length > file.length() - HEADER_BYTES) throw new IOException("Corrupt job " + file);
+            byte[] payload = new byte[length];
+            long expected = in.readLong();
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != expected) throw new IOException("Corrupt job " + file);
+
+            DataInputStream p = new DataInputStream(new ByteArrayInputStream(payload));
+            long id = p.readLong();
+            int kind = p.readInt();
+            String source = p.readUTF();
+            int durationMins = p.readInt();
+            ChaosParams params = p.readBoolean()
+                    ? new ChaosParams(p.readInt(), p.readInt(), p.readInt(), p.readInt(),
+                            p.readFloat(), p.readFloat(), p.readInt())
+                    : null;
+            int partMins = p.readInt();
+            long[] seeds = new long[p.readInt()];
+            for (int i = 0; i < seeds.length; i++) seeds[i] = p.readLong();
+            String journal = p.readUTF();
+            // Version 1 jobs predate the count
+            int attempts = version >= 2 ? p.readInt() : 0;
+            return new ExportJob(id, kind, source.isEmpty() ? null : Uri.parse(source), durationMins, params,
+                    partMins, seeds.length > 0 ? seeds : null, journal.isEmpty() ? null : new File(journal), attempts);
+        }
+    }
+
+    /** Saved jobs, oldest first. Unreadable records are removed. */
+    public static List<ExportJob> loadPending(Context context) {
+        File[] files = getDir(context).listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) return Collections.emptyList();
+        List<ExportJob> jobs = new ArrayList<>();
+        for (File f : files) {
+            try {
+                jobs.add(read(f));
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding job " + f, e);
+                f.delete();
+            }
+        }
+        Collections.sort(jobs, (a, b) -> Long.compare(a.id, b.id));
+        return jobs;
+    }
+
+    public static boolean hasPending(Context context) {
+        String[] names = getDir(context).list((dir, name) -> name.endsWith(SUFFIX));
+        return names != null && names.length > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "job " + id + " kind " + kind + " attempts " + attempts + (seeds != null ? " seeds " + Arrays.toString(seeds) : "");
+    }
+
+    private static File fileFor(Context context, long id) {
+        return new File(getDir(context), id + SUFFIX);
+    }
+
+    private static File getDir(Context context) {
+        File dir = new File(context.getFilesDir(), DIR);
+        if (!dir.exists()) dir.mkdirs();
+        return dir;
+    }
+}
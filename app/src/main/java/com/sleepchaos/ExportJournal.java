@@ -0,0 +1,282 @@
+package com.sleepchaos;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoint of a running export, written next to each {@link WavWriter#checkpoint}: everything
+ * needed to continue rendering into the same file after the process dies. Stored in
+ * {@code files/exports} and replaced atomically, with a CRC so a torn write is never trusted.
+ * While an export renders it holds a lock on a {@code .lock} file beside the journal, so other
+ * processes can tell its journal from one left by an interrupted export.
+ */
+public class ExportJournal {
+
+    private static final String TAG = "ExportJournal";
+    private static final String DIR = "exports";
+    private static final String SUFFIX = ".journal";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final int MAGIC = 0x53434A31; // "SCJ1"
+    private static final int VERSION = 2;
+    // Magic, version, payload length and CRC
+    private static final int HEADER_BYTES = 20;
+
+    public final File file;
+    public final Uri sourceUri;
+    public final File output;
+    public final ChaosParams params;
+    public final long seed;
+    public final long totalFrames;
+    // 0 for a single file; otherwise output is split into parts of this many frames
+    public final long partFrames;
+
+    // Progress as of the last checkpoint; dataBytes is within the current part
+    public long framesDone;
+    public long dataBytes;
+    public long sourcePositionUs;
+    public long loopRandomState;
+    byte[] scheduleState = new byte[0];
+
+    private FileChannel lockChannel;
+
+    public ExportJournal(Context context, Uri sourceUri, File output, ChaosParams params, long seed,
+                         long totalFrames, long partFrames) {
+        this(fileFor(context, output), sourceUri, output, params, seed, totalFrames, partFrames);
+    }
+
+    private ExportJournal(File file, Uri sourceUri, File output, ChaosParams params, long seed,
+                          long totalFrames, long partFrames) {
+        this.file = file;
+        this.sourceUri = sourceUri;
+        this.output = output;
+        this.params = params;
+        this.seed = seed;
+        this.totalFrames = totalFrames;
+        this.partFrames = partFrames;
+    }
+
+    /** The file holding frame {@code frame}: {@link #output} itself, or its numbered part. */
+    public File getOutputFor(long frame) {
+        if (partFrames <= 0) return output;
+        String name = output.getName();
+        int dot = name.lastIndexOf('.');
+        String part = String.format(Locale.US, "_part%02d", frame / partFrames + 1);
+        return new File(output.getParentFile(), name.substring(0, dot) + part + name.substring(dot));
+    }
+
+    public File getCurrentOutput() {
+        return getOutputFor(framesDone);
+    }
+
+    /** Every file of the finished export, in order. */
+    public List<File> getOutputs() {
+        List<File> files = new ArrayList<>();
+        if (partFrames <= 0) {
+            files.add(output);
+            return files;
+        }
+        for (long frame = 0; frame < totalFrames; frame += partFrames) files.add(getOutputFor(frame));
+        return files;
+    }
+
+    /** Captures the schedule's state for the next {@link #save}. */
+    public void setScheduleState(ChaosSchedule schedule) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        schedule.writeState(new DataOutputStream(bytes));
+        scheduleState = bytes.toByteArray();
+    }
+
+    public void restoreSchedule(ChaosSchedule schedule) throws IOException {
+        schedule.readState(new DataInputStream(new ByteArrayInputStream(scheduleState)));
+    }
+
+    public void save() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(sourceUri.toString());
+        out.writeUTF(output.getAbsolutePath());
+        out.writeInt(params.minPlaySec);
+        out.writeInt(params.maxPlaySec);
+        out.writeInt(params.minPauseSec);
+        out.writeInt(params.maxPauseSec);
+        out.writeFloat(params.minVolume);
+        out.writeFloat(params.maxVolume);
+        out.writeInt(params.volumeFreq);
+        out.writeLong(seed);
+        out.writeLong(totalFrames);
+        out.writeLong(partFrames);
+        out.writeLong(framesDone);
+        out.writeLong(dataBytes);
+        out.writeLong(sourcePositionUs);
+        out.writeLong(loopRandomState);
+        out.writeInt(scheduleState.length);
+        out.write(scheduleState);
+        byte[] payload = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            DataOutputStream header = new DataOutputStream(stream);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(payload.length);
+            header.writeLong(crc.getValue());
+            header.write(payload);
+            header.flush();
+            stream.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Could not replace " + file);
+    }
+
+    public void delete() {
+        file.delete();
+        getLockFile().delete();
+    }
+
+    /** Deletes every output file this export has started, with the journal. */
+    public void deleteWithOutputs() {
+        for (File f : getOutputs()) f.delete();
+        delete();
+    }
+
+    /** Marks the export as rendering until {@link #unlock}; false if another render holds it. */
+    public boolean tryLock() throws IOException {
+        FileChannel channel = new RandomAccessFile(getLockFile(), "rw").getChannel();
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by this process
+        }
+        if (lock == null) {
+            channel.close();
+            return false;
+        }
+        lockChannel = channel;
+        return true;
+    }
+
+    public void unlock() {
+        if (lockChannel == null) return;
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not release " + getLockFile(), e);
+        }
+        lockChannel = null;
+    }
+
+    /** True while some process renders this export. */
+    public boolean isLocked() {
+        if (!getLockFile().exists()) return false;
+        try {
+            if (!tryLock()) return true;
+            unlock();
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private File getLockFile() {
+        return new File(file.getPath() + LOCK_SUFFIX);
+    }
+
+    static ExportJournal read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Unknown journal " + file);
+            int length = in.readInt();
+            // Checked before it sizes anything: a bad length must fail as a bad journal, not as an OOM
+            if (length < 0 || length > file.length() - HEADER_BYTES) throw new IOException("Corrupt journal " + file);
+            byte[] payload = new byte[length];
+            long expected = in.readLong();
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != expected) throw new IOException("Corrupt journal " + file);
+
+            DataInputStream p = new DataInputStream(new ByteArrayInputStream(payload));
+            Uri source = Uri.parse(p.readUTF());
+            File output = new File(p.readUTF());
+            ChaosParams params = new ChaosParams(p.readInt(), p.readInt(), p.readInt(), p.readInt(),
+                    p.readFloat(), p.readFloat(), p.readInt());
+            ExportJournal journal = new ExportJournal(file, source, output, params, p.readLong(), p.readLong(),
+                    p.readLong());
+            journal.framesDone = p.readLong();
+            journal.dataBytes = p.readLong();
+            journal.sourcePositionUs = p.readLong();
+            journal.loopRandomState = p.readLong();
+            journal.scheduleState = new byte[p.readInt()];
+            p.readFully(journal.scheduleState);
+            return journal;
+        }
+    }
+
+    /** The journal left for {@code output} by an earlier run, or null. An unusable one is removed. */
+    public static ExportJournal findFor(Context context, File output) {
+        File f = fileFor(context, output);
+        if (!f.exists()) return null;
+        try {
+            ExportJournal journal = read(f);
+            File current = journal.getCurrentOutput();
+            if (!current.exists()) throw new IOException("Output is gone: " + current);
+            return journal;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding journal " + f, e);
+            f.delete();
+            return null;
+        }
+    }
+
+    /**
+     * The most recent journal whose output file still exists and that no running export holds,
+     * or null. Unusable journals are removed.
+     */
+    public static ExportJournal findInterrupted(Context context) {
+        File[] files = getDir(context).listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) return null;
+        ExportJournal latest = null;
+        for (File f : files) {
+            try {
+                ExportJournal journal = read(f);
+                if (journal.isLocked()) continue;
+                File current = journal.getCurrentOutput();
+                if (!current.exists()) throw new IOException("Output is gone: " + current);
+                if (latest == null || f.lastModified() > latest.file.lastModified()) latest = journal;
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding journal " + f, e);
+                f.delete();
+            }
+        }
+        return latest;
+    }
+
+    private static File fileFor(Context context, File output) {
+        return new File(getDir(context), output.getName() + SUFFIX);
+    }
+
+    private static File getDir(Context context) {
+        File dir = new File(context.getFilesDir(), DIR);
+        if (!dir.exists()) dir.mkdirs();
+        return dir;
+    }
+}
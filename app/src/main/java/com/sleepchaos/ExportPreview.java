@@ -0,0 +1,103 @@
+package com.sleepchaos;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.IOException;
+
+/**
+ * The export pipeline (source, {@link ChaosSchedule}, gain) as a {@link PcmSource} for
+ * {@link PcmPlayer}, so a parameter set can be heard without writing a file.
+ *
+ * Plays either the start of the timeline in real time, or a fast walk through all of it: one
+ * second of audio from every {@code speed} seconds, with the schedule skipped ahead in between
+ * without decoding, so phases and volume drift are heard at {@code speed} times their pace.
+ */
+public class ExportPreview implements PcmSource {
+
+    private static final long EXCERPT_FRAMES = PcmSource.SAMPLE_RATE;
+    // Fast walks take about this long, unless that would be slower than MIN_SPEED
+    private static final long WALK_TARGET_SEC = 180;
+    private static final int MIN_SPEED = 4;
+    // Short ramp at excerpt edges so the jumps do not click
+    private static final int EDGE_FRAMES = PcmSource.SAMPLE_RATE / 100;
+
+    private final PcmSource source;
+    private final ChaosSchedule schedule;
+    private final long timelineFrames;
+    private final int speed;
+    private long position;
+    private long excerptLeft = EXCERPT_FRAMES;
+
+    private ExportPreview(PcmSource source, ChaosParams params, long timelineFrames, int speed) {
+        this.source = source;
+        this.schedule = new ChaosSchedule(params, System.nanoTime());
+        this.timelineFrames = timelineFrames;
+        this.speed = speed;
+    }
+
+    /** Real-time preview of the first {@code minutes} minutes. Opens the source; call off the main thread. */
+    public static ExportPreview firstMinutes(Context context, Uri uri, ChaosParams params, int minutes)
+            throws IOException {
+        return new ExportPreview(open(context, uri), params, minutes * 60L * SAMPLE_RATE, 1);
+    }
+
+    /** Time-compressed walk through a {@code durationMins} export. Call off the main thread. */
+    public static ExportPreview fastWalk(Context context, Uri uri, ChaosParams params, int durationMins)
+            throws IOException {
+        return new ExportPreview(open(context, uri), params, durationMins * 60L * SAMPLE_RATE, walkSpeed(durationMins));
+    }
+
+    public static int walkSpeed(int durationMins) {
+        return (int) Math.max(MIN_SPEED, durationMins * 60L / WALK_TARGET_SEC);
+    }
+
+    private static PcmSource open(Context context, Uri uri) throws IOException {
+        // Never waits for a seek index, so the preview starts at once
+        return AudioExporter.openSource(context, uri, new SeededRandom(System.nanoTime()), false, 0);
+    }
+
+    /** Picked up at the next phase or drift, as in a live session. */
+    public void setParams(ChaosParams params) {
+        schedule.setParams(params);
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int frames) {
+        if (position >= timelineFrames) return -1;
+        int want = (int) Math.min(frames, Math.min(excerptLeft, timelineFrames - position));
+        int n = schedule.render(source, buffer, offset, want);
+        if (speed > 1) shapeEdges(buffer, offset, n);
+        position += n;
+        excerptLeft -= n;
+        if (excerptLeft == 0 && speed > 1) {
+            long gap = Math.min(EXCERPT_FRAMES * (speed - 1), Math.max(0, timelineFrames - position));
+            schedule.skip(gap);
+            position += gap;
+            excerptLeft = EXCERPT_FRAMES;
+        } else if (excerptLeft == 0) {
+            excerptLeft = EXCERPT_FRAMES;
+        }
+        return n;
+    }
+
+    private void shapeEdges(short[] buffer, int offset, int frames) {
+        long start = EXCERPT_FRAMES - excerptLeft;
+        int idx = offset;
+        for (int i = 0; i < frames; i++, start++) {
+            long fromEnd = EXCERPT_FRAMES - 1 - start;
+            long edge = Math.min(start, fromEnd);
+            if (edge < EDGE_FRAMES) {
+                float g = (float) edge / EDGE_FRAMES;
+                buffer[idx] = (short) (buffer[idx] * g);
+                buffer[idx + 1] = (short) (buffer[idx + 1] * g);
+            }
+            idx += CHANNELS;
+        }
+    }
+
+    @Override
+    public void release() {
+        source.release();
+    }
+}
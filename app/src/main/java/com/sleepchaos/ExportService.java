@@ -0,0 +1,419 @@
+package com.sleepchaos;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+import androidx.core.app.NotificationCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs exports in the {@code :export} process as a dataSync foreground service, so their decode,
+ * allocation and I/O never share a heap or GC with the UI and {@link ChaosService} playback, and
+ * they keep going when the activity is gone.
+ *
+ * Every request becomes an {@link ExportJob}, saved before it is queued, and jobs run on a small
+ * worker pool; more wait their turn. The workers share one {@link DecoderPool}, and all output goes
+ * through the shared {@link WriteScheduler}. Jobs still saved when the process dies are handed back
+ * with {@link #ACTION_RESUME_QUEUE} on the next app start, up to {@link #MAX_ATTEMPTS} runs each.
+ *
+ * Clients bind and send {@link #MSG_REGISTER} with a {@code replyTo} Messenger; they then get
+ * {@link #MSG_PROGRESS} (arg1 = percent over all jobs, arg2 = jobs), and {@link #MSG_DONE}
+ * (arg1 = jobs left, {@link #KEY_PATHS} = every file the job wrote) or {@link #MSG_ERROR}
+ * (arg1 = jobs left, {@link #KEY_ERROR}) for every job.
+ */
+public class ExportService extends Service {
+
+    private static final String TAG = "ExportService";
+    public static final String CHANNEL_ID = "ExportChannel";
+    private static final int NOTIFICATION_ID = 2;
+    // Two renders keep decode and writes overlapping; more only split the same storage bandwidth
+    private static final int WORKERS = 2;
+    // Runs a saved job gets before the queue gives up on it, as one that crashes the process would
+    // otherwise be restarted on every app start
+    private static final int MAX_ATTEMPTS = 3;
+
+    public static final String ACTION_EXPORT = "ACTION_EXPORT";
+    public static final String ACTION_EXPORT_BATCH = "ACTION_EXPORT_BATCH";
+    public static final String ACTION_RESUME = "ACTION_RESUME";
+    public static final String ACTION_RESUME_QUEUE = "ACTION_RESUME_QUEUE";
+
+    public static final String EXTRA_DURATION_MINS = "EXTRA_DURATION_MINS";
+    public static final String EXTRA_PART_MINS = "EXTRA_PART_MINS";
+    public static final String EXTRA_SEEDS = "EXTRA_SEEDS";
+    public static final String EXTRA_JOURNAL = "EXTRA_JOURNAL";
+
+    public static final int MSG_REGISTER = 1;
+    public static final int MSG_UNREGISTER = 2;
+    public static final int MSG_PROGRESS = 3;
+    public static final int MSG_DONE = 4;
+    public static final int MSG_ERROR = 5;
+    public static final String KEY_PATHS = "paths";
+    public static final String KEY_ERROR = "error";
+
+    private final Handler handler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_REGISTER:
+                    clients.add(msg.replyTo);
+                    if (!jobProgress.isEmpty()) {
+                        send(msg.replyTo, Message.obtain(null, MSG_PROGRESS, progress, jobProgress.size()));
+                    }
+                    break;
+                case MSG_UNREGISTER:
+                    clients.remove(msg.replyTo);
+                    break;
+                default:
+                    super.handleMessage(msg);
+            }
+        }
+    };
+    private final Messenger messenger = new Messenger(handler);
+    private final List<Messenger> clients = new ArrayList<>();
+
+    private NotificationManager notificationManager;
+    private NotificationCompat.Builder notificationBuilder;
+    private ExecutorService workers;
+    private final DecoderPool decoders = new DecoderPool();
+    // Percent done of every queued or running job, by id; main thread
+    private final Map<Long, Integer> jobProgress = new HashMap<>();
+    private int progress;
+
+    /** Starts an export in the export process; the params are read from the same extras as ChaosService. */
+    public static Intent exportIntent(Context context, Uri source, int durationMins, ChaosParams params, int partMins) {
+        Intent intent = paramsIntent(context, ACTION_EXPORT, source, durationMins, params);
+        intent.putExtra(EXTRA_PART_MINS, partMins);
+        return intent;
+    }
+
+    public static Intent batchIntent(Context context, Uri source, int durationMins, ChaosParams params, long[] seeds) {
+        Intent intent = paramsIntent(context, ACTION_EXPORT_BATCH, source, durationMins, params);
+        intent.putExtra(EXTRA_SEEDS, seeds);
+        return intent;
+    }
+
+    public static Intent resumeIntent(Context context, ExportJournal journal) {
+        return new Intent(context, ExportService.class)
+                .setAction(ACTION_RESUME)
+                .putExtra(EXTRA_JOURNAL, journal.file.getAbsolutePath());
+    }
+
+    /** Restarts the jobs left in the queue by an export process that died. */
+    public static Intent resumeQueueIntent(Context context) {
+        return new Intent(context, ExportService.class).setAction(ACTION_RESUME_QUEUE);
+    }
+
+    private static Intent paramsIntent(Context context, String action, Uri source, int durationMins, ChaosParams params) {
+        return new Intent(context, ExportService.class)
+                .setAction(action)
+                .setData(source)
+                .putExtra(EXTRA_DURATION_MINS, durationMins)
+                .putExtra(ChaosService.EXTRA_PLAY_MIN_SEC, params.minPlaySec)
+                .putExtra(ChaosService.EXTRA_PLAY_MAX_SEC, params.maxPlaySec)
+                .putExtra(ChaosService.EXTRA_PAUSE_MIN_SEC, params.minPauseSec)
+                .putExtra(ChaosService.EXTRA_PAUSE_MAX_SEC, params.maxPauseSec)
+                .putExtra(ChaosService.EXTRA_MIN_VOL, params.minVolume)
+                .putExtra(ChaosService.EXTRA_MAX_VOL, params.maxVolume)
+                .putExtra(ChaosService.EXTRA_VOL_FREQ, params.volumeFreq);
+    }
+
+    private static ChaosParams readParams(Intent intent) {
+        return new ChaosParams(intent.getIntExtra(ChaosService.EXTRA_PLAY_MIN_SEC, 10),
+                intent.getIntExtra(ChaosService.EXTRA_PLAY_MAX_SEC, 60),
+                intent.getIntExtra(ChaosService.EXTRA_PAUSE_MIN_SEC, 5),
+                intent.getIntExtra(ChaosService.EXTRA_PAUSE_MAX_SEC, 20),
+                intent.getFloatExtra(ChaosService.EXTRA_MIN_VOL, 0.2f),
+                intent.getFloatExtra(ChaosService.EXTRA_MAX_VOL, 0.8f),
+                intent.getIntExtra(ChaosService.EXTRA_VOL_FREQ, 5));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        notificationManager = getSystemService(NotificationManager.class);
+        createNotificationChannel();
+        workers = Executors.newFixedThreadPool(WORKERS, r -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "ExportWorker"));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startInForeground();
+        if (intent != null) {
+            if (ACTION_RESUME_QUEUE.equals(intent.getAction())) {
+                resumeQueue();
+            } else {
+                ExportJob job = jobFor(intent);
+                if (job != null) enqueue(job);
+            }
+        }
+        if (jobProgress.isEmpty()) finish();
+        return START_NOT_STICKY;
+    }
+
+    private ExportJob jobFor(Intent intent) {
+        String action = intent.getAction();
+        if (ACTION_RESUME.equals(action)) {
+            String journal = intent.getStringExtra(EXTRA_JOURNAL);
+            return journal != null ? ExportJob.resume(new File(journal)) : null;
+        }
+        Uri source = intent.getData();
+        if (source == null) return null;
+        int duration = intent.getIntExtra(EXTRA_DURATION_MINS, 10);
+        ChaosParams params = readParams(intent);
+        if (ACTION_EXPORT.equals(action)) {
+            return ExportJob.export(source, duration, params, intent.getIntExtra(EXTRA_PART_MINS, 0));
+        }
+        if (ACTION_EXPORT_BATCH.equals(action)) {
+            long[] seeds = intent.getLongArrayExtra(EXTRA_SEEDS);
+            if (seeds == null || seeds.length == 0) return null;
+            return ExportJob.batch(source, duration, params, seeds);
+        }
+        return null;
+    }
+
+    private void enqueue(ExportJob job) {
+        try {
+            job.save(this);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot queue " + job, e);
+            onJobError(e.getMessage());
+            return;
+        }
+        submit(job);
+    }
+
+    private void resumeQueue() {
+        List<ExportJob> dropped = new ArrayList<>();
+        for (ExportJob job : ExportJob.loadPending(this)) {
+            if (jobProgress.containsKey(job.id)) continue;
+            if (job.attempts >= MAX_ATTEMPTS) {
+                dropped.add(job);
+                continue;
+            }
+            Log.i(TAG, "Restarting " + job);
+            submit(job);
+        }
+        // Reported once the kept jobs are queued, so the count sent with each error is final
+        for (ExportJob job : dropped) {
+            Log.e(TAG, "Dropping " + job + ": its process died every run");
+            discard(job);
+            onJobError(getString(R.string.export_gave_up, job.attempts));
+        }
+    }
+
+    // A dropped job's partial files and journal go with it
+    private void discard(ExportJob job) {
+        File dir = AudioExporter.getOutputDir();
+        switch (job.kind) {
+            case ExportJob.KIND_EXPORT:
+                ExportJournal journal = ExportJournal.findFor(this, job.getOutput(dir, 0));
+                if (journal != null) journal.deleteWithOutputs();
+                else job.getOutput(dir, 0).delete();
+                break;
+            case ExportJob.KIND_BATCH:
+                for (int i = 0; i < job.seeds.length; i++) job.getOutput(dir, i).delete();
+                break;
+            case ExportJob.KIND_RESUME:
+                try {
+                    ExportJournal.read(job.journal).deleteWithOutputs();
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot read " + job.journal, e);
+                    job.journal.delete();
+                }
+                break;
+        }
+        job.delete(this);
+    }
+
+    private void submit(ExportJob job) {
+        jobProgress.put(job.id, 0);
+        workers.execute(() -> run(job));
+    }
+
+    // Worker thread; results go back to the main thread
+    private void run(ExportJob job) {
+        AudioExporter.ProgressListener listener = percent -> handler.post(() -> onJobProgress(job.id, percent));
+        ArrayList<String> paths;
+        try {
+            // Counted before anything can crash the process
+            job.attempts++;
+            job.save(this);
+            paths = new ArrayList<>(render(job, listener));
+        } catch (Exception e) {
+            // Stopped with the service: the saved job runs again on the next start
+            if (workers.isShutdown()) return;
+            Log.e(TAG, "Export failed: " + job, e);
+            // The exporter has already dropped the journal and output of a failed export
+            job.delete(this);
+            handler.post(() -> onJobFailed(job.id, e.getMessage()));
+            return;
+        }
+        job.delete(this);
+        handler.post(() -> onJobDone(job.id, paths));
+    }
+
+    private List<String> render(ExportJob job, AudioExporter.ProgressListener listener) throws IOException {
+        File dir = AudioExporter.getOutputDir();
+        switch (job.kind) {
+            case ExportJob.KIND_EXPORT:
+                return AudioExporter.export(this, job.source, job.getOutput(dir, 0), job.durationMins, job.params,
+                        job.partMins, decoders, listener);
+            case ExportJob.KIND_BATCH:
+                List<AudioExporter.Variant> variants = new ArrayList<>();
+                List<File> outputs = new ArrayList<>();
+                for (int i = 0; i < job.seeds.length; i++) {
+                    variants.add(new AudioExporter.Variant(job.params, job.seeds[i]));
+                    outputs.add(job.getOutput(dir, i));
+                }
+                // Not journaled: a restarted batch renders again from the top into the same files
+                return AudioExporter.exportVariants(this, job.source, outputs, job.durationMins, variants, job.id,
+                        decoders, listener);
+            case ExportJob.KIND_RESUME:
+                return AudioExporter.resumeExport(this, ExportJournal.read(job.journal), decoders, listener);
+            default:
+                throw new IOException("Unknown job kind " + job.kind);
+        }
+    }
+
+    private void onJobProgress(long id, int percent) {
+        if (!jobProgress.containsKey(id)) return;
+        jobProgress.put(id, percent);
+        publishProgress();
+    }
+
+    // Jobs weigh the same whatever their length; waiting ones count as 0%
+    private void publishProgress() {
+        if (jobProgress.isEmpty()) return;
+        int sum = 0;
+        for (int p : jobProgress.values()) sum += p;
+        int percent = sum / jobProgress.size();
+        if (percent == progress) return;
+        progress = percent;
+        broadcast(Message.obtain(null, MSG_PROGRESS, percent, jobProgress.size()));
+        notificationBuilder.setProgress(100, percent, false)
+                .setContentText(jobProgress.size() > 1
+                        ? getString(R.string.export_progress_jobs, jobProgress.size(), percent)
+                        : getString(R.string.export_progress, percent));
+        notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
+    }
+
+    private void onJobDone(long id, ArrayList<String> paths) {
+        jobProgress.remove(id);
+        Message msg = Message.obtain(null, MSG_DONE, jobProgress.size(), 0);
+        Bundle data = new Bundle();
+        data.putStringArrayList(KEY_PATHS, paths);
+        msg.setData(data);
+        broadcast(msg);
+        endJob();
+    }
+
+    private void onJobFailed(long id, String error) {
+        jobProgress.remove(id);
+        onJobError(error);
+        endJob();
+    }
+
+    private void onJobError(String error) {
+        Message msg = Message.obtain(null, MSG_ERROR, jobProgress.size(), 0);
+        Bundle data = new Bundle();
+        data.putString(KEY_ERROR, error);
+        msg.setData(data);
+        broadcast(msg);
+    }
+
+    private void endJob() {
+        if (jobProgress.isEmpty()) {
+            finish();
+        } else {
+            progress = -1;
+            publishProgress();
+        }
+    }
+
+    private void finish() {
+        progress = 0;
+        Log.i(TAG, decoders.getStats() + "; writes: " + WriteScheduler.shared().getStats());
+        stopForeground(STOP_FOREGROUND_REMOVE);
+        stopSelf();
+    }
+
+    private void broadcast(Message msg) {
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            if (!send(clients.get(i), Message.obtain(msg))) clients.remove(i);
+        }
+        msg.recycle();
+    }
+
+    private boolean send(Messenger client, Message msg) {
+        try {
+            client.send(msg);
+            return true;
+        } catch (RemoteException e) {
+            // Client process died
+            return false;
+        }
+    }
+
+    private void startInForeground() {
+        if (notificationBuilder == null) {
+            PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                    new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+            notificationBuilder = new NotificationCompat.Builder(this, CHANNEL_ID)
+                    .setContentTitle(getString(R.string.export_notification_title))
+                    .setSmallIcon(android.R.drawable.ic_menu_save)
+                    .setContentIntent(contentIntent)
+                    .setProgress(100, 0, true)
+                    .setOngoing(true)
+                    .setOnlyAlertOnce(true);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notificationBuilder.build(), ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        } else {
+            startForeground(NOTIFICATION_ID, notificationBuilder.build());
+        }
+    }
+
+    private void createNotificationChannel() {
+        NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                getString(R.string.export_channel_name), NotificationManager.IMPORTANCE_LOW);
+        notificationManager.createNotificationChannel(channel);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        workers.shutdownNow();
+        decoders.releaseAll();
+    }
+}
@@ -0,0 +1,199 @@
+package com.sleepchaos;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.session.MediaController;
+import android.media.session.MediaSessionManager;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Play/pause and volume for the app being controlled in external mode.
+ *
+ * With notification listener access, the top active media session of another app is driven
+ * directly through {@link MediaController.TransportControls} and {@code setVolumeTo}. Without it,
+ * or when direct control is off, callers supply the legacy fallback (media key events and audio
+ * focus). Both paths are timed: the cost of the call itself, and, whenever a session is visible,
+ * the delay until its playback state confirms the switch.
+ */
+public class ExternalTransport {
+
+    private static final String TAG = "ExternalTransport";
+    private static final int PATH_CONTROLLER = 0;
+    private static final int PATH_FALLBACK = 1;
+
+    private final Context context;
+    private final AudioManager audioManager;
+    private final Handler handler;
+    private final boolean preferController;
+    private MediaSessionManager sessionManager;
+    private MediaController controller;
+
+    // Switch awaiting confirmation from the controller's playback state
+    private long pendingSince;
+    private boolean pendingPlay;
+    private int pendingPath;
+
+    private final long[] switches = new long[2];
+    private final long[] callNanos = new long[2];
+    private final long[] confirmed = new long[2];
+    private final long[] confirmNanos = new long[2];
+
+    private final MediaSessionManager.OnActiveSessionsChangedListener sessionsListener = this::onSessionsChanged;
+
+    private final MediaController.Callback controllerCallback = new MediaController.Callback() {
+        @Override
+        public void onPlaybackStateChanged(PlaybackState state) {
+            if (pendingSince == 0 || state == null) return;
+            int s = state.getState();
+            boolean done = pendingPlay ? s == PlaybackState.STATE_PLAYING
+                    : s == PlaybackState.STATE_PAUSED || s == PlaybackState.STATE_STOPPED;
+            if (done) {
+                confirmed[pendingPath]++;
+                confirmNanos[pendingPath] += SystemClock.elapsedRealtimeNanos() - pendingSince;
+                pendingSince = 0;
+            }
+        }
+
+        @Override
+        public void onSessionDestroyed() {
+            setController(null);
+        }
+    };
+
+    public ExternalTransport(Context context, AudioManager audioManager, Handler handler, boolean preferController) {
+        this.context = context;
+        this.audioManager = audioManager;
+        this.handler = handler;
+        this.preferController = preferController;
+    }
+
+    /** Starts tracking the active session if notification access has been granted. */
+    public void start() {
+        if (!ChaosNotificationListener.isAccessGranted(context)) return;
+        sessionManager = context.getSystemService(MediaSessionManager.class);
+        try {
+            sessionManager.addOnActiveSessionsChangedListener(sessionsListener,
+                    ChaosNotificationListener.getComponent(context), handler);
+            onSessionsChanged(sessionManager.getActiveSessions(ChaosNotificationListener.getComponent(context)));
+        } catch (SecurityException e) {
+            // Access revoked between the check and the call
+            sessionManager = null;
+        }
+    }
+
+    public void stop() {
+        if (sessionManager != null) {
+            sessionManager.removeOnActiveSessionsChangedListener(sessionsListener);
+            sessionManager = null;
+        }
+        setController(null);
+    }
+
+    /** True when play/pause/volume go straight to another app's session. */
+    public boolean isDirect() {
+        return preferController && controller != null;
+    }
+
+    public MediaController getController() {
+        return isDirect() ? controller : null;
+    }
+
+    public void play(Runnable fallback) {
+        if (isDirect()) {
+            long start = begin(true, PATH_CONTROLLER);
+            controller.getTransportControls().play();
+            end(PATH_CONTROLLER, start);
+        } else {
+            long start = begin(true, PATH_FALLBACK);
+            fallback.run();
+            end(PATH_FALLBACK, start);
+        }
+    }
+
+    public void pause(Runnable fallback) {
+        if (isDirect()) {
+            long start = begin(false, PATH_CONTROLLER);
+            controller.getTransportControls().pause();
+            end(PATH_CONTROLLER, start);
+        } else {
+            long start = begin(false, PATH_FALLBACK);
+            fallback.run();
+            end(PATH_FALLBACK, start);
+        }
+    }
+
+    public void sendMediaKey(int keyCode) {
+        try {
+            long eventTime = SystemClock.uptimeMillis();
+            audioManager.dispatchMediaKeyEvent(new KeyEvent(eventTime, eventTime, KeyEvent.ACTION_DOWN, keyCode, 0));
+            audioManager.dispatchMediaKeyEvent(new KeyEvent(eventTime, eventTime, KeyEvent.ACTION_UP, keyCode, 0));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to send media key", e);
+        }
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "controller: %s; fallback: %s",
+                describe(PATH_CONTROLLER), describe(PATH_FALLBACK));
+    }
+
+    private String describe(int path) {
+        if (switches[path] == 0) return "unused";
+        String s = String.format(Locale.US, "%d switches, call %.2f ms avg", switches[path],
+                callNanos[path] / 1e6 / switches[path]);
+        if (confirmed[path] > 0) {
+            s += String.format(Locale.US, ", confirmed %d in %.0f ms avg", confirmed[path],
+                    confirmNanos[path] / 1e6 / confirmed[path]);
+        }
+        return s;
+    }
+
+    private long begin(boolean play, int path) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        // Only measurable when some session is there to report its state
+        if (controller != null) {
+            pendingSince = now;
+            pendingPlay = play;
+            pendingPath = path;
+        }
+        return now;
+    }
+
+    private void end(int path, long start) {
+        switches[path]++;
+        callNanos[path] += SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private void onSessionsChanged(List<MediaController> controllers) {
+        MediaController top = null;
+        if (controllers != null) {
+            // Ordered by priority; skip our own session
+            for (MediaController c : controllers) {
+                if (!context.getPackageName().equals(c.getPackageName())) {
+                    top = c;
+                    break;
+                }
+            }
+        }
+        setController(top);
+    }
+
+    private void setController(MediaController next) {
+        if (controller != null && (next == null || !controller.getSessionToken().equals(next.getSessionToken()))) {
+            controller.unregisterCallback(controllerCallback);
+            controller = null;
+        }
+        if (next != null && controller == null) {
+            controller = next;
+            controller.registerCallback(controllerCallback, handler);
+            Log.i(TAG, "Tracking session of " + next.getPackageName());
+        }
+    }
+}
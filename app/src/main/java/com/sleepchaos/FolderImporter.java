@@ -0,0 +1,105 @@
+package com.sleepchaos;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Walks a document tree picked with {@code ACTION_OPEN_DOCUMENT_TREE} on a background thread and
+ * streams the audio files it finds back in batches. One child query per directory; document Uris
+ * are built against the tree so they are covered by the tree's single persisted grant.
+ */
+public class FolderImporter {
+
+    private static final String TAG = "FolderImporter";
+    private static final int BATCH_SIZE = 200;
+
+    private static final String[] PROJECTION = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_MIME_TYPE
+    };
+
+    public interface Listener {
+        // Main thread
+        void onBatch(List<Uri> uris);
+        void onComplete(int total);
+    }
+
+    private final ContentResolver resolver;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean cancelled = false;
+
+    public FolderImporter(Context context) {
+        resolver = context.getApplicationContext().getContentResolver();
+    }
+
+    public void importTree(Uri treeUri, Listener listener) {
+        executor.execute(() -> walk(treeUri, listener));
+    }
+
+    public void shutdown() {
+        cancelled = true;
+        executor.shutdownNow();
+    }
+
+    private void walk(Uri treeUri, Listener listener) {
+        ArrayDeque<String> dirs = new ArrayDeque<>();
+        dirs.push(DocumentsContract.getTreeDocumentId(treeUri));
+        List<Uri> batch = new ArrayList<>(BATCH_SIZE);
+        int total = 0;
+
+        while (!dirs.isEmpty() && !cancelled) {
+            Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, dirs.pop());
+            try (Cursor c = resolver.query(children, PROJECTION, null, null, null)) {
+                while (c != null && c.moveToNext()) {
+                    String docId = c.getString(0);
+                    String mime = c.getString(1);
+                    if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mime)) {
+                        dirs.push(docId);
+                    } else if (isAudio(mime)) {
+                        batch.add(DocumentsContract.buildDocumentUriUsingTree(treeUri, docId));
+                        if (batch.size() == BATCH_SIZE) {
+                            total += batch.size();
+                            post(listener, batch);
+                            batch = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Unreadable subdirectory; keep importing the rest of the tree
+                Log.w(TAG, "Skipping " + children, e);
+            }
+        }
+        if (cancelled) return;
+        if (!batch.isEmpty()) {
+            total += batch.size();
+            post(listener, batch);
+        }
+        int count = total;
+        mainHandler.post(() -> {
+            if (!cancelled) listener.onComplete(count);
+        });
+    }
+
+    private void post(Listener listener, List<Uri> batch) {
+        mainHandler.post(() -> {
+            if (!cancelled) listener.onBatch(batch);
+        });
+    }
+
+    static boolean isAudio(String mime) {
+        return mime != null && (mime.startsWith("audio/") || mime.equals("application/ogg"));
+    }
+}
@@ -3,51 +3,71 @@ package com.sleepchaos;
 import android.Manifest;
 import android.app.Activity;
 import android.content.ClipData;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.provider.OpenableColumns;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.provider.Settings;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewStub;
 import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
+import androidx.lifecycle.Lifecycle;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.button.MaterialButtonToggleGroup;
 import com.google.android.material.floatingactionbutton.ExtendedFloatingActionButton;
 import com.google.android.material.slider.RangeSlider;
 import com.google.android.material.slider.Slider;
+import com.google.android.material.switchmaterial.SwitchMaterial;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 public class MainActivity extends AppCompatActivity {
 
-    // Wrapper class to track selection state
-    private static class AudioItem {
-        Uri uri;
-        boolean isSelected;
-        
-        AudioItem(Uri uri) {
-            this.uri = uri;
-            this.isSelected = true; // Default selected
-        }
-    }
+    // Long-press on Export renders this many seeds of the same settings in one pass
+    private static final int BATCH_VARIANTS = 7;
+    private static final int EXPORT_PART_MINS = 30;
+    // Switches inside the ViewStubs are inflated after state restore, so their state is kept by hand
+    private static final String STATE_SPLIT_EXPORT = "split_export";
+    private static final String STATE_DIRECT_CONTROL = "direct_control";
 
-    private ArrayList<AudioItem> playlist = new ArrayList<>();
+    // Immutable snapshot of the active playlist; every edit submits a new list so the adapter
+    // can diff old against new off the main thread
+    private List<PlaylistStore.Entry> playlist = new ArrayList<>();
+    private PlaylistStore playlistStore;
+    private PlaylistStore.Info activePlaylist;
     private FileAdapter fileAdapter;
+    private TrackMetadataLoader metadataLoader;
+    private FolderImporter folderImporter;
     
     private TextView tvTimerValue;
     private TextView tvPlayDurValue;
@@ -57,10 +77,15 @@ public class MainActivity extends AppCompatActivity {
     
     private View layoutEmptyState;
     private View containerPlaylist;
-    private TextView tvExternalHint;
+    // Inflated from ViewStubs on first use, so null until then
+    private View externalControls;
+    private View exportControls;
     
     private ExtendedFloatingActionButton btnAction;
     private MaterialButton btnExport;
+    private MaterialButton btnPreview;
+    private PcmPlayer previewPlayer;
+    private ExportPreview preview;
     
     private Slider sliderTimer;
     private RangeSlider sliderPlayDur;
@@ -69,14 +94,68 @@ public class MainActivity extends AppCompatActivity {
     private Slider sliderVolFreq;
     
     private MaterialButtonToggleGroup toggleMode;
+    private SwitchMaterial switchLayered;
+    private SwitchMaterial switchOffload;
+    private SwitchMaterial switchSplitExport;
+    private SwitchMaterial switchDirectControl;
     
     private boolean isPlaying = false;
     private boolean isExternalMode = false;
+    // Launched by the measured startup scenario: start the stored playlist once it is shown
+    private boolean measureStartup;
+    private boolean restoredSplitExport;
+    private boolean restoredDirectControl;
+
+    // Bound without auto-create: connects whenever the service is running, for live parameter updates
+    private ChaosService chaosService;
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            chaosService = ((ChaosService.LocalBinder) service).getService();
+            if (chaosService.isSessionRunning() && !isPlaying) {
+                isPlaying = true;
+                toggleButtonState(true);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            chaosService = null;
+        }
+    };
+
+    // Replies from ExportService, which lives in another process
+    private final Messenger exportMessenger = new Messenger(new Handler(Looper.getMainLooper(), this::onExportMessage));
+    private Messenger exportService;
+
+    private final ServiceConnection exportConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            exportService = new Messenger(service);
+            Message msg = Message.obtain(null, ExportService.MSG_REGISTER);
+            msg.replyTo = exportMessenger;
+            try {
+                exportService.send(msg);
+            } catch (RemoteException e) {
+                exportService = null;
+            }
+        }
 
-    private final ActivityResultLauncher<String> requestPermissionLauncher =
-            registerForActivityResult(new ActivityResultContracts.RequestPermission(), isGranted -> {
-                if (!isGranted) {
-                    Toast.makeText(this, "Permissions required for playback", Toast.LENGTH_SHORT).show();
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // The export process exits when its last job ends
+            exportService = null;
+            onExportFinished();
+        }
+    };
+
+    private final ActivityResultLauncher<String[]> requestPermissionLauncher =
+            registerForActivityResult(new ActivityResultContracts.RequestMultiplePermissions(), results -> {
+                for (Map.Entry<String, Boolean> result : results.entrySet()) {
+                    if (!result.getValue()) {
+                        Toast.makeText(this, "Permissions required for playback", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
                 }
             });
 
@@ -84,25 +163,36 @@ public class MainActivity extends AppCompatActivity {
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
                 if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
                     Intent data = result.getData();
-                    boolean added = false;
+                    List<PlaylistStore.Entry> next = new ArrayList<>(playlist);
                     if (data.getClipData() != null) {
                         ClipData clipData = data.getClipData();
                         for (int i = 0; i < clipData.getItemCount(); i++) {
-                            addUriToPlaylist(clipData.getItemAt(i).getUri());
-                            added = true;
+                            addUriToPlaylist(next, clipData.getItemAt(i).getUri());
                         }
                     } else if (data.getData() != null) {
-                        addUriToPlaylist(data.getData());
-                        added = true;
+                        addUriToPlaylist(next, data.getData());
                     }
-                    if(added) updatePlaylistUI();
+                    if (next.size() != playlist.size()) commitPlaylist(next);
                 }
             });
 
+    private final ActivityResultLauncher<Uri> folderPickerLauncher =
+            registerForActivityResult(new ActivityResultContracts.OpenDocumentTree(), treeUri -> {
+                if (treeUri != null) importFolder(treeUri);
+            });
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupMetrics.trackFirstFrame(this);
         setContentView(R.layout.activity_main);
+        // Debug builds only: the exported activity would otherwise let any app start playback
+        measureStartup = BuildConfig.DEBUG && savedInstanceState == null
+                && getIntent().getBooleanExtra(StartupMetrics.EXTRA_MEASURE, false);
+        if (savedInstanceState != null) {
+            restoredSplitExport = savedInstanceState.getBoolean(STATE_SPLIT_EXPORT);
+            restoredDirectControl = savedInstanceState.getBoolean(STATE_DIRECT_CONTROL);
+        }
 
         // Bind Views
         tvPlaylistHeader = findViewById(R.id.tvPlaylistHeader);
@@ -113,10 +203,8 @@ public class MainActivity extends AppCompatActivity {
         
         layoutEmptyState = findViewById(R.id.layoutEmptyState);
         containerPlaylist = findViewById(R.id.containerPlaylist);
-        tvExternalHint = findViewById(R.id.tvExternalHint);
         
         btnAction = findViewById(R.id.btnAction);
-        btnExport = findViewById(R.id.btnExport);
         
         sliderTimer = findViewById(R.id.sliderTimer);
         sliderPlayDur = findViewById(R.id.sliderPlayDur);
@@ -125,13 +213,21 @@ public class MainActivity extends AppCompatActivity {
         sliderVolFreq = findViewById(R.id.sliderVolFreq);
         
         toggleMode = findViewById(R.id.toggleMode);
+        switchLayered = findViewById(R.id.switchLayered);
+        switchOffload = findViewById(R.id.switchOffload);
+        // Compressed offload needs Android 10
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) switchOffload.setVisibility(View.GONE);
         
         View btnAddFiles = findViewById(R.id.btnAddFiles);
+        View btnAddFolder = findViewById(R.id.btnAddFolder);
+        View btnAddNoise = findViewById(R.id.btnAddNoise);
         View btnClear = findViewById(R.id.btnClear);
         RecyclerView recyclerView = findViewById(R.id.recyclerViewFiles);
 
         // Setup RecyclerView
-        fileAdapter = new FileAdapter(playlist);
+        metadataLoader = new TrackMetadataLoader(this);
+        metadataLoader.setListener(this::onMetadataLoaded);
+        fileAdapter = new FileAdapter();
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
         recyclerView.setAdapter(fileAdapter);
         
@@ -142,10 +238,21 @@ public class MainActivity extends AppCompatActivity {
             }
             @Override
             public void onSwiped(RecyclerView.ViewHolder viewHolder, int swipeDir) {
-                int position = viewHolder.getAdapterPosition();
-                playlist.remove(position);
-                fileAdapter.notifyItemRemoved(position);
-                updatePlaylistUI();
+                // The row's own entry: getCurrentList() lags behind playlist while a diff runs
+                PlaylistStore.Entry item = ((FileAdapter.FileViewHolder) viewHolder).item;
+                int index = -1;
+                for (int i = 0; index < 0 && i < playlist.size(); i++) {
+                    if (playlist.get(i) == item) index = i;
+                }
+                if (index < 0) {
+                    // Replaced by an edit still being diffed; put the row back
+                    int position = viewHolder.getBindingAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) fileAdapter.notifyItemChanged(position);
+                    return;
+                }
+                List<PlaylistStore.Entry> next = new ArrayList<>(playlist);
+                next.remove(index);
+                commitPlaylist(next);
             }
         };
         new ItemTouchHelper(simpleItemTouchCallback).attachToRecyclerView(recyclerView);
@@ -153,17 +260,21 @@ public class MainActivity extends AppCompatActivity {
         // Initial Setup
         checkPermissions();
         updatePlaylistUI();
+        playlistStore = PlaylistStore.getInstance(this);
+        playlistStore.loadActive(this::onPlaylistLoaded);
 
         // Listeners
         btnAddFiles.setOnClickListener(v -> openFilePicker());
-        
+        btnAddFolder.setOnClickListener(v -> folderPickerLauncher.launch(null));
+        btnAddNoise.setOnClickListener(v -> showNoisePicker());
+        tvPlaylistHeader.setOnClickListener(v -> showPlaylistPicker());
+
         btnClear.setOnClickListener(v -> {
             if (isPlaying) {
                 Toast.makeText(this, "Stop playback before clearing list", Toast.LENGTH_SHORT).show();
                 return;
             }
-            playlist.clear();
-            updatePlaylistUI();
+            commitPlaylist(new ArrayList<>());
         });
 
         sliderTimer.addOnChangeListener((slider, value, fromUser) -> {
@@ -199,13 +310,16 @@ public class MainActivity extends AppCompatActivity {
                 if (checkedId == R.id.btnModeLocal) {
                     isExternalMode = false;
                     containerPlaylist.setVisibility(View.VISIBLE);
-                    tvExternalHint.setVisibility(View.GONE);
-                    btnExport.setVisibility(View.VISIBLE);
+                    if (externalControls != null) externalControls.setVisibility(View.GONE);
+                    if (exportControls != null) exportControls.setVisibility(View.VISIBLE);
                 } else if (checkedId == R.id.btnModeExternal) {
                     isExternalMode = true;
                     containerPlaylist.setVisibility(View.GONE);
-                    tvExternalHint.setVisibility(View.VISIBLE);
-                    btnExport.setVisibility(View.GONE); // Exporting doesn't apply to external apps
+                    ensureExternalControls();
+                    externalControls.setVisibility(View.VISIBLE);
+                    // Exporting doesn't apply to external apps
+                    if (exportControls != null) exportControls.setVisibility(View.GONE);
+                    stopPreview();
                 }
             }
         });
@@ -216,42 +330,256 @@ public class MainActivity extends AppCompatActivity {
         List<Float> pauseVals = sliderPauseDur.getValues();
         tvPauseDurValue.setText(String.format(getString(R.string.val_time_range), Math.round(pauseVals.get(0)), Math.round(pauseVals.get(1))));
 
+        // Range changes reach a running session when the thumb is released
+        RangeSlider.OnSliderTouchListener rangeTouch = new RangeSlider.OnSliderTouchListener() {
+            @Override
+            public void onStartTrackingTouch(@NonNull RangeSlider slider) {}
+
+            @Override
+            public void onStopTrackingTouch(@NonNull RangeSlider slider) {
+                pushLiveParameters();
+            }
+        };
+        sliderPlayDur.addOnSliderTouchListener(rangeTouch);
+        sliderPauseDur.addOnSliderTouchListener(rangeTouch);
+        sliderVolRange.addOnSliderTouchListener(rangeTouch);
+        sliderVolFreq.addOnSliderTouchListener(new Slider.OnSliderTouchListener() {
+            @Override
+            public void onStartTrackingTouch(@NonNull Slider slider) {}
+
+            @Override
+            public void onStopTrackingTouch(@NonNull Slider slider) {
+                pushLiveParameters();
+            }
+        });
+
         btnAction.setOnClickListener(v -> togglePlayback());
-        
+
+        // Below the fold: built once the first frame is out of the way
+        Looper.myQueue().addIdleHandler(() -> {
+            if (!isDestroyed()) ensureExportControls();
+            return false;
+        });
+
+        if (savedInstanceState == null) checkInterruptedExport();
+    }
+
+    private void ensureExportControls() {
+        if (exportControls != null) return;
+        exportControls = ((ViewStub) findViewById(R.id.stubExportControls)).inflate();
+        switchSplitExport = exportControls.findViewById(R.id.switchSplitExport);
+        switchSplitExport.setText(getString(R.string.label_split_export, EXPORT_PART_MINS));
+        switchSplitExport.setChecked(restoredSplitExport);
+        btnExport = exportControls.findViewById(R.id.btnExport);
+        btnPreview = exportControls.findViewById(R.id.btnPreview);
         btnExport.setOnClickListener(v -> performExport());
+        btnExport.setOnLongClickListener(v -> {
+            showBatchExportDialog();
+            return true;
+        });
+        btnPreview.setOnClickListener(v -> {
+            if (previewPlayer != null) stopPreview();
+            else showPreviewDialog();
+        });
+        btnExport.setEnabled(!isPlaying);
+        exportControls.setVisibility(isExternalMode ? View.GONE : View.VISIBLE);
+    }
+
+    private void ensureExternalControls() {
+        if (externalControls != null) return;
+        externalControls = ((ViewStub) findViewById(R.id.stubExternalControls)).inflate();
+        switchDirectControl = externalControls.findViewById(R.id.switchDirectControl);
+        switchDirectControl.setChecked(restoredDirectControl);
+        switchDirectControl.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (isChecked && !ChaosNotificationListener.isAccessGranted(this)) {
+                // Direct control needs the user to enable our notification listener first
+                buttonView.setChecked(false);
+                Toast.makeText(this, R.string.direct_control_grant, Toast.LENGTH_LONG).show();
+                startActivity(new Intent(Settings.ACTION_NOTIFICATION_LISTENER_SETTINGS));
+            }
+        });
+        switchDirectControl.setEnabled(!isPlaying);
     }
 
-    private void addUriToPlaylist(Uri uri) {
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_SPLIT_EXPORT, switchSplitExport != null ? switchSplitExport.isChecked() : restoredSplitExport);
+        outState.putBoolean(STATE_DIRECT_CONTROL, switchDirectControl != null ? switchDirectControl.isChecked() : restoredDirectControl);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, ChaosService.class), serviceConnection, 0);
+        // Flags 0: only connects while an export is running, never starts the export process
+        bindService(new Intent(this, ExportService.class), exportConnection, 0);
+    }
+
+    @Override
+    protected void onStop() {
+        stopPreview();
+        unbindService(serviceConnection);
+        if (exportService != null) {
+            Message msg = Message.obtain(null, ExportService.MSG_UNREGISTER);
+            msg.replyTo = exportMessenger;
+            try {
+                exportService.send(msg);
+            } catch (RemoteException e) {
+                // Already gone
+            }
+            exportService = null;
+        }
+        unbindService(exportConnection);
+        chaosService = null;
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        metadataLoader.shutdown();
+        if (folderImporter != null) folderImporter.shutdown();
+        super.onDestroy();
+    }
+
+    // Rebind only the rows whose metadata just arrived
+    private void onMetadataLoaded(List<Uri> uris) {
+        HashSet<Uri> loaded = new HashSet<>(uris);
+        List<PlaylistStore.Entry> shown = fileAdapter.getCurrentList();
+        for (int i = 0; i < shown.size(); i++) {
+            if (loaded.contains(shown.get(i).uri)) {
+                fileAdapter.notifyItemChanged(i, FileAdapter.PAYLOAD_METADATA);
+            }
+        }
+    }
+
+    private void addUriToPlaylist(List<PlaylistStore.Entry> target, Uri uri) {
         if (uri != null) {
+            if (NoiseGenerator.isNoiseUri(uri)) {
+                // Generated sources need no storage grant
+                target.add(new PlaylistStore.Entry(uri, true));
+                return;
+            }
             try {
                 getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
             } catch (SecurityException e) {
                 // Ignore
             }
-            playlist.add(new AudioItem(uri));
+            target.add(new PlaylistStore.Entry(uri, true));
+        }
+    }
+
+    private void onPlaylistLoaded(PlaylistStore.Loaded loaded) {
+        if (isDestroyed()) return;
+        activePlaylist = loaded.info;
+        List<PlaylistStore.Entry> next = loaded.entries;
+        if (!playlist.isEmpty()) {
+            // Rows added before the initial load finished are kept
+            next = new ArrayList<>(loaded.entries);
+            next.addAll(playlist);
+            commitPlaylist(next);
+            return;
         }
+        playlist = next;
+        fileAdapter.submitList(next);
+        updatePlaylistUI();
+        StartupMetrics.onFullyDrawn(this);
+        if (measureStartup && !isPlaying) togglePlayback();
+        measureStartup = false;
+    }
+
+    // Publishes an edited copy of the playlist to the adapter and the store
+    private void commitPlaylist(List<PlaylistStore.Entry> next) {
+        playlist = next;
+        fileAdapter.submitList(next);
+        updatePlaylistUI();
+        if (activePlaylist != null) playlistStore.save(activePlaylist.id, next);
+    }
+
+    private void setSelected(PlaylistStore.Entry item, boolean selected) {
+        // The bound row may still hold the entry a pending diff is replacing; fall back to its Uri
+        int index = playlist.indexOf(item);
+        for (int i = 0; index < 0 && i < playlist.size(); i++) {
+            if (playlist.get(i).uri.equals(item.uri)) index = i;
+        }
+        if (index < 0 || playlist.get(index).selected == selected) return;
+        List<PlaylistStore.Entry> next = new ArrayList<>(playlist);
+        next.set(index, new PlaylistStore.Entry(item.uri, selected));
+        commitPlaylist(next);
     }
 
     private void updatePlaylistUI() {
-        String label = playlist.isEmpty() ? "SOUNDSCAPES" : "SOUNDSCAPES (" + playlist.size() + ")";
+        String label = activePlaylist == null ? "SOUNDSCAPES" : "SOUNDSCAPES · " + activePlaylist.name;
+        if (!playlist.isEmpty()) label += " (" + playlist.size() + ")";
         tvPlaylistHeader.setText(label);
-        fileAdapter.notifyDataSetChanged();
-        layoutEmptyState.setVisibility(playlist.isEmpty() ? View.VISIBLE : View.GONE);
+        layoutEmptyState.setVisibility(playlist.isEmpty() && activePlaylist != null ? View.VISIBLE : View.GONE);
+    }
+
+    private void showPlaylistPicker() {
+        if (activePlaylist == null) return;
+        playlistStore.listPlaylists(playlists -> {
+            if (isFinishing()) return;
+            String[] names = new String[playlists.size() + 1];
+            int checked = 0;
+            for (int i = 0; i < playlists.size(); i++) {
+                names[i] = playlists.get(i).name;
+                if (playlists.get(i).id == activePlaylist.id) checked = i;
+            }
+            names[playlists.size()] = getString(R.string.playlist_new);
+            new AlertDialog.Builder(this)
+                    .setTitle(R.string.dialog_playlists_title)
+                    .setSingleChoiceItems(names, checked, (dialog, which) -> {
+                        dialog.dismiss();
+                        if (which == playlists.size()) {
+                            showNewPlaylistDialog();
+                        } else if (playlists.get(which).id != activePlaylist.id) {
+                            playlistStore.setActive(playlists.get(which).id, this::onPlaylistSwitched);
+                        }
+                    })
+                    .show();
+        });
+    }
+
+    private void showNewPlaylistDialog() {
+        EditText input = new EditText(this);
+        input.setHint(R.string.playlist_name_hint);
+        input.setSingleLine();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.playlist_new)
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                    String name = input.getText().toString().trim();
+                    if (name.isEmpty()) return;
+                    playlistStore.create(name, info -> onPlaylistSwitched(
+                            new PlaylistStore.Loaded(info, new ArrayList<>())));
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
     }
 
+    private void onPlaylistSwitched(PlaylistStore.Loaded loaded) {
+        if (isDestroyed()) return;
+        activePlaylist = loaded.info;
+        playlist = loaded.entries;
+        fileAdapter.submitList(loaded.entries);
+        updatePlaylistUI();
+    }
+
+    // Everything missing goes into one request, so the user sees a single permission flow
     private void checkPermissions() {
+        String[] wanted;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            if (ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
-                requestPermissionLauncher.launch(Manifest.permission.POST_NOTIFICATIONS);
-            }
-            if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_MEDIA_AUDIO) != PackageManager.PERMISSION_GRANTED) {
-                requestPermissionLauncher.launch(Manifest.permission.READ_MEDIA_AUDIO);
-            }
+            wanted = new String[]{Manifest.permission.POST_NOTIFICATIONS, Manifest.permission.READ_MEDIA_AUDIO};
         } else {
-             if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
-                requestPermissionLauncher.launch(Manifest.permission.READ_EXTERNAL_STORAGE);
+            wanted = new String[]{Manifest.permission.READ_EXTERNAL_STORAGE};
+        }
+        List<String> missing = new ArrayList<>();
+        for (String permission : wanted) {
+            if (ContextCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) {
+                missing.add(permission);
             }
         }
+        if (!missing.isEmpty()) requestPermissionLauncher.launch(missing.toArray(new String[0]));
     }
 
     private void openFilePicker() {
@@ -263,6 +591,53 @@ public class MainActivity extends AppCompatActivity {
         filePickerLauncher.launch(intent);
     }
 
+    private void importFolder(Uri treeUri) {
+        try {
+            // One grant covers every document under the tree
+            getContentResolver().takePersistableUriPermission(treeUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // Ignore
+        }
+        if (folderImporter == null) folderImporter = new FolderImporter(this);
+        Toast.makeText(this, R.string.import_scanning, Toast.LENGTH_SHORT).show();
+
+        HashSet<Uri> known = new HashSet<>();
+        for (PlaylistStore.Entry item : playlist) known.add(item.uri);
+        folderImporter.importTree(treeUri, new FolderImporter.Listener() {
+            // What actually went into the playlist; the importer's total includes files already in it
+            private int added;
+
+            @Override
+            public void onBatch(List<Uri> uris) {
+                List<PlaylistStore.Entry> next = new ArrayList<>(playlist.size() + uris.size());
+                next.addAll(playlist);
+                for (Uri uri : uris) {
+                    if (known.add(uri)) next.add(new PlaylistStore.Entry(uri, true));
+                }
+                added += next.size() - playlist.size();
+                if (next.size() != playlist.size()) commitPlaylist(next);
+            }
+
+            @Override
+            public void onComplete(int total) {
+                Toast.makeText(MainActivity.this, getString(R.string.import_done, added), Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void showNoisePicker() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_noise_title)
+                .setItems(R.array.noise_types, (dialog, which) -> {
+                    // Seed is fixed at creation so the entry sounds the same every night
+                    NoiseGenerator.Type type = NoiseGenerator.Type.values()[which];
+                    List<PlaylistStore.Entry> next = new ArrayList<>(playlist);
+                    addUriToPlaylist(next, NoiseGenerator.toUri(type, new Random().nextInt(10000)));
+                    commitPlaylist(next);
+                })
+                .show();
+    }
+
     private void togglePlayback() {
         Intent serviceIntent = new Intent(this, ChaosService.class);
 
@@ -270,12 +645,20 @@ public class MainActivity extends AppCompatActivity {
             
             // Only validate playlist if in Local Mode
             if (!isExternalMode) {
-                List<Uri> selectedUris = new ArrayList<>();
-                for (AudioItem item : playlist) {
-                    if (item.isSelected) selectedUris.add(item.uri);
+                if (activePlaylist == null) {
+                    // The service opens the stored playlist by id, which is not known yet
+                    Toast.makeText(this, R.string.playlist_loading, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                boolean anySelected = false;
+                for (PlaylistStore.Entry item : playlist) {
+                    if (item.selected) {
+                        anySelected = true;
+                        break;
+                    }
                 }
 
-                if (selectedUris.isEmpty()) {
+                if (!anySelected) {
                     if (playlist.isEmpty()) {
                         Toast.makeText(this, "Please add audio files first", Toast.LENGTH_SHORT).show();
                     } else {
@@ -284,11 +667,10 @@ public class MainActivity extends AppCompatActivity {
                     return;
                 }
                 
-                ArrayList<String> uriStrings = new ArrayList<>();
-                for (Uri u : selectedUris) {
-                    uriStrings.add(u.toString());
-                }
-                serviceIntent.putStringArrayListExtra(ChaosService.EXTRA_URI_LIST, uriStrings);
+                // The service reads tracks from the stored playlist, so the Intent stays small
+                serviceIntent.putExtra(ChaosService.EXTRA_PLAYLIST_ID, activePlaylist.id);
+                serviceIntent.putExtra(ChaosService.EXTRA_LAYERED, switchLayered.isChecked());
+                serviceIntent.putExtra(ChaosService.EXTRA_OFFLOAD, switchOffload.isChecked());
             }
 
             // Get Ranges
@@ -297,7 +679,10 @@ public class MainActivity extends AppCompatActivity {
             List<Float> volRange = sliderVolRange.getValues();
 
             serviceIntent.setAction(ChaosService.ACTION_START);
+            StartupMetrics.onStartRequested(measureStartup);
             serviceIntent.putExtra(ChaosService.EXTRA_IS_EXTERNAL_MODE, isExternalMode);
+            serviceIntent.putExtra(ChaosService.EXTRA_DIRECT_TRANSPORT,
+                    switchDirectControl != null && switchDirectControl.isChecked());
             serviceIntent.putExtra(ChaosService.EXTRA_DURATION_MINS, (int) sliderTimer.getValue());
             
             // Pass Play/Pause ranges in seconds
@@ -311,10 +696,11 @@ public class MainActivity extends AppCompatActivity {
             serviceIntent.putExtra(ChaosService.EXTRA_MAX_VOL, volRange.get(1) / 100f);
             serviceIntent.putExtra(ChaosService.EXTRA_VOL_FREQ, (int) sliderVolFreq.getValue());
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                startForegroundService(serviceIntent);
+            if (isExternalMode) {
+                startChaosService(serviceIntent);
             } else {
-                startService(serviceIntent);
+                // Make sure the latest edits are on disk before the service opens the file
+                playlistStore.flush(() -> startChaosService(serviceIntent));
             }
 
             isPlaying = true;
@@ -327,6 +713,14 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
+    private void startChaosService(Intent serviceIntent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            startForegroundService(serviceIntent);
+        } else {
+            startService(serviceIntent);
+        }
+    }
+
     private void toggleButtonState(boolean playing) {
         if (playing) {
             btnAction.setText(R.string.btn_stop);
@@ -342,11 +736,11 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void setControlsEnabled(boolean enabled) {
-        sliderPlayDur.setEnabled(enabled);
-        sliderPauseDur.setEnabled(enabled);
+        // Chaos ranges stay live while playing; only session-level settings lock
         sliderTimer.setEnabled(enabled);
-        sliderVolRange.setEnabled(enabled);
-        sliderVolFreq.setEnabled(enabled);
+        switchLayered.setEnabled(enabled);
+        switchOffload.setEnabled(enabled);
+        if (switchDirectControl != null) switchDirectControl.setEnabled(enabled);
         
         // Only enable toggle if stopped
         for(int i = 0; i < toggleMode.getChildCount(); i++) {
@@ -354,76 +748,226 @@ public class MainActivity extends AppCompatActivity {
         }
         
         // Export only enabled in Local mode
-        if (!isExternalMode) {
+        if (!isExternalMode && btnExport != null) {
              btnExport.setEnabled(enabled);
         }
     }
 
-    private void performExport() {
-        if (isExternalMode) return; 
+    private ChaosParams readParams() {
+        List<Float> playRange = sliderPlayDur.getValues();
+        List<Float> pauseRange = sliderPauseDur.getValues();
+        List<Float> volRange = sliderVolRange.getValues();
+        return new ChaosParams(Math.round(playRange.get(0)), Math.round(playRange.get(1)),
+                Math.round(pauseRange.get(0)), Math.round(pauseRange.get(1)),
+                volRange.get(0) / 100f, volRange.get(1) / 100f, (int) sliderVolFreq.getValue());
+    }
 
-        Uri source = null;
-        for (AudioItem item : playlist) {
-            if (item.isSelected) {
-                source = item.uri;
-                break;
-            }
+    private void pushLiveParameters() {
+        if (preview != null) preview.setParams(readParams());
+        if (isPlaying && chaosService != null && chaosService.isSessionRunning()) {
+            chaosService.updateParameters(readParams());
         }
+    }
 
-        if (source == null) {
-            if (playlist.isEmpty()) {
-                Toast.makeText(this, "No audio to export", Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, "Select a track to export", Toast.LENGTH_SHORT).show();
-            }
-            return;
+    // First selected track, or null after telling the user why there is none
+    private Uri exportSource() {
+        for (PlaylistStore.Entry item : playlist) {
+            if (item.selected) return item.uri;
+        }
+        if (playlist.isEmpty()) {
+            Toast.makeText(this, "No audio to export", Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, "Select a track to export", Toast.LENGTH_SHORT).show();
         }
+        return null;
+    }
 
+    private void showPreviewDialog() {
+        Uri source = exportSource();
+        if (source == null) return;
         int duration = (int) sliderTimer.getValue();
-        
-        List<Float> playRange = sliderPlayDur.getValues();
-        List<Float> pauseRange = sliderPauseDur.getValues();
-        List<Float> volRange = sliderVolRange.getValues();
-        
-        int minPlay = Math.round(playRange.get(0));
-        int maxPlay = Math.round(playRange.get(1));
-        int minPause = Math.round(pauseRange.get(0));
-        int maxPause = Math.round(pauseRange.get(1));
-        
-        float minVol = volRange.get(0) / 100f;
-        float maxVol = volRange.get(1) / 100f;
-        int volFreq = (int) sliderVolFreq.getValue();
+        if (duration == 0) duration = 10;
+        int total = duration;
+        int first = Math.min(total, 5);
+        int speed = ExportPreview.walkSpeed(total);
+        String[] options = {
+                getString(R.string.preview_first, first),
+                getString(R.string.preview_walk, total, speed)
+        };
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_preview_title)
+                .setItems(options, (dialog, which) -> startPreview(source, which == 0 ? first : total, which == 1))
+                .show();
+    }
+
+    // Streams the export pipeline to the speaker; nothing is written to storage
+    private void startPreview(Uri source, int minutes, boolean fastWalk) {
+        ChaosParams params = readParams();
+        btnPreview.setEnabled(false);
+        new Thread(() -> {
+            ExportPreview next;
+            try {
+                next = fastWalk ? ExportPreview.fastWalk(this, source, params, minutes)
+                        : ExportPreview.firstMinutes(this, source, params, minutes);
+            } catch (IOException e) {
+                runOnUiThread(() -> {
+                    btnPreview.setEnabled(true);
+                    Toast.makeText(this, String.format(getString(R.string.export_error), e.getMessage()), Toast.LENGTH_LONG).show();
+                });
+                return;
+            }
+            runOnUiThread(() -> {
+                btnPreview.setEnabled(true);
+                // Opened after onStop: nothing would stop it again until the next onStop
+                if (isFinishing() || isExternalMode || !getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+                    next.release();
+                    return;
+                }
+                stopPreview();
+                preview = next;
+                previewPlayer = new PcmPlayer(next);
+                PcmPlayer player = previewPlayer;
+                previewPlayer.setOnCompletionListener(() -> runOnUiThread(() -> {
+                    if (previewPlayer == player) stopPreview();
+                }));
+                previewPlayer.start();
+                btnPreview.setText(R.string.btn_preview_stop);
+            });
+        }).start();
+    }
+
+    private void stopPreview() {
+        if (previewPlayer == null) return;
+        // Also releases the preview source
+        previewPlayer.release();
+        previewPlayer = null;
+        preview = null;
+        btnPreview.setText(R.string.btn_preview);
+    }
 
+    private void performExport() {
+        if (isExternalMode) return; 
+
+        Uri source = exportSource();
+        if (source == null) return;
+
+        int duration = (int) sliderTimer.getValue();
         if (duration == 0) duration = 10; 
 
+        // Export stays enabled: another press queues another job
         Toast.makeText(this, R.string.export_start, Toast.LENGTH_LONG).show();
-        btnExport.setEnabled(false);
+        startExportService(ExportService.exportIntent(this, source, duration, readParams(),
+                switchSplitExport.isChecked() ? EXPORT_PART_MINS : 0));
+    }
 
-        AudioExporter.exportChaosAudio(this, source, duration, minPlay, maxPlay, minPause, maxPause, minVol, maxVol, volFreq, new AudioExporter.ExportCallback() {
-            @Override
-            public void onSuccess(String path) {
-                runOnUiThread(() -> {
-                    Toast.makeText(MainActivity.this, R.string.export_success, Toast.LENGTH_LONG).show();
-                    btnExport.setEnabled(true);
-                });
-            }
+    // Renders run in the :export process; progress and results come back through exportMessenger
+    private void startExportService(Intent intent) {
+        startForegroundService(intent);
+    }
 
-            @Override
-            public void onError(String error) {
+    // One decode pass, a different seed per night of the week
+    private void showBatchExportDialog() {
+        if (isExternalMode) return;
+        Uri source = exportSource();
+        if (source == null) return;
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_batch_export_title)
+                .setMessage(getString(R.string.batch_export_message, BATCH_VARIANTS))
+                .setPositiveButton(R.string.btn_export, (dialog, which) -> performBatchExport(source))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void performBatchExport(Uri source) {
+        int duration = (int) sliderTimer.getValue();
+        if (duration == 0) duration = 10;
+        ChaosParams params = readParams();
+        Random random = new Random();
+        long[] seeds = new long[BATCH_VARIANTS];
+        for (int i = 0; i < seeds.length; i++) seeds[i] = random.nextLong();
+
+        Toast.makeText(this, R.string.export_start, Toast.LENGTH_LONG).show();
+        startExportService(ExportService.batchIntent(this, source, duration, params, seeds));
+    }
+
+    // Queued exports cut off with their process carry on by themselves; a journal no running export
+    // holds is offered to finish into the same file
+    private void checkInterruptedExport() {
+        new Thread(() -> {
+            // A running service skips queued jobs it already has
+            if (ExportJob.hasPending(this)) {
                 runOnUiThread(() -> {
-                    Toast.makeText(MainActivity.this, String.format(getString(R.string.export_error), error), Toast.LENGTH_LONG).show();
-                    btnExport.setEnabled(true);
+                    if (!isFinishing()) startExportService(ExportService.resumeQueueIntent(this));
                 });
+                return;
             }
-        });
+            ExportJournal journal = ExportJournal.findInterrupted(this);
+            if (journal == null) return;
+            runOnUiThread(() -> {
+                if (isFinishing()) return;
+                int percent = (int) (journal.framesDone * 100 / Math.max(1, journal.totalFrames));
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.export_resume_title)
+                        .setMessage(getString(R.string.export_resume_message, journal.output.getName(), percent))
+                        .setPositiveButton(R.string.export_resume, (dialog, which) -> {
+                            Toast.makeText(this, R.string.export_start, Toast.LENGTH_LONG).show();
+                            startExportService(ExportService.resumeIntent(this, journal));
+                        })
+                        .setNegativeButton(R.string.export_discard, (dialog, which) -> journal.delete())
+                        .show();
+            });
+        }).start();
     }
 
-    // RecyclerView Adapter
-    private class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder> {
-        private final ArrayList<AudioItem> items;
+    private boolean onExportMessage(Message msg) {
+        switch (msg.what) {
+            case ExportService.MSG_PROGRESS:
+                ensureExportControls();
+                btnExport.setText(msg.arg2 > 1 ? getString(R.string.export_progress_jobs, msg.arg2, msg.arg1)
+                        : getString(R.string.export_progress, msg.arg1));
+                return true;
+            case ExportService.MSG_DONE:
+                Toast.makeText(this, R.string.export_success, Toast.LENGTH_LONG).show();
+                if (msg.arg1 == 0) onExportFinished();
+                return true;
+            case ExportService.MSG_ERROR:
+                String error = msg.getData().getString(ExportService.KEY_ERROR);
+                Toast.makeText(this, String.format(getString(R.string.export_error), error), Toast.LENGTH_LONG).show();
+                if (msg.arg1 == 0) onExportFinished();
+                return true;
+            default:
+                return false;
+        }
+    }
 
-        FileAdapter(ArrayList<AudioItem> items) {
-            this.items = items;
+    private void onExportFinished() {
+        ensureExportControls();
+        btnExport.setText(R.string.btn_export);
+        btnExport.setEnabled(true);
+    }
+
+    // RecyclerView Adapter; list diffs run on a background thread via AsyncListDiffer
+    private class FileAdapter extends ListAdapter<PlaylistStore.Entry, FileAdapter.FileViewHolder> {
+        static final String PAYLOAD_METADATA = "metadata";
+        static final String PAYLOAD_SELECTION = "selection";
+
+        FileAdapter() {
+            super(new DiffUtil.ItemCallback<PlaylistStore.Entry>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull PlaylistStore.Entry a, @NonNull PlaylistStore.Entry b) {
+                    return a.uri.equals(b.uri);
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull PlaylistStore.Entry a, @NonNull PlaylistStore.Entry b) {
+                    return a.selected == b.selected;
+                }
+
+                @Override
+                public Object getChangePayload(@NonNull PlaylistStore.Entry a, @NonNull PlaylistStore.Entry b) {
+                    return PAYLOAD_SELECTION;
+                }
+            });
         }
 
         @NonNull
@@ -433,45 +977,58 @@ public class MainActivity extends AppCompatActivity {
             return new FileViewHolder(view);
         }
 
+        @Override
+        public void onBindViewHolder(@NonNull FileViewHolder holder, int position, @NonNull List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                super.onBindViewHolder(holder, position, payloads);
+                return;
+            }
+            PlaylistStore.Entry item = getItem(position);
+            holder.item = item;
+            if (payloads.contains(PAYLOAD_METADATA)) bindMetadata(holder, item);
+            if (payloads.contains(PAYLOAD_SELECTION)) bindSelection(holder, item);
+        }
+
         @Override
         public void onBindViewHolder(@NonNull FileViewHolder holder, int position) {
-            AudioItem item = items.get(position);
-            holder.tvFileName.setText(getFileName(item.uri));
-            holder.chkSelected.setOnCheckedChangeListener(null);
-            holder.chkSelected.setChecked(item.isSelected);
-            holder.chkSelected.setOnCheckedChangeListener((buttonView, isChecked) -> item.isSelected = isChecked);
+            PlaylistStore.Entry item = getItem(position);
+            holder.item = item;
+            bindMetadata(holder, item);
+            bindSelection(holder, item);
             holder.itemView.setOnClickListener(v -> holder.chkSelected.toggle());
         }
 
-        @Override
-        public int getItemCount() {
-            return items.size();
+        private void bindSelection(FileViewHolder holder, PlaylistStore.Entry item) {
+            holder.chkSelected.setOnCheckedChangeListener(null);
+            holder.chkSelected.setChecked(item.selected);
+            holder.chkSelected.setOnCheckedChangeListener((buttonView, isChecked) -> setSelected(item, isChecked));
+        }
+
+        // Zero I/O: cached metadata or a placeholder, with a background load queued on a miss
+        private void bindMetadata(FileViewHolder holder, PlaylistStore.Entry item) {
+            TrackMetadataLoader.Metadata meta = metadataLoader.peek(item.uri);
+            if (meta != null) {
+                holder.tvFileName.setText(meta.displayName);
+                String info = meta.describe();
+                holder.tvFileInfo.setText(info.isEmpty() ? getString(R.string.file_info_hint) : info);
+            } else {
+                holder.tvFileName.setText(item.uri.getLastPathSegment());
+                holder.tvFileInfo.setText(R.string.file_info_loading);
+                metadataLoader.request(item.uri);
+            }
         }
 
         class FileViewHolder extends RecyclerView.ViewHolder {
+            PlaylistStore.Entry item; // As last bound
             TextView tvFileName;
+            TextView tvFileInfo;
             CheckBox chkSelected;
             FileViewHolder(View itemView) {
                 super(itemView);
                 tvFileName = itemView.findViewById(R.id.tvFileName);
+                tvFileInfo = itemView.findViewById(R.id.tvFileInfo);
                 chkSelected = itemView.findViewById(R.id.chkSelected);
             }
         }
     }
-
-    private String getFileName(Uri uri) {
-        String result = null;
-        if (uri.getScheme().equals("content")) {
-            try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
-                if (cursor != null && cursor.moveToFirst()) {
-                    int index = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-                    if (index >= 0) result = cursor.getString(index);
-                }
-            } catch (Exception e) {}
-        }
-        if (result == null) {
-            result = uri.getLastPathSegment();
-        }
-        return result;
-    }
-}
\ No newline at end of file
+}
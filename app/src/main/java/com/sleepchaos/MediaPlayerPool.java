@@ -0,0 +1,110 @@
+package com.sleepchaos;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.PowerManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Small pool of prepared {@link MediaPlayer}s keyed by source. Handing a player back keeps it
+ * prepared, so the same track coming round again while it is still pooled only needs a seek. A
+ * different track gets a new player while the pool has room, so the prepared ones stay for their
+ * own tracks; once it is full, the least recently returned one is {@code reset()} and reused
+ * instead of building another native player. Not thread-safe: only {@link ChaosService}'s loop
+ * thread acquires, recycles and releases players, and their callbacks arrive on its looper.
+ */
+public class MediaPlayerPool {
+
+    private static final int MAX_IDLE = 2;
+
+    private static class Entry {
+        final MediaPlayer player;
+        final String key;
+
+        Entry(MediaPlayer player, String key) {
+            this.player = player;
+            this.key = key;
+        }
+    }
+
+    // Least recently returned first
+    private final ArrayList<Entry> idle = new ArrayList<>();
+
+    private long created;
+    private long reused;
+    private long reprepared;
+    private long released;
+
+    /** A prepared player for {@code uri}, positioned wherever it was left if it was pooled. */
+    public MediaPlayer acquire(Context context, Uri uri) throws IOException {
+        String key = uri.toString();
+        for (int i = idle.size() - 1; i >= 0; i--) {
+            if (key.equals(idle.get(i).key)) {
+                reused++;
+                return idle.remove(i).player;
+            }
+        }
+        MediaPlayer player;
+        if (idle.size() >= MAX_IDLE) {
+            player = idle.remove(0).player;
+            player.reset();
+            reprepared++;
+        } else {
+            player = new MediaPlayer();
+            created++;
+        }
+        try {
+            player.setAudioAttributes(new AudioAttributes.Builder()
+                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .build());
+            player.setWakeMode(context.getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+            player.setDataSource(context, uri);
+            player.prepare();
+        } catch (IOException | RuntimeException e) {
+            player.release();
+            released++;
+            throw e;
+        }
+        return player;
+    }
+
+    /** Takes a player back, still prepared for {@code uri}; the oldest idle one is freed if full. */
+    public void recycle(MediaPlayer player, Uri uri) {
+        try {
+            if (player.isPlaying()) player.pause();
+        } catch (IllegalStateException e) {
+            // In an error state: not worth keeping
+            player.release();
+            released++;
+            return;
+        }
+        player.setOnCompletionListener(null);
+        player.setLooping(false);
+        idle.add(new Entry(player, uri != null ? uri.toString() : null));
+        while (idle.size() > MAX_IDLE) {
+            idle.remove(0).player.release();
+            released++;
+        }
+    }
+
+    public void releaseAll() {
+        for (Entry e : idle) e.player.release();
+        released += idle.size();
+        idle.clear();
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "players created=%d reused=%d reprepared=%d released=%d",
+                created, reused, reprepared, released);
+    }
+
+    public void resetStats() {
+        created = reused = reprepared = released = 0;
+    }
+}
@@ -0,0 +1,236 @@
+package com.sleepchaos;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mixes several layers, each with its own {@link ChaosSchedule}, into one {@link PcmSource}.
+ * Played through a single {@link PcmPlayer}, so every layer shares one render thread and one
+ * output track: adding a layer costs one decode plus one gain-and-add per block. Each layer runs
+ * the engine's play and pause ranges scaled by its own factors, drawn from its seed.
+ *
+ * Layers carry a caller-chosen key (the playlist position) so a checkpoint taken with
+ * {@link #saveLayers} can be matched back to their sources after a restart.
+ *
+ * Decoding runs under a render lock of its own. The engine's monitor is only held for short
+ * bookkeeping, such as copying every schedule's state after each read, so checkpoints and new
+ * params never wait for a block to decode.
+ */
+public class MixEngine implements PcmSource {
+
+    private static final int MAX_BLOCK_FRAMES = 4096;
+    // Shared headroom limiter: instant attack, ~250 ms release back to unity
+    private static final float LIMIT = 0.9f * Short.MAX_VALUE;
+    private static final float RELEASE_COEFF = 1f / (SAMPLE_RATE / 4f);
+    // Layer ranges are the global ones scaled by 1 +/- up to this, so layers drift apart
+    private static final float LAYER_SPREAD = 0.5f;
+
+    /** What a layer is started from: a fresh seed, or a saved schedule to continue. */
+    public static final class LayerState {
+        public final int key;
+        final long seed;
+        final byte[] schedule; // Null for a fresh layer
+
+        public LayerState(int key, long seed) {
+            this(key, seed, null);
+        }
+
+        private LayerState(int key, long seed, byte[] schedule) {
+            this.key = key;
+            this.seed = seed;
+            this.schedule = schedule;
+        }
+    }
+
+    private static class Layer {
+        final int key;
+        final long seed;
+        final PcmSource source;
+        final float playScale;
+        final float pauseScale;
+        final ChaosSchedule schedule;
+        // The schedule as of the last mixed block; under the engine's monitor
+        final byte[] savedState = new byte[ChaosSchedule.STATE_BYTES];
+
+        Layer(PcmSource source, ChaosParams params, int key, long seed) {
+            this.key = key;
+            this.seed = seed;
+            this.source = source;
+            SeededRandom spread = new SeededRandom(~seed);
+            playScale = 1f - LAYER_SPREAD + 2 * LAYER_SPREAD * spread.nextFloat();
+            pauseScale = 1f - LAYER_SPREAD + 2 * LAYER_SPREAD * spread.nextFloat();
+            schedule = new ChaosSchedule(paramsFor(params), seed);
+        }
+
+        ChaosParams paramsFor(ChaosParams params) {
+            return params.scaled(playScale, pauseScale);
+        }
+    }
+
+    /** Lets {@link #captureState} reach the bytes without copying them out. */
+    private static class StateBuffer extends ByteArrayOutputStream {
+        StateBuffer() {
+            super(ChaosSchedule.STATE_BYTES);
+        }
+
+        void copyTo(byte[] dest) {
+            System.arraycopy(buf, 0, dest, 0, count);
+        }
+    }
+
+    // Replaced, never changed in place
+    private volatile Layer[] layers = new Layer[0];
+    // Held while decoding and mixing; taken before the monitor, never after
+    private final Object renderLock = new Object();
+    private final StateBuffer stateBuffer = new StateBuffer();
+    private final DataOutputStream stateOut = new DataOutputStream(stateBuffer);
+
+    private final short[] scratch = new short[MAX_BLOCK_FRAMES * CHANNELS];
+    private final int[] mix = new int[MAX_BLOCK_FRAMES * CHANNELS];
+    private float limiterGain = 1f;
+
+    private ChaosParams params;
+    private boolean released;
+
+    public MixEngine(ChaosParams params) {
+        this.params = params;
+    }
+
+    /**
+     * Adds a layer on the current parameters, continuing a saved schedule {@code skipFrames} later.
+     * False once the engine is released, and the caller keeps the source.
+     */
+    public synchronized boolean addLayer(LayerState state, PcmSource source, long skipFrames) throws IOException {
+        if (released) return false;
+        Layer layer = new Layer(source, params, state.key, state.seed);
+        if (state.schedule != null) {
+            layer.schedule.readState(new DataInputStream(new ByteArrayInputStream(state.schedule)));
+            layer.schedule.skip(skipFrames);
+        }
+        captureState(layer);
+        Layer[] next = Arrays.copyOf(layers, layers.length + 1);
+        next[layers.length] = layer;
+        layers = next;
+        return true;
+    }
+
+    /** Every layer's key, seed and schedule, as of the last mixed block. */
+    public synchronized byte[] saveLayers() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + layers.length * (12 + ChaosSchedule.STATE_BYTES));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(layers.length);
+            for (Layer layer : layers) {
+                out.writeInt(layer.key);
+                out.writeLong(layer.seed);
+                out.write(layer.savedState);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // In memory
+        }
+        return bytes.toByteArray();
+    }
+
+    public static List<LayerState> loadLayers(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int count = in.readInt();
+        List<LayerState> states = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int key = in.readInt();
+            long seed = in.readLong();
+            byte[] schedule = new byte[ChaosSchedule.STATE_BYTES];
+            in.readFully(schedule);
+            states.add(new LayerState(key, seed, schedule));
+        }
+        return states;
+    }
+
+    /** Hands new parameters to every layer; each picks them up at its next phase or drift. */
+    public synchronized void setParams(ChaosParams params) {
+        this.params = params;
+        for (Layer layer : layers) {
+            layer.schedule.setParams(layer.paramsFor(params));
+        }
+    }
+
+    public int getLayerCount() {
+        return layers.length;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int frames) {
+        synchronized (renderLock) {
+            // Layers added meanwhile join at the next read
+            Layer[] current = layers;
+            int done = 0;
+            while (done < frames) {
+                int n = Math.min(frames - done, MAX_BLOCK_FRAMES);
+                mixBlock(current, n);
+                limit(buffer, offset + done * CHANNELS, n);
+                done += n;
+            }
+            synchronized (this) {
+                for (Layer layer : current) captureState(layer);
+            }
+            return frames;
+        }
+    }
+
+    // Under the monitor; the stream is in memory
+    private void captureState(Layer layer) {
+        stateBuffer.reset();
+        try {
+            layer.schedule.writeState(stateOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        stateBuffer.copyTo(layer.savedState);
+    }
+
+    private void mixBlock(Layer[] current, int frames) {
+        int samples = frames * CHANNELS;
+        Arrays.fill(mix, 0, samples, 0);
+        for (Layer layer : current) {
+            int got = layer.schedule.render(layer.source, scratch, 0, frames) * CHANNELS;
+            for (int i = 0; i < got; i++) {
+                mix[i] += scratch[i];
+            }
+        }
+    }
+
+    private void limit(short[] out, int offset, int frames) {
+        float gain = limiterGain;
+        int idx = 0;
+        for (int f = 0; f < frames; f++) {
+            int l = mix[idx];
+            int r = mix[idx + 1];
+            int peak = Math.max(Math.abs(l), Math.abs(r));
+            if (peak * gain > LIMIT) gain = LIMIT / peak;
+            out[offset + idx] = (short) (l * gain);
+            out[offset + idx + 1] = (short) (r * gain);
+            gain += (1f - gain) * RELEASE_COEFF;
+            idx += 2;
+        }
+        limiterGain = gain;
+    }
+
+    // Waits out a read in progress, so no source is released mid-decode
+    @Override
+    public void release() {
+        synchronized (renderLock) {
+            synchronized (this) {
+                released = true;
+                for (Layer layer : layers) {
+                    layer.source.release();
+                }
+                layers = new Layer[0];
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.sleepchaos;
+
+import android.net.Uri;
+
+import java.util.Locale;
+
+/**
+ * Procedural noise source. Playlist entries reference it through a {@code chaosnoise://<type>?seed=<n>} Uri
+ * so it can live next to regular content Uris; the same seed always renders the same signal.
+ */
+public class NoiseGenerator implements PcmSource {
+
+    public static final String SCHEME = "chaosnoise";
+    private static final String PARAM_SEED = "seed";
+    private static final String PARAM_CUTOFF = "cutoff";
+
+    private static final float AMPLITUDE = 0.5f; // -6 dBFS headroom for later gain stages
+    private static final float DEFAULT_CUTOFF_HZ = 400f;
+
+    public enum Type {
+        WHITE("White Noise"),
+        PINK("Pink Noise"),
+        BROWN("Brown Noise"),
+        FILTERED("Filtered Noise");
+
+        final String label;
+
+        Type(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Type type;
+    private long state;
+
+    // Per-channel filter state, [left, right]
+    private final float[] pink = new float[14];
+    private final float[] brown = new float[2];
+    private final float[] lowPass = new float[2];
+    private final float lowPassAlpha;
+    private final float lowPassGain;
+
+    public NoiseGenerator(Type type, long seed, float cutoffHz) {
+        this.type = type;
+        // SplitMix64 finalizer so neighbouring seeds give unrelated streams; xorshift needs non-zero state
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        state = (z ^ (z >>> 31)) | 1L;
+
+        lowPassAlpha = (float) (1.0 - Math.exp(-2.0 * Math.PI * cutoffHz / SAMPLE_RATE));
+        // Normalise the one-pole output back to roughly the RMS of white noise
+        lowPassGain = (float) (1.0 / Math.sqrt(lowPassAlpha / (2.0 - lowPassAlpha)));
+    }
+
+    public static boolean isNoiseUri(Uri uri) {
+        return uri != null && SCHEME.equals(uri.getScheme());
+    }
+
+    public static Uri toUri(Type type, long seed) {
+        return new Uri.Builder()
+                .scheme(SCHEME)
+                .authority(type.name().toLowerCase(Locale.ROOT))
+                .appendQueryParameter(PARAM_SEED, Long.toString(seed))
+                .build();
+    }
+
+    public static NoiseGenerator fromUri(Uri uri) {
+        return fromUri(uri, 0);
+    }
+
+    /** A different but equally valid stream for the same Uri, e.g. when resuming mid-way. */
+    public static NoiseGenerator fromUri(Uri uri, long reseed) {
+        Type type = parseType(uri);
+        long seed = 0;
+        float cutoff = DEFAULT_CUTOFF_HZ;
+        try {
+            String s = uri.getQueryParameter(PARAM_SEED);
+            if (s != null) seed = Long.parseLong(s);
+            String c = uri.getQueryParameter(PARAM_CUTOFF);
+            if (c != null) cutoff = Float.parseFloat(c);
+        } catch (NumberFormatException e) {
+            // Fall back to defaults for hand-edited Uris
+        }
+        return new NoiseGenerator(type, seed ^ reseed, cutoff);
+    }
+
+    public static String describe(Uri uri) {
+        return parseType(uri).label + " · seed " + uri.getQueryParameter(PARAM_SEED);
+    }
+
+    private static Type parseType(Uri uri) {
+        String host = uri.getAuthority();
+        for (Type t : Type.values()) {
+            if (t.name().equalsIgnoreCase(host)) return t;
+        }
+        return Type.WHITE;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int frames) {
+        int idx = offset;
+        for (int i = 0; i < frames; i++) {
+            for (int ch = 0; ch < CHANNELS; ch++) {
+                float v;
+                switch (type) {
+                    case PINK: v = nextPink(ch); break;
+                    case BROWN: v = nextBrown(ch); break;
+                    case FILTERED: v = nextFiltered(ch); break;
+                    default: v = nextWhite(); break;
+                }
+                v *= AMPLITUDE;
+                if (v > 1f) v = 1f;
+                else if (v < -1f) v = -1f;
+                buffer[idx++] = (short) (v * 32767);
+            }
+        }
+        return frames;
+    }
+
+    // xorshift64*, uniform in [-1, 1)
+    private float nextWhite() {
+        long x = state;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        state = x;
+        return ((x * 0x2545F4914F6CDD1DL) >>> 40) * (2f / (1 << 24)) - 1f;
+    }
+
+    // Paul Kellett's refined pink filter
+    private float nextPink(int ch) {
+        float w = nextWhite();
+        float[] b = pink;
+        int o = ch * 7;
+        b[o] = 0.99886f * b[o] + w * 0.0555179f;
+        b[o + 1] = 0.99332f * b[o + 1] + w * 0.0750759f;
+        b[o + 2] = 0.96900f * b[o + 2] + w * 0.1538520f;
+        b[o + 3] = 0.86650f * b[o + 3] + w * 0.3104856f;
+        b[o + 4] = 0.55000f * b[o + 4] + w * 0.5329522f;
+        b[o + 5] = -0.7616f * b[o + 5] - w * 0.0168980f;
+        float out = b[o] + b[o + 1] + b[o + 2] + b[o + 3] + b[o + 4] + b[o + 5] + b[o + 6] + w * 0.5362f;
+        b[o + 6] = w * 0.115926f;
+        return out * 0.11f;
+    }
+
+    // Leaky integrator over white noise
+    private float nextBrown(int ch) {
+        float v = (brown[ch] + 0.02f * nextWhite()) / 1.02f;
+        brown[ch] = v;
+        return v * 3.5f;
+    }
+
+    private float nextFiltered(int ch) {
+        float y = lowPass[ch] + lowPassAlpha * (nextWhite() - lowPass[ch]);
+        lowPass[ch] = y;
+        return y * lowPassGain;
+    }
+
+    @Override
+    public void release() {
+        // Nothing native to free
+    }
+}
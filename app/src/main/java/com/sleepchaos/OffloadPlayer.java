@@ -0,0 +1,290 @@
+package com.sleepchaos;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Plays a long MP3 or AAC-LC file through a compressed-offload {@link AudioTrack} (Android 10+),
+ * so the audio DSP decodes and the application processor only wakes to top up a large buffer.
+ * Gain and play/pause are applied on the track, as for the other local players.
+ *
+ * {@link #open} returns null for anything the device will not offload, and the caller keeps its
+ * own path. The system may also tear an offloaded track down at any time (a route change, another
+ * offloaded stream); the listener then gets the position reached so playback can carry on elsewhere.
+ */
+public class OffloadPlayer {
+
+    private static final String TAG = "OffloadPlayer";
+    // Short files are cheaper from ClipCache, and offload pays off over a long play phase
+    public static final long MIN_DURATION_US = 3 * 60 * 1_000_000L;
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final int ADTS_HEADER_BYTES = 7;
+    private static final int PLAY_POLL_MS = 250;
+    private static final int[] ADTS_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000,
+            22050, 16000, 12000, 11025, 8000, 7350};
+
+    /** Callbacks arrive on a system thread. */
+    public interface Listener {
+        // A non-looping file played to its end
+        void onCompletion();
+        // The system took the track away; continue from positionUs on another path
+        void onTearDown(OffloadPlayer player, long positionUs);
+    }
+
+    private final MediaExtractor extractor;
+    private final AudioTrack track;
+    private final boolean looping;
+    private final Listener listener;
+    private final int sampleRate;
+    private final long durationUs;
+    private final long startUs;
+    // ADTS parameters, or adtsRateIndex < 0 for MP3
+    private final int adtsRateIndex;
+    private final int adtsChannels;
+    private final ByteBuffer sample;
+
+    private final Object lock = new Object();
+    private Thread feeder;
+    private volatile boolean released;
+
+    private OffloadPlayer(MediaExtractor extractor, AudioTrack track, MediaFormat format, boolean aac,
+                          boolean looping, Listener listener) {
+        this.extractor = extractor;
+        this.track = track;
+        this.looping = looping;
+        this.listener = listener;
+        sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        startUs = Math.max(0, extractor.getSampleTime());
+        adtsRateIndex = aac ? adtsRateIndex(sampleRate) : -1;
+        adtsChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int maxInput = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 64 * 1024;
+        sample = ByteBuffer.allocateDirect(maxInput + ADTS_HEADER_BYTES);
+    }
+
+    /**
+     * An offloaded player positioned at the sync point before {@code startUs}, or null if the file
+     * is short, not MP3/AAC-LC, or the device cannot offload it. Does storage I/O.
+     */
+    public static OffloadPlayer open(Context context, Uri uri, long startUs, boolean looping, Listener listener) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return null;
+        MediaExtractor extractor = new MediaExtractor();
+        AudioTrack track = null;
+        try {
+            extractor.setDataSource(context, uri, null);
+            int trackIndex = AudioExporter.selectAudioTrack(extractor);
+            if (trackIndex < 0) return null;
+            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            if (!format.containsKey(MediaFormat.KEY_DURATION)
+                    || format.getLong(MediaFormat.KEY_DURATION) < MIN_DURATION_US) return null;
+
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            int encoding;
+            boolean aac = false;
+            if (MediaFormat.MIMETYPE_AUDIO_MPEG.equals(mime)) {
+                encoding = AudioFormat.ENCODING_MP3;
+            } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime) && isAacLc(format)) {
+                encoding = AudioFormat.ENCODING_AAC_LC;
+                aac = true;
+                if (adtsRateIndex(format.getInteger(MediaFormat.KEY_SAMPLE_RATE)) < 0) return null;
+            } else {
+                return null;
+            }
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            if (channels != 1 && channels != 2) return null;
+
+            AudioFormat audioFormat = new AudioFormat.Builder()
+                    .setEncoding(encoding)
+                    .setSampleRate(format.getInteger(MediaFormat.KEY_SAMPLE_RATE))
+                    .setChannelMask(channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO)
+                    .build();
+            AudioAttributes attributes = new AudioAttributes.Builder()
+                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .build();
+            if (!AudioManager.isOffloadedPlaybackSupported(audioFormat, attributes)) return null;
+
+            extractor.selectTrack(trackIndex);
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            track = new AudioTrack.Builder()
+                    .setAudioAttributes(attributes)
+                    .setAudioFormat(audioFormat)
+                    .setBufferSizeInBytes(BUFFER_BYTES)
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setOffloadedPlayback(true)
+                    .build();
+            OffloadPlayer player = new OffloadPlayer(extractor, track, format, aac, looping, listener);
+            track.registerStreamEventCallback(Runnable::run, new AudioTrack.StreamEventCallback() {
+                @Override
+                public void onTearDown(AudioTrack t) {
+                    if (!player.released) listener.onTearDown(player, player.getPositionUs());
+                }
+
+                @Override
+                public void onPresentationEnded(AudioTrack t) {
+                    // The DSP played out everything up to the end of stream set by the feeder
+                    if (!player.released) listener.onCompletion();
+                }
+            });
+            return player;
+        } catch (IOException | RuntimeException e) {
+            // Unsupported here is not an error: the caller falls back
+            Log.i(TAG, "Not offloading " + uri + ": " + e);
+            if (track != null) track.release();
+            track = null;
+            return null;
+        } finally {
+            if (track == null) extractor.release();
+        }
+    }
+
+    private static boolean isAacLc(MediaFormat format) {
+        ByteBuffer csd = format.getByteBuffer("csd-0");
+        if (csd != null && csd.remaining() > 0) return (csd.get(csd.position()) & 0xFF) >> 3 == 2;
+        return format.containsKey(MediaFormat.KEY_AAC_PROFILE)
+                && format.getInteger(MediaFormat.KEY_AAC_PROFILE) == MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+    }
+
+    private static int adtsRateIndex(int sampleRate) {
+        for (int i = 0; i < ADTS_SAMPLE_RATES.length; i++) {
+            if (ADTS_SAMPLE_RATES[i] == sampleRate) return i;
+        }
+        return -1;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (released) return;
+            track.play();
+            if (feeder == null) {
+                feeder = new Thread(this::feedLoop, "OffloadPlayer");
+                feeder.start();
+            }
+        }
+    }
+
+    public void pause() {
+        synchronized (lock) {
+            if (!released) track.pause();
+        }
+    }
+
+    public boolean isPlaying() {
+        return !released && track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+    }
+
+    public void setVolume(float gain) {
+        if (!released) track.setVolume(gain);
+    }
+
+    /** Audio actually rendered by the DSP so far. */
+    public long getPlayedUs() {
+        long frames = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        return frames * 1_000_000L / sampleRate;
+    }
+
+    /** Position within the file, for checkpoints and for carrying on after a tear-down. */
+    public long getPositionUs() {
+        long position = startUs + getPlayedUs();
+        return looping ? position % durationUs : Math.min(position, durationUs);
+    }
+
+    public void release() {
+        Thread running;
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            // Unblocks a write waiting for buffer space
+            track.pause();
+            track.flush();
+            running = feeder;
+        }
+        if (running == null) {
+            track.release();
+            extractor.release();
+            return;
+        }
+        running.interrupt();
+        try { running.join(500); } catch (InterruptedException e) {}
+        // A write still blocked returns once the track is gone; the feeder releases the extractor on its way out
+        track.release();
+    }
+
+    private void feedLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        try {
+            while (!released) {
+                sample.clear();
+                int offset = adtsRateIndex >= 0 ? ADTS_HEADER_BYTES : 0;
+                int size = extractor.readSampleData(sample, offset);
+                if (size < 0) {
+                    if (!looping) break;
+                    // Loops restart from the top; compressed data joins seamlessly on the DSP
+                    extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    continue;
+                }
+                if (offset > 0) putAdtsHeader(size + ADTS_HEADER_BYTES);
+                sample.position(0).limit(offset + size);
+                while (sample.hasRemaining() && !released) {
+                    // Blocks while the buffer is full, which is most of the time
+                    if (track.write(sample, sample.remaining(), AudioTrack.WRITE_BLOCKING) < 0) return;
+                }
+                if (released) return;
+                extractor.advance();
+            }
+            endStream();
+        } catch (RuntimeException e) {
+            if (!released) Log.w(TAG, "Feeder stopped", e);
+        } finally {
+            // Only the feeder reads the extractor once started, so it is released here
+            extractor.release();
+        }
+    }
+
+    /**
+     * Marks the last buffer written as the end of a non-looping file, so the DSP plays it out and
+     * reports onPresentationEnded. The track only accepts this while playing; a silence phase may
+     * have paused it.
+     */
+    private void endStream() {
+        while (true) {
+            synchronized (lock) {
+                if (released) return;
+                if (track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+                    track.setOffloadEndOfStream();
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(PLAY_POLL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void putAdtsHeader(int frameLength) {
+        // MPEG-4, no CRC, AAC LC (profile field = object type - 1)
+        sample.put(0, (byte) 0xFF);
+        sample.put(1, (byte) 0xF1);
+        sample.put(2, (byte) ((1 << 6) | (adtsRateIndex << 2) | (adtsChannels >> 2)));
+        sample.put(3, (byte) (((adtsChannels & 3) << 6) | (frameLength >> 11)));
+        sample.put(4, (byte) ((frameLength & 0x7FF) >> 3));
+        sample.put(5, (byte) (((frameLength & 7) << 5) | 0x1F));
+        sample.put(6, (byte) 0xFC);
+    }
+}
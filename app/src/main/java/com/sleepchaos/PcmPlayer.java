@@ -0,0 +1,139 @@
+package com.sleepchaos;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Plays a {@link PcmSource} through a streaming {@link AudioTrack} from a single render thread.
+ * The render buffer is allocated once; no decode or storage I/O happens on this path.
+ */
+public class PcmPlayer {
+
+    private static final String TAG = "PcmPlayer";
+    private static final int BLOCK_FRAMES = 2048;
+
+    private final PcmSource source;
+    private final AudioTrack track;
+    private final Object lock = new Object();
+    private Thread renderThread;
+    private Runnable onCompletion;
+    private long framesWritten; // Render thread only
+
+    private boolean playing = false;
+    private boolean released = false;
+
+    public PcmPlayer(PcmSource source) {
+        this.source = source;
+        int minBuffer = AudioTrack.getMinBufferSize(PcmSource.SAMPLE_RATE,
+                AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+        track = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setSampleRate(PcmSource.SAMPLE_RATE)
+                        .setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .build())
+                .setBufferSizeInBytes(Math.max(minBuffer, BLOCK_FRAMES * PcmSource.CHANNELS * 2 * 2))
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .build();
+    }
+
+    // Invoked on the render thread when a non-looping source runs out
+    public void setOnCompletionListener(Runnable onCompletion) {
+        this.onCompletion = onCompletion;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (released || playing) return;
+            playing = true;
+            track.play();
+            if (renderThread == null) {
+                renderThread = new Thread(this::renderLoop, "PcmPlayer");
+                renderThread.start();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public void pause() {
+        synchronized (lock) {
+            if (released || !playing) return;
+            playing = false;
+            track.pause();
+        }
+    }
+
+    public boolean isPlaying() {
+        synchronized (lock) {
+            return playing;
+        }
+    }
+
+    public void setVolume(float gain) {
+        synchronized (lock) {
+            if (!released) track.setVolume(gain);
+        }
+    }
+
+    public void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            playing = false;
+            // Unblocks a render thread parked in a full-buffer write
+            track.pause();
+            track.flush();
+            lock.notifyAll();
+        }
+        if (renderThread != null) {
+            renderThread.interrupt();
+            try { renderThread.join(500); } catch (InterruptedException e) {}
+        }
+        track.release();
+        source.release();
+    }
+
+    private void renderLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        short[] block = new short[BLOCK_FRAMES * PcmSource.CHANNELS];
+        while (true) {
+            synchronized (lock) {
+                while (!playing && !released) {
+                    try { lock.wait(); } catch (InterruptedException e) {}
+                }
+                if (released) return;
+            }
+            ChaosTrace.begin("PcmPlayer.read");
+            int frames;
+            try {
+                frames = source.read(block, 0, BLOCK_FRAMES);
+            } finally {
+                ChaosTrace.end();
+            }
+            if (frames < 0) {
+                pause();
+                Runnable listener = onCompletion;
+                if (listener != null) listener.run();
+                continue;
+            }
+            // Blocking write paces the loop to the hardware clock
+            int written = track.write(block, 0, frames * PcmSource.CHANNELS);
+            if (written < 0) {
+                Log.e(TAG, "AudioTrack write failed: " + written);
+                return;
+            }
+            framesWritten += written / PcmSource.CHANNELS;
+            if (ChaosTrace.isTracing()) {
+                // Frames queued ahead of the speaker; near zero means an underrun is close
+                ChaosTrace.counter("pcm.buffered", framesWritten - (track.getPlaybackHeadPosition() & 0xFFFFFFFFL));
+            }
+        }
+    }
+}
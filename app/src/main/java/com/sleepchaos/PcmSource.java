@@ -0,0 +1,19 @@
+package com.sleepchaos;
+
+/**
+ * Block-wise source of 16-bit interleaved stereo PCM at {@link #SAMPLE_RATE}.
+ * Implementations must not allocate inside {@link #read}; callers own the buffer.
+ */
+public interface PcmSource {
+
+    int SAMPLE_RATE = 44100;
+    int CHANNELS = 2;
+
+    /**
+     * Writes up to {@code frames} frames into {@code buffer} starting at sample index {@code offset}.
+     * Returns the number of frames written, or -1 once the source is exhausted.
+     */
+    int read(short[] buffer, int offset, int frames);
+
+    void release();
+}
@@ -0,0 +1,364 @@
+package com.sleepchaos;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Named playlists persisted under {@code files/playlists}. Each playlist file holds an offset table
+ * and a bitset of the selected entries, followed by the entries (selection flag + Uri), so single
+ * entries can be read by index without loading the whole list. All disk work runs on one background
+ * thread; callbacks land on the main thread.
+ */
+public class PlaylistStore {
+
+    private static final String TAG = "PlaylistStore";
+    private static final String DIR = "playlists";
+    private static final String INDEX_FILE = "index.bin";
+    private static final int INDEX_VERSION = 1;
+    private static final int PLAYLIST_MAGIC = 0x53435032; // "SCP2"
+    private static final int PLAYLIST_MAGIC_V1 = 0x53435031; // "SCP1": no selection bitset
+    static final int HEADER_SIZE = 8; // magic + count; offset table and selection bitset follow
+
+    public static class Entry {
+        public final Uri uri;
+        public final boolean selected;
+
+        public Entry(Uri uri, boolean selected) {
+            this.uri = uri;
+            this.selected = selected;
+        }
+    }
+
+    public static class Info {
+        public final long id;
+        public final String name;
+
+        Info(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private static PlaylistStore instance;
+
+    private final File dir;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this; index state is tiny and read from both threads
+    private final ArrayList<Info> playlists = new ArrayList<>();
+    private long activeId = -1;
+    private long nextId = 1;
+    private boolean indexLoaded = false;
+
+    // Latest unsaved contents per playlist; older queued saves become no-ops
+    private final Map<Long, List<Entry>> pendingSaves = new HashMap<>();
+
+    public static synchronized PlaylistStore getInstance(Context context) {
+        if (instance == null) instance = new PlaylistStore(context.getApplicationContext());
+        return instance;
+    }
+
+    private PlaylistStore(Context context) {
+        dir = new File(context.getFilesDir(), DIR);
+    }
+
+    /** Loads the active playlist (creating a default one on first run). */
+    public void loadActive(Callback<Loaded> callback) {
+        executor.execute(() -> {
+            Info info;
+            synchronized (this) {
+                ensureIndexLoaded();
+                info = findInfo(activeId);
+            }
+            Loaded loaded = new Loaded(info, readEntries(info.id));
+            mainHandler.post(() -> callback.onResult(loaded));
+        });
+    }
+
+    public static class Loaded {
+        public final Info info;
+        public final List<Entry> entries;
+
+        Loaded(Info info, List<Entry> entries) {
+            this.info = info;
+            this.entries = entries;
+        }
+    }
+
+    public void listPlaylists(Callback<List<Info>> callback) {
+        executor.execute(() -> {
+            List<Info> copy;
+            synchronized (this) {
+                ensureIndexLoaded();
+                copy = new ArrayList<>(playlists);
+            }
+            mainHandler.post(() -> callback.onResult(copy));
+        });
+    }
+
+    public void create(String name, Callback<Info> callback) {
+        executor.execute(() -> {
+            Info info;
+            synchronized (this) {
+                ensureIndexLoaded();
+                info = new Info(nextId++, name);
+                playlists.add(info);
+                activeId = info.id;
+                writeIndex();
+            }
+            writeEntries(info.id, new ArrayList<>());
+            mainHandler.post(() -> callback.onResult(info));
+        });
+    }
+
+    public void setActive(long id, Callback<Loaded> callback) {
+        executor.execute(() -> {
+            Info info;
+            synchronized (this) {
+                ensureIndexLoaded();
+                info = findInfo(id);
+                activeId = info.id;
+                writeIndex();
+            }
+            Loaded loaded = new Loaded(info, readEntries(info.id));
+            mainHandler.post(() -> callback.onResult(loaded));
+        });
+    }
+
+    /** Queues a write of the full playlist; bursts of edits collapse into one write. */
+    public void save(long id, List<Entry> entries) {
+        synchronized (pendingSaves) {
+            boolean queued = pendingSaves.containsKey(id);
+            pendingSaves.put(id, entries);
+            if (queued) return;
+        }
+        executor.execute(() -> {
+            List<Entry> latest;
+            synchronized (pendingSaves) {
+                latest = pendingSaves.remove(id);
+            }
+            if (latest != null) writeEntries(id, latest);
+        });
+    }
+
+    /** Runs {@code done} on the main thread once every save queued so far is on disk. */
+    public void flush(Runnable done) {
+        executor.execute(() -> mainHandler.post(done));
+    }
+
+    public File getPlaylistFile(long id) {
+        return new File(dir, id + ".pl");
+    }
+
+    /** Synchronous full read; call off the main thread. */
+    public List<Entry> readEntries(long id) {
+        ArrayList<Entry> entries = new ArrayList<>();
+        File file = getPlaylistFile(id);
+        if (!file.exists()) return entries;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int magic = in.readInt();
+            if (magic != PLAYLIST_MAGIC && magic != PLAYLIST_MAGIC_V1) return entries;
+            int count = in.readInt();
+            in.skipBytes(count * 4 + (magic == PLAYLIST_MAGIC ? bitsetBytes(count) : 0));
+            entries.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                boolean selected = in.readByte() != 0;
+                entries.add(new Entry(Uri.parse(in.readUTF()), selected));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read playlist " + id, e);
+        }
+        return entries;
+    }
+
+    private void writeEntries(long id, List<Entry> entries) {
+        if (!dir.exists()) dir.mkdirs();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(entries.size() * 64);
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        int[] offsets = new int[entries.size()];
+        byte[] selected = new byte[bitsetBytes(entries.size())];
+        int base = HEADER_SIZE + entries.size() * 4 + selected.length;
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                offsets[i] = base + bodyOut.size();
+                Entry e = entries.get(i);
+                if (e.selected) selected[i >> 3] |= 1 << (i & 7);
+                bodyOut.writeByte(e.selected ? 1 : 0);
+                bodyOut.writeUTF(e.uri.toString());
+            }
+        } catch (IOException e) {
+            return; // In-memory stream
+        }
+
+        File file = getPlaylistFile(id);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(PLAYLIST_MAGIC);
+            out.writeInt(entries.size());
+            for (int offset : offsets) out.writeInt(offset);
+            out.write(selected);
+            body.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write playlist " + id, e);
+            return;
+        }
+        if (!tmp.renameTo(file)) Log.w(TAG, "Could not replace playlist " + id);
+    }
+
+    private static int bitsetBytes(int count) {
+        return (count + 7) / 8;
+    }
+
+    private Info findInfo(long id) {
+        for (Info info : playlists) {
+            if (info.id == id) return info;
+        }
+        return playlists.get(0);
+    }
+
+    private void ensureIndexLoaded() {
+        if (indexLoaded) return;
+        indexLoaded = true;
+        File index = new File(dir, INDEX_FILE);
+        if (index.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+                if (in.readInt() == INDEX_VERSION) {
+                    activeId = in.readLong();
+                    nextId = in.readLong();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        playlists.add(new Info(in.readLong(), in.readUTF()));
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable playlist index", e);
+                playlists.clear();
+            }
+        }
+        if (playlists.isEmpty()) {
+            Info info = new Info(nextId++, "Default");
+            playlists.add(info);
+            activeId = info.id;
+            writeIndex();
+        }
+    }
+
+    private void writeIndex() {
+        if (!dir.exists()) dir.mkdirs();
+        File index = new File(dir, INDEX_FILE);
+        File tmp = new File(index.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(activeId);
+            out.writeLong(nextId);
+            out.writeInt(playlists.size());
+            for (Info info : playlists) {
+                out.writeLong(info.id);
+                out.writeUTF(info.name);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write playlist index", e);
+            return;
+        }
+        tmp.renameTo(index);
+    }
+
+    /**
+     * Random-access reader over a saved playlist. Opening it reads the header's selection bitset,
+     * an eighth of a byte per entry, so finding selected tracks never goes to disk again; entries
+     * themselves are read by index. An open reader keeps seeing the file it opened even if the
+     * playlist is rewritten meanwhile.
+     */
+    public static class Reader implements AutoCloseable {
+        private final RandomAccessFile raf;
+        private final int count;
+        private final BitSet selected;
+        private final int selectedCount;
+
+        public Reader(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            try {
+                int magic = raf.readInt();
+                if (magic != PLAYLIST_MAGIC && magic != PLAYLIST_MAGIC_V1) {
+                    throw new IOException("Not a playlist file: " + file);
+                }
+                count = raf.readInt();
+                if (magic == PLAYLIST_MAGIC) {
+                    byte[] bits = new byte[bitsetBytes(count)];
+                    raf.seek(HEADER_SIZE + count * 4L);
+                    raf.readFully(bits);
+                    selected = BitSet.valueOf(bits);
+                } else {
+                    // Written before the bitset; gather the flags once, until the next save rewrites it
+                    selected = new BitSet(count);
+                    for (int i = 0; i < count; i++) {
+                        raf.seek(HEADER_SIZE + i * 4L);
+                        raf.seek(raf.readInt());
+                        if (raf.readByte() != 0) selected.set(i);
+                    }
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            selectedCount = selected.cardinality();
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public int getSelectedCount() {
+            return selectedCount;
+        }
+
+        public synchronized Entry get(int index) throws IOException {
+            raf.seek(HEADER_SIZE + index * 4L);
+            raf.seek(raf.readInt());
+            boolean selected = raf.readByte() != 0;
+            return new Entry(Uri.parse(raf.readUTF()), selected);
+        }
+
+        public boolean isSelected(int index) {
+            return selected.get(index);
+        }
+
+        /** First selected index at or after {@code from}, wrapping around; -1 if none is selected. */
+        public int nextSelected(int from) {
+            if (count == 0) return -1;
+            int index = selected.nextSetBit(from % count);
+            return index >= 0 ? index : selected.nextSetBit(0);
+        }
+
+        @Override
+        public void close() {
+            try { raf.close(); } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.sleepchaos;
+
+import java.util.Random;
+
+/**
+ * SplitMix64-backed {@link Random} whose full state is a single long, so schedules can be
+ * checkpointed and restored exactly.
+ */
+public class SeededRandom extends Random {
+
+    private long state;
+
+    public SeededRandom(long seed) {
+        super(seed);
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+        state = seed;
+    }
+
+    public synchronized long getState() {
+        return state;
+    }
+
+    public synchronized void setState(long state) {
+        this.state = state;
+    }
+
+    @Override
+    protected synchronized int next(int bits) {
+        long z = (state += 0x9E3779B97F4A7C15L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (int) (z >>> (64 - bits));
+    }
+}
@@ -0,0 +1,213 @@
+package com.sleepchaos;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sync-sample timestamps of an audio track, roughly one per second, found by walking the
+ * container once without decoding. Seeking to one of these exact times with
+ * {@code SEEK_TO_PREVIOUS_SYNC} / {@code SEEK_CLOSEST_SYNC} lands on it directly, which is fast
+ * and precise even for VBR MP3 and ADTS AAC where time-based seeks only estimate.
+ */
+public class SeekIndex {
+
+    private static final String TAG = "SeekIndex";
+    private static final long INTERVAL_US = 1_000_000L;
+    // Random starts leave at least this much of the file to play
+    private static final long MIN_TAIL_US = 30_000_000L;
+    // Shorter files always start at 0
+    public static final long MIN_INDEXED_US = 2 * 60_000_000L;
+
+    private static final String DIR = "seek_index";
+    private static final int FILE_VERSION = 1;
+
+    private final long[] timesUs;
+    private final long durationUs;
+
+    SeekIndex(long[] timesUs, long durationUs) {
+        this.timesUs = timesUs;
+        this.durationUs = durationUs;
+    }
+
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    public int size() {
+        return timesUs.length;
+    }
+
+    /** A uniformly chosen index point that leaves at least {@link #MIN_TAIL_US} to play, or 0. */
+    public long pickStartUs(Random random) {
+        if (durationUs < MIN_INDEXED_US) return 0;
+        long limit = durationUs - MIN_TAIL_US;
+        int end = Arrays.binarySearch(timesUs, limit);
+        if (end < 0) end = -end - 1;
+        if (end <= 1) return 0;
+        return timesUs[random.nextInt(end)];
+    }
+
+    /** Walks every sample of the audio track once; call off the main thread. */
+    static SeekIndex build(Context context, Uri uri) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, uri, null);
+            int track = AudioExporter.selectAudioTrack(extractor);
+            if (track < 0) throw new IOException("No audio track found in file");
+            extractor.selectTrack(track);
+            MediaFormat format = extractor.getTrackFormat(track);
+
+            long[] times = new long[64];
+            int count = 0;
+            long next = 0;
+            long last = 0;
+            while (true) {
+                long t = extractor.getSampleTime();
+                if (t < 0) break;
+                last = t;
+                if (t >= next && (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    if (count == times.length) times = Arrays.copyOf(times, count * 2);
+                    times[count++] = t;
+                    next = t + INTERVAL_US;
+                }
+                if (!extractor.advance()) break;
+            }
+            long duration = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : last;
+            return new SeekIndex(Arrays.copyOf(times, count), duration);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    void write(File file, String key) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(key);
+            out.writeLong(durationUs);
+            out.writeInt(timesUs.length);
+            for (long t : timesUs) out.writeLong(t);
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Could not replace " + file);
+    }
+
+    static SeekIndex read(File file, String key) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION || !in.readUTF().equals(key)) {
+                throw new IOException("Stale seek index " + file);
+            }
+            long duration = in.readLong();
+            long[] times = new long[in.readInt()];
+            for (int i = 0; i < times.length; i++) times[i] = in.readLong();
+            return new SeekIndex(times, duration);
+        }
+    }
+
+    /**
+     * Process-wide index cache: memory first, then {@code cache/seek_index}, then a background
+     * build. {@link #peek} never blocks, so playback starts from 0 until an index is ready.
+     */
+    public static class Cache {
+        // In memory; evicted indexes load again from their files on the next peek
+        private static final int MAX_INDEXES = 64;
+
+        private static Cache instance;
+
+        private final Context appContext;
+        private final File dir;
+        // Least recently used first
+        private final Map<String, SeekIndex> indexes = new LinkedHashMap<String, SeekIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SeekIndex> eldest) {
+                return size() > MAX_INDEXES;
+            }
+        };
+        private final Set<String> pending = new HashSet<>();
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        public static synchronized Cache getInstance(Context context) {
+            if (instance == null) instance = new Cache(context.getApplicationContext());
+            return instance;
+        }
+
+        private Cache(Context context) {
+            appContext = context;
+            dir = new File(context.getCacheDir(), DIR);
+        }
+
+        /** Returns the index if it is in memory, otherwise queues a load or build and returns null. */
+        public SeekIndex peek(Uri uri) {
+            if (NoiseGenerator.isNoiseUri(uri)) return null;
+            String key = uri.toString();
+            synchronized (this) {
+                SeekIndex index = indexes.get(key);
+                if (index != null || !pending.add(key)) return index;
+            }
+            executor.execute(() -> load(uri));
+            return null;
+        }
+
+        /** Blocking variant for background callers such as the exporter. */
+        public SeekIndex get(Uri uri) {
+            if (NoiseGenerator.isNoiseUri(uri)) return null;
+            synchronized (this) {
+                SeekIndex index = indexes.get(uri.toString());
+                if (index != null) return index;
+            }
+            return load(uri);
+        }
+
+        private SeekIndex load(Uri uri) {
+            String key = uri.toString();
+            File file = new File(dir, Integer.toHexString(key.hashCode()) + "_" + key.length() + ".idx");
+            SeekIndex index = null;
+            if (file.exists()) {
+                try {
+                    index = read(file, key);
+                } catch (IOException e) {
+                    file.delete();
+                }
+            }
+            if (index == null) {
+                try {
+                    long start = System.nanoTime();
+                    index = build(appContext, uri);
+                    Log.i(TAG, "Indexed " + index.size() + " points in "
+                            + (System.nanoTime() - start) / 1_000_000 + " ms: " + uri);
+                    if (!dir.exists()) dir.mkdirs();
+                    index.write(file, key);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Could not index " + uri, e);
+                }
+            }
+            synchronized (this) {
+                // Failed sources stay pending so peek() does not rebuild them on every track start
+                if (index != null) {
+                    pending.remove(key);
+                    indexes.put(key, index);
+                }
+            }
+            return index;
+        }
+    }
+}
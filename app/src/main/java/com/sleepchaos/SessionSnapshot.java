@@ -0,0 +1,230 @@
+package com.sleepchaos;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary checkpoint of a running {@link ChaosService} session.
+ *
+ * The file starts with a fixed-size dynamic header (phase, timers, volume, RNG, track position)
+ * that is rewritten in place by {@link #saveDynamic}, followed by the static section (mode,
+ * parameters, playlist id) written once per session by {@link #save}. A checkpoint is therefore a
+ * single 64-byte positional write with no allocation. Tracks are referenced by their index in the
+ * {@link PlaylistStore} playlist, which is not copied.
+ *
+ * Layered sessions add a block after the static section with every layer's schedule
+ * ({@link MixEngine#saveLayers}), length-prefixed and with its own CRC; checkpoints rewrite it too.
+ */
+public class SessionSnapshot {
+
+    public static final String FILE_NAME = "session.snap";
+
+    private static final int MAGIC = 0x53435331; // "SCS1"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int CRC_OFFSET = 56;
+
+    private static final int FLAG_SILENCE = 1;
+    private static final int FLAG_MANUALLY_PAUSED = 2;
+    private static final int FLAG_EXTERNAL = 1;
+    private static final int FLAG_LAYERED = 2;
+    private static final int FLAG_DIRECT_TRANSPORT = 4;
+    private static final int FLAG_OFFLOAD = 8;
+
+    // Static section
+    public boolean externalMode;
+    public boolean layeredMode;
+    public boolean directTransport;
+    public boolean offload;
+    public ChaosParams params;
+    public int originalStreamVolume = -1;
+    public long playlistId = -1;
+
+    // Layer block, layered mode only; null when absent or failing its CRC
+    public byte[] layerState;
+
+    // Dynamic header
+    public long savedAtMillis;
+    public long rngState;
+    public boolean inSilence;
+    public boolean manuallyPaused;
+    public float currentVolume;
+    public long phaseRemainingMs;
+    public long sessionRemainingMs; // 0 = no sleep timer
+    public int trackIndex;
+    public int trackPositionMs;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long staticEnd; // Offset of the layer block
+
+    public SessionSnapshot(File file) {
+        this.file = file;
+    }
+
+    /** Writes the whole snapshot atomically and keeps the file open for in-place checkpoints. */
+    public void save() throws IOException {
+        close();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        encodeHeader();
+        out.write(header.array(), 0, HEADER_SIZE);
+        out.writeByte((externalMode ? FLAG_EXTERNAL : 0) | (layeredMode ? FLAG_LAYERED : 0)
+                | (directTransport ? FLAG_DIRECT_TRANSPORT : 0) | (offload ? FLAG_OFFLOAD : 0));
+        out.writeInt(params.minPlaySec);
+        out.writeInt(params.maxPlaySec);
+        out.writeInt(params.minPauseSec);
+        out.writeInt(params.maxPauseSec);
+        out.writeFloat(params.minVolume);
+        out.writeFloat(params.maxVolume);
+        out.writeInt(params.volumeFreq);
+        out.writeInt(originalStreamVolume);
+        out.writeLong(playlistId);
+        out.flush();
+        staticEnd = bytes.size();
+        if (layerState != null) out.write(encodeLayers());
+        out.flush();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Could not replace " + file);
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    /**
+     * Rewrites only the dynamic header. Not fsync'd: the page cache survives process death,
+     * which is the failure this protects against.
+     */
+    public void saveDynamic() throws IOException {
+        if (channel == null) {
+            save();
+            return;
+        }
+        encodeHeader();
+        channel.write(header, 0);
+        if (layerState != null) {
+            ByteBuffer layers = ByteBuffer.wrap(encodeLayers());
+            channel.write(layers, staticEnd);
+            // Fewer layers than last time
+            channel.truncate(staticEnd + layers.capacity());
+        }
+    }
+
+    private byte[] encodeLayers() {
+        crc.reset();
+        crc.update(layerState);
+        return ByteBuffer.allocate(8 + layerState.length)
+                .putInt(layerState.length)
+                .putInt((int) crc.getValue())
+                .put(layerState)
+                .array();
+    }
+
+    private void encodeHeader() {
+        savedAtMillis = System.currentTimeMillis();
+        header.clear();
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(savedAtMillis);
+        header.putLong(rngState);
+        header.put((byte) ((inSilence ? FLAG_SILENCE : 0) | (manuallyPaused ? FLAG_MANUALLY_PAUSED : 0)));
+        header.put((byte) 0).put((byte) 0).put((byte) 0);
+        header.putFloat(currentVolume);
+        header.putLong(phaseRemainingMs);
+        header.putLong(sessionRemainingMs);
+        header.putInt(trackIndex);
+        header.putInt(trackPositionMs);
+        crc.reset();
+        crc.update(header.array(), 0, CRC_OFFSET);
+        header.putInt((int) crc.getValue());
+        header.putInt(0);
+        header.flip();
+    }
+
+    /** Returns the stored snapshot, or null if there is none or it fails validation. */
+    public static SessionSnapshot load(File file) {
+        if (!file.exists()) return null;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            if (data.length < HEADER_SIZE) return null;
+
+            ByteBuffer h = ByteBuffer.wrap(data, 0, HEADER_SIZE);
+            if (h.getInt() != MAGIC || h.getInt() != VERSION) return null;
+            CRC32 check = new CRC32();
+            check.update(data, 0, CRC_OFFSET);
+            if (ByteBuffer.wrap(data, CRC_OFFSET, 4).getInt() != (int) check.getValue()) return null;
+
+            SessionSnapshot s = new SessionSnapshot(file);
+            s.savedAtMillis = h.getLong();
+            s.rngState = h.getLong();
+            int flags = h.get();
+            h.get(); h.get(); h.get();
+            s.inSilence = (flags & FLAG_SILENCE) != 0;
+            s.manuallyPaused = (flags & FLAG_MANUALLY_PAUSED) != 0;
+            s.currentVolume = h.getFloat();
+            s.phaseRemainingMs = h.getLong();
+            s.sessionRemainingMs = h.getLong();
+            s.trackIndex = h.getInt();
+            s.trackPositionMs = h.getInt();
+
+            DataInputStream body = new DataInputStream(
+                    new ByteArrayInputStream(data, HEADER_SIZE, data.length - HEADER_SIZE));
+            int modes = body.readByte();
+            s.externalMode = (modes & FLAG_EXTERNAL) != 0;
+            s.layeredMode = (modes & FLAG_LAYERED) != 0;
+            s.directTransport = (modes & FLAG_DIRECT_TRANSPORT) != 0;
+            s.offload = (modes & FLAG_OFFLOAD) != 0;
+            s.params = new ChaosParams(body.readInt(), body.readInt(), body.readInt(), body.readInt(),
+                    body.readFloat(), body.readFloat(), body.readInt());
+            s.originalStreamVolume = body.readInt();
+            s.playlistId = body.readLong();
+            s.staticEnd = data.length - body.available();
+            if (body.available() >= 8) {
+                // A torn length is checked before it sizes anything
+                int length = body.readInt();
+                if (length >= 0 && length <= body.available() - 4) {
+                    int expected = body.readInt();
+                    byte[] layers = new byte[length];
+                    body.readFully(layers);
+                    check.reset();
+                    check.update(layers);
+                    // A torn layer write costs the layers their place, not the session
+                    if ((int) check.getValue() == expected) s.layerState = layers;
+                }
+            }
+            return s;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void close() {
+        if (raf != null) {
+            try { raf.close(); } catch (IOException e) {}
+            raf = null;
+            channel = null;
+        }
+    }
+
+    public void delete() {
+        close();
+        file.delete();
+    }
+}
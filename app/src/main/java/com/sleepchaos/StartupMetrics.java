@@ -0,0 +1,93 @@
+package com.sleepchaos;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Cold-start timings, logged under the "Startup" tag: process start to the first frame and to
+ * fully drawn (the stored playlist shown, also reported through {@link Activity#reportFullyDrawn}),
+ * and a start request to the first audible playback.
+ *
+ * The measured scenario launches cold and starts the stored playlist as soon as it is shown, so
+ * time to audio also counts from process start. Debug builds only honour the extra:
+ * {@code adb shell am start -S -W -n com.sleepchaos/.MainActivity --ez com.sleepchaos.extra.MEASURE_STARTUP true}
+ */
+public final class StartupMetrics {
+
+    private static final String TAG = "Startup";
+    public static final String EXTRA_MEASURE = "com.sleepchaos.extra.MEASURE_STARTUP";
+
+    // Only the first activity of a process is a cold start
+    private static boolean launchTracked;
+    private static long firstFrameMs = -1;
+    private static long fullyDrawnMs = -1;
+    // Uptime of the pending start request, or -1
+    private static long startRequestedAt = -1;
+
+    private StartupMetrics() {}
+
+    private static long sinceProcessStart() {
+        return SystemClock.uptimeMillis() - Process.getStartUptimeMillis();
+    }
+
+    /** Call from the launch activity's onCreate; records when its first frame is drawn. */
+    public static void trackFirstFrame(Activity activity) {
+        synchronized (StartupMetrics.class) {
+            if (launchTracked) return;
+            launchTracked = true;
+        }
+        View decor = activity.getWindow().getDecorView();
+        Handler main = new Handler(Looper.getMainLooper());
+        decor.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            private boolean drawn;
+
+            @Override
+            public void onDraw() {
+                if (drawn) return;
+                drawn = true;
+                // The frame is handed to the system once this traversal returns
+                main.postAtFrontOfQueue(() -> {
+                    synchronized (StartupMetrics.class) {
+                        firstFrameMs = sinceProcessStart();
+                    }
+                    Log.i(TAG, "First frame " + firstFrameMs + " ms");
+                });
+                // Listeners cannot be removed from inside onDraw
+                main.post(() -> decor.getViewTreeObserver().removeOnDrawListener(this));
+            }
+        });
+    }
+
+    /** The launch screen shows real content; reported once per process. */
+    public static void onFullyDrawn(Activity activity) {
+        synchronized (StartupMetrics.class) {
+            if (fullyDrawnMs >= 0 || !launchTracked) return;
+            fullyDrawnMs = sinceProcessStart();
+        }
+        activity.reportFullyDrawn();
+        Log.i(TAG, "Fully drawn " + fullyDrawnMs + " ms");
+    }
+
+    /** A session start was asked for; {@code fromLaunch} counts from process start instead of now. */
+    public static synchronized void onStartRequested(boolean fromLaunch) {
+        startRequestedAt = fromLaunch ? Process.getStartUptimeMillis() : SystemClock.uptimeMillis();
+    }
+
+    /** Playback became audible; closes a pending start request. Any thread. */
+    public static void onAudioStarted() {
+        String report;
+        synchronized (StartupMetrics.class) {
+            if (startRequestedAt < 0) return;
+            long ms = SystemClock.uptimeMillis() - startRequestedAt;
+            startRequestedAt = -1;
+            report = "Time to audio " + ms + " ms (first frame " + firstFrameMs + " ms, fully drawn " + fullyDrawnMs + " ms)";
+        }
+        Log.i(TAG, report);
+    }
+}
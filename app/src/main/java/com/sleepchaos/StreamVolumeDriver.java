@@ -0,0 +1,157 @@
+package com.sleepchaos;
+
+import android.media.AudioManager;
+import android.media.session.MediaController;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Drives {@code STREAM_MUSIC} for external mode. The stream only has a handful of discrete
+ * indices, so a ramp is turned into the index transitions it actually crosses, each posted for
+ * the moment the linear ramp passes the rounding boundary. Requests for the index already set
+ * never reach {@link AudioManager}, or the controlled session when one is set as the target.
+ */
+public class StreamVolumeDriver {
+
+    // The fixed-step fade this replaces sent one call per step
+    private static final int LEGACY_FADE_STEPS = 20;
+
+    private final AudioManager audioManager;
+    private final Handler handler;
+    private final int streamMaxIndex;
+    private int maxIndex;
+    private MediaController target;
+    private final Object token = new Object();
+    private int lastIndex = -1;
+
+    // Active ramp, for getLevel()
+    private float rampFrom;
+    private float rampTo;
+    private long rampStart;
+    private long rampDuration;
+    private float level;
+
+    private long issued;
+    private long suppressed; // setIndex() calls that did not go out
+    private long legacyEstimate; // What the fixed-step fade would have sent, for comparison
+
+    public StreamVolumeDriver(AudioManager audioManager, Handler handler) {
+        this.audioManager = audioManager;
+        this.handler = handler;
+        this.streamMaxIndex = Math.max(1, audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC));
+        this.maxIndex = streamMaxIndex;
+    }
+
+    /** Sends volume to {@code controller} via setVolumeTo, in its own steps; null means STREAM_MUSIC. */
+    public void setTarget(MediaController controller) {
+        if (controller == target) return;
+        cancel();
+        target = controller;
+        int max = controller != null ? controller.getPlaybackInfo().getMaxVolume() : streamMaxIndex;
+        maxIndex = Math.max(1, max);
+        lastIndex = -1;
+    }
+
+    /**
+     * Ramps linearly from {@code from} to {@code to} (0..1) over {@code durationMs}, replacing any
+     * ramp in progress. {@code onComplete} runs on the handler when the ramp ends.
+     */
+    public void rampTo(float from, float to, long durationMs, Runnable onComplete) {
+        cancel();
+        from = clamp(from);
+        to = clamp(to);
+        rampFrom = from;
+        rampTo = to;
+        rampStart = SystemClock.uptimeMillis();
+        rampDuration = Math.max(1, durationMs);
+
+        int startIndex = toIndex(from);
+        int endIndex = toIndex(to);
+        setIndex(startIndex);
+        int dir = Integer.signum(endIndex - startIndex);
+        for (int k = startIndex + dir; dir != 0 && k != endIndex + dir; k += dir) {
+            // round() moves to index k where the ramp crosses the midpoint between k - dir and k
+            float boundary = (k - dir * 0.5f) / maxIndex;
+            long at = (long) (rampDuration * (boundary - from) / (to - from));
+            int index = k;
+            handler.postAtTime(() -> setIndex(index), token, rampStart + Math.max(0, Math.min(at, rampDuration)));
+        }
+        legacyEstimate += LEGACY_FADE_STEPS;
+
+        float end = to;
+        handler.postAtTime(() -> {
+            rampDuration = 0;
+            level = end;
+            if (onComplete != null) onComplete.run();
+        }, token, rampStart + rampDuration);
+    }
+
+    /** Immediate change to a 0..1 level; stops any ramp. */
+    public void set(float percent) {
+        cancel();
+        level = clamp(percent);
+        setIndex(toIndex(level));
+    }
+
+    public void setIndex(int index) {
+        if (index == lastIndex) {
+            suppressed++;
+            return;
+        }
+        try {
+            if (target != null) target.setVolumeTo(index, 0);
+            else audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, index, 0); // 0 = no UI flags
+            lastIndex = index;
+            issued++;
+        } catch (SecurityException e) {
+            // Might happen in DND mode
+        }
+    }
+
+    public void cancel() {
+        if (rampDuration > 0) level = getLevel();
+        rampDuration = 0;
+        handler.removeCallbacksAndMessages(token);
+    }
+
+    /** Current logical level, interpolated while a ramp runs. */
+    public float getLevel() {
+        if (rampDuration <= 0) return level;
+        float t = Math.min(1f, (SystemClock.uptimeMillis() - rampStart) / (float) rampDuration);
+        return rampFrom + (rampTo - rampFrom) * t;
+    }
+
+    /** Someone else may have moved the stream; the next request is always sent. */
+    public void invalidate() {
+        lastIndex = -1;
+    }
+
+    public void resetStats() {
+        issued = 0;
+        suppressed = 0;
+        legacyEstimate = 0;
+    }
+
+    public long getCallsIssued() {
+        return issued;
+    }
+
+    public long getCallsSuppressed() {
+        return suppressed;
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "volume calls issued=%d suppressed=%d, estimated legacy calls for the same ramps=%d (max index %d)",
+                issued, suppressed, legacyEstimate, maxIndex);
+    }
+
+    private int toIndex(float percent) {
+        return Math.round(percent * maxIndex);
+    }
+
+    private static float clamp(float v) {
+        return v < 0f ? 0f : (v > 1f ? 1f : v);
+    }
+}
@@ -0,0 +1,300 @@
+package com.sleepchaos;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads display name, duration, size and MIME type for playlist rows off the UI thread.
+ * Requests are batched (one projected query per MediaStore collection), results land in a bounded
+ * LRU that is persisted to the cache dir, and {@link #peek} never touches storage.
+ */
+public class TrackMetadataLoader {
+
+    private static final String TAG = "TrackMetadataLoader";
+    private static final String CACHE_FILE = "track_metadata.bin";
+    private static final int CACHE_VERSION = 1;
+    private static final int MAX_ENTRIES = 1000;
+    private static final int BATCH_SIZE = 32;
+
+    public static class Metadata {
+        public final String displayName;
+        public final long durationMs; // -1 if unknown
+        public final long sizeBytes;  // -1 if unknown
+        public final String mimeType;
+
+        Metadata(String displayName, long durationMs, long sizeBytes, String mimeType) {
+            this.displayName = displayName;
+            this.durationMs = durationMs;
+            this.sizeBytes = sizeBytes;
+            this.mimeType = mimeType;
+        }
+
+        public String describe() {
+            List<String> parts = new ArrayList<>();
+            if (durationMs >= 0) {
+                long sec = durationMs / 1000;
+                parts.add(String.format(Locale.US, "%d:%02d", sec / 60, sec % 60));
+            }
+            if (sizeBytes >= 0) parts.add(String.format(Locale.US, "%.1f MB", sizeBytes / (1024f * 1024f)));
+            if (!TextUtils.isEmpty(mimeType)) parts.add(mimeType);
+            return TextUtils.join(" · ", parts);
+        }
+    }
+
+    public interface Listener {
+        // Main thread; one call per finished batch
+        void onMetadataLoaded(List<Uri> uris);
+    }
+
+    private final ContentResolver resolver;
+    private final Context appContext;
+    private final File cacheFile;
+    private final LruCache<String, Metadata> cache = new LruCache<>(MAX_ENTRIES);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashSet<Uri> pending = new LinkedHashSet<>();
+    private boolean drainScheduled = false;
+    private boolean shutDown = false;
+    private Listener listener;
+
+    public TrackMetadataLoader(Context context) {
+        appContext = context.getApplicationContext();
+        resolver = appContext.getContentResolver();
+        cacheFile = new File(appContext.getCacheDir(), CACHE_FILE);
+        // Runs before any request on the same single thread
+        executor.execute(this::loadPersisted);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Memory-only lookup for bind time; generated sources resolve without I/O. */
+    public Metadata peek(Uri uri) {
+        if (NoiseGenerator.isNoiseUri(uri)) {
+            return new Metadata(NoiseGenerator.describe(uri), -1, -1, "generated");
+        }
+        return cache.get(uri.toString());
+    }
+
+    /** Queues a background load; ignored after {@link #shutdown}, e.g. from a late bind. */
+    public void request(Uri uri) {
+        synchronized (pending) {
+            if (shutDown || !pending.add(uri) || drainScheduled) return;
+            drainScheduled = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    public void shutdown() {
+        listener = null;
+        synchronized (pending) {
+            shutDown = true;
+            pending.clear();
+            executor.shutdown();
+        }
+    }
+
+    private void drain() {
+        boolean dirty = false;
+        while (true) {
+            List<Uri> batch = new ArrayList<>(BATCH_SIZE);
+            synchronized (pending) {
+                Iterator<Uri> it = pending.iterator();
+                while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                    batch.add(it.next());
+                    it.remove();
+                }
+                if (batch.isEmpty()) {
+                    drainScheduled = false;
+                    break;
+                }
+            }
+            List<Uri> loaded = loadBatch(batch);
+            if (!loaded.isEmpty()) {
+                dirty = true;
+                mainHandler.post(() -> {
+                    Listener l = listener;
+                    if (l != null) l.onMetadataLoaded(loaded);
+                });
+            }
+        }
+        // One rewrite per burst of requests rather than per batch
+        if (dirty) persist();
+    }
+
+    private List<Uri> loadBatch(List<Uri> batch) {
+        List<Uri> loaded = new ArrayList<>();
+        Map<Uri, List<Uri>> mediaStoreGroups = new HashMap<>();
+        for (Uri uri : batch) {
+            if (cache.get(uri.toString()) != null) {
+                loaded.add(uri);
+            } else if (MediaStore.AUTHORITY.equals(uri.getAuthority()) && isNumeric(uri.getLastPathSegment())) {
+                Uri collection = uri.buildUpon().path(uri.getPath().substring(0, uri.getPath().lastIndexOf('/'))).build();
+                List<Uri> group = mediaStoreGroups.get(collection);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    mediaStoreGroups.put(collection, group);
+                }
+                group.add(uri);
+            } else {
+                cache.put(uri.toString(), loadSingle(uri));
+                loaded.add(uri);
+            }
+        }
+        for (Map.Entry<Uri, List<Uri>> group : mediaStoreGroups.entrySet()) {
+            loadMediaStoreGroup(group.getKey(), group.getValue());
+            loaded.addAll(group.getValue());
+        }
+        return loaded;
+    }
+
+    // One IN (...) query covers every row of the batch in the same collection
+    private void loadMediaStoreGroup(Uri collection, List<Uri> uris) {
+        String[] projection = {
+                MediaStore.MediaColumns._ID,
+                MediaStore.MediaColumns.DISPLAY_NAME,
+                MediaStore.MediaColumns.SIZE,
+                MediaStore.MediaColumns.MIME_TYPE,
+                MediaStore.Audio.AudioColumns.DURATION
+        };
+        StringBuilder selection = new StringBuilder(MediaStore.MediaColumns._ID + " IN (");
+        String[] args = new String[uris.size()];
+        for (int i = 0; i < uris.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            args[i] = uris.get(i).getLastPathSegment();
+        }
+        selection.append(')');
+
+        HashMap<String, Uri> byId = new HashMap<>();
+        for (Uri uri : uris) byId.put(uri.getLastPathSegment(), uri);
+        try (Cursor c = resolver.query(collection, projection, selection.toString(), args, null)) {
+            while (c != null && c.moveToNext()) {
+                Uri uri = byId.remove(c.getString(0));
+                if (uri == null) continue;
+                cache.put(uri.toString(), new Metadata(
+                        c.isNull(1) ? uri.getLastPathSegment() : c.getString(1),
+                        c.isNull(4) ? -1 : c.getLong(4),
+                        c.isNull(2) ? -1 : c.getLong(2),
+                        c.getString(3)));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Batch query failed for " + collection, e);
+        }
+        // Rows the collection did not return (deleted, no permission) still get a placeholder entry
+        for (Uri uri : byId.values()) {
+            cache.put(uri.toString(), loadSingle(uri));
+        }
+    }
+
+    private Metadata loadSingle(Uri uri) {
+        String name = null;
+        long size = -1;
+        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            String[] projection = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+            try (Cursor c = resolver.query(uri, projection, null, null, null)) {
+                if (c != null && c.moveToFirst()) {
+                    if (!c.isNull(0)) name = c.getString(0);
+                    if (!c.isNull(1)) size = c.getLong(1);
+                }
+            } catch (RuntimeException e) {
+                // Revoked grant or provider gone; fall back to the path
+            }
+        }
+        if (name == null) name = uri.getLastPathSegment();
+
+        String mime = null;
+        try {
+            mime = resolver.getType(uri);
+        } catch (RuntimeException e) {}
+
+        long duration = -1;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(appContext, uri);
+            String d = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            if (d != null) duration = Long.parseLong(d);
+        } catch (RuntimeException e) {
+            // Unreadable or not a media file
+        } finally {
+            try { retriever.release(); } catch (Exception e) {}
+        }
+        return new Metadata(name, duration, size, mime);
+    }
+
+    private static boolean isNumeric(String s) {
+        if (TextUtils.isEmpty(s)) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private void loadPersisted() {
+        if (!cacheFile.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != CACHE_VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                String name = in.readUTF();
+                long duration = in.readLong();
+                long size = in.readLong();
+                String mime = in.readUTF();
+                cache.put(key, new Metadata(name, duration, size, mime.isEmpty() ? null : mime));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable metadata cache", e);
+            cacheFile.delete();
+        }
+    }
+
+    private void persist() {
+        Map<String, Metadata> entries = cache.snapshot();
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(CACHE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Metadata> e : entries.entrySet()) {
+                Metadata m = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeUTF(m.displayName != null ? m.displayName : "");
+                out.writeLong(m.durationMs);
+                out.writeLong(m.sizeBytes);
+                out.writeUTF(m.mimeType != null ? m.mimeType : "");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not persist metadata cache", e);
+            return;
+        }
+        tmp.renameTo(cacheFile);
+    }
+}
@@ -0,0 +1,131 @@
+package com.sleepchaos;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 16-bit stereo PCM WAV file written in place. {@link #checkpoint} makes everything written so
+ * far durable and leaves a header that already describes it, so a file cut off at any later
+ * point still plays up to its last checkpoint and can be reopened with {@link #openForAppend}.
+ *
+ * Blocks are gathered into chunks of {@link WriteScheduler#CHUNK_BYTES} and reach storage through
+ * the shared {@link WriteScheduler}, in turn with every other export writing at the same time.
+ */
+public class WavWriter {
+
+    static final int HEADER_BYTES = 44;
+    private static final int BYTES_PER_FRAME = PcmSource.CHANNELS * 2;
+    // RIFF sizes are 32-bit; longer files keep playing in most players with the size saturated
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final WriteScheduler scheduler = WriteScheduler.shared();
+    // Audio not handed to the scheduler yet; always holds at least one whole block
+    private final ByteBuffer pending;
+    private long dataBytes;
+
+    private WavWriter(RandomAccessFile file, long dataBytes, int blockFrames) {
+        this.file = file;
+        this.channel = file.getChannel();
+        int capacity = Math.max(blockFrames * BYTES_PER_FRAME, WriteScheduler.CHUNK_BYTES);
+        this.pending = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        this.dataBytes = dataBytes;
+    }
+
+    public static WavWriter create(File out, int blockFrames) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+        raf.setLength(0);
+        WavWriter writer = new WavWriter(raf, 0, blockFrames);
+        writer.writeHeader();
+        writer.channel.position(HEADER_BYTES);
+        return writer;
+    }
+
+    /** Drops anything past {@code dataBytes} of audio, e.g. written after the last checkpoint. */
+    public static WavWriter openForAppend(File out, long dataBytes, int blockFrames) throws IOException {
+        if (out.length() < HEADER_BYTES + dataBytes) {
+            throw new IOException("Export file is shorter than its journal: " + out);
+        }
+        RandomAccessFile raf = new RandomAccessFile(out, "rw");
+        raf.setLength(HEADER_BYTES + dataBytes);
+        WavWriter writer = new WavWriter(raf, dataBytes, blockFrames);
+        writer.writeHeader();
+        writer.channel.position(HEADER_BYTES + dataBytes);
+        return writer;
+    }
+
+    /** {@code frames} must not exceed the block size given on creation. */
+    public void write(short[] samples, int frames) throws IOException {
+        int size = frames * BYTES_PER_FRAME;
+        if (pending.remaining() < size) drain();
+        pending.asShortBuffer().put(samples, 0, frames * PcmSource.CHANNELS);
+        pending.position(pending.position() + size);
+        dataBytes += size;
+    }
+
+    /** Audio written so far, including any still gathered in memory. */
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    /** Flushes the audio, then a header covering it. Returns the data length now on disk. */
+    public long checkpoint() throws IOException {
+        drain();
+        scheduler.force(channel);
+        writeHeader();
+        scheduler.force(channel);
+        return dataBytes;
+    }
+
+    private void drain() throws IOException {
+        pending.flip();
+        try {
+            scheduler.write(channel, pending);
+        } finally {
+            pending.clear();
+        }
+    }
+
+    public void finish() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Abandons the file; audio since the last checkpoint may be lost. */
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Nothing left to flush
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        long position = channel.position();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        int byteRate = PcmSource.SAMPLE_RATE * BYTES_PER_FRAME;
+        header.put(new byte[] {'R', 'I', 'F', 'F'});
+        header.putInt((int) Math.min(dataBytes + 36, MAX_RIFF_SIZE));
+        header.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+        header.putInt(16);
+        header.putShort((short) 1); // PCM
+        header.putShort((short) PcmSource.CHANNELS);
+        header.putInt(PcmSource.SAMPLE_RATE);
+        header.putInt(byteRate);
+        header.putShort((short) BYTES_PER_FRAME);
+        header.putShort((short) 16);
+        header.put(new byte[] {'d', 'a', 't', 'a'});
+        header.putInt((int) Math.min(dataBytes, MAX_RIFF_SIZE));
+        header.flip();
+        channel.write(header, 0);
+        channel.position(position);
+    }
+}
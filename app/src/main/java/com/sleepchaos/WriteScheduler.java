@@ -0,0 +1,82 @@
+package com.sleepchaos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Takes turns at storage for every {@link WavWriter} in the process. Writers hand over large
+ * coalesced chunks and flushes, and only one runs at a time, in arrival order, so concurrent
+ * exports write long sequential runs one after another instead of interleaving small writes
+ * and fsyncs across files.
+ */
+public final class WriteScheduler {
+
+    /** Writes larger than this are split, so one writer never holds the others up for long. */
+    public static final int CHUNK_BYTES = 256 * 1024;
+
+    private static final WriteScheduler SHARED = new WriteScheduler();
+
+    // Fair: a writer that just finished a chunk queues behind the ones already waiting
+    private final ReentrantLock turn = new ReentrantLock(true);
+
+    private long bytes;
+    private long writes;
+    private long forces;
+    private long contended;
+    private long waitNanos;
+
+    public static WriteScheduler shared() {
+        return SHARED;
+    }
+
+    /** Writes all of {@code buffer} at the channel's position. */
+    public void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int end = buffer.limit();
+        while (buffer.position() < end) {
+            buffer.limit(Math.min(end, buffer.position() + CHUNK_BYTES));
+            acquire();
+            try {
+                writes++;
+                while (buffer.hasRemaining()) bytes += channel.write(buffer);
+            } finally {
+                turn.unlock();
+            }
+            buffer.limit(end);
+        }
+    }
+
+    /** Runs {@code channel.force(false)} in turn with the writes. */
+    public void force(FileChannel channel) throws IOException {
+        acquire();
+        try {
+            forces++;
+            channel.force(false);
+        } finally {
+            turn.unlock();
+        }
+    }
+
+    // Not tryLock(): that barges past waiting writers even on a fair lock
+    private void acquire() {
+        boolean busy = turn.isLocked();
+        long start = System.nanoTime();
+        turn.lock();
+        if (busy) {
+            contended++;
+            waitNanos += System.nanoTime() - start;
+        }
+    }
+
+    public String getStats() {
+        turn.lock();
+        try {
+            return String.format(Locale.US, "%d MB in %d writes, %d flushes, %d waits totalling %d ms",
+                    bytes >> 20, writes, forces, contended, waitNanos / 1_000_000);
+        } finally {
+            turn.unlock();
+        }
+    }
+}
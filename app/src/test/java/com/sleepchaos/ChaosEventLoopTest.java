@@ -0,0 +1,174 @@
+package com.sleepchaos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Records a {@link ChaosSession} run on a thread-less {@link ChaosEventLoop} and replays its
+ * trace into a fresh session, the way a trace written by the service is meant to be replayed.
+ */
+public class ChaosEventLoopTest {
+
+    private static final int EV_START = 1; // arg: seed
+    private static final int EV_PAUSE = 2;
+    private static final int EV_RESUME = 3;
+    private static final long RUN_MS = 10 * 60_000L;
+    // Any warm-up replays; this one gives a 1.5 s pre-roll lead
+    private static final long WARM_UP_MS = 750;
+
+    /** A session on its own loop, started by an event as in the service; logs everything it does. */
+    private static class Rig implements ChaosEventLoop.Machine {
+        final ChaosEventLoop loop = ChaosEventLoop.forReplay();
+        final List<String> log = new ArrayList<>();
+        private final ChaosParams params;
+        private ChaosSession session;
+        private float volume = 0.5f;
+
+        Rig(ChaosParams params) {
+            this.params = params;
+        }
+
+        private final ChaosSession.Scheduler scheduler = new ChaosSession.Scheduler() {
+            @Override
+            public long now() {
+                return loop.now();
+            }
+
+            @Override
+            public void postDelayed(Runnable r, long delayMs) {
+                log.add(loop.now() + " post " + delayMs);
+                loop.postDelayed(r, delayMs);
+            }
+
+            @Override
+            public void cancelAll() {
+                log.add(loop.now() + " cancel");
+                loop.cancelTimers();
+            }
+        };
+
+        private final ChaosSession.Backend backend = new ChaosSession.Backend() {
+            @Override
+            public void onPlayPhase() {
+                log.add(loop.now() + " play");
+            }
+
+            @Override
+            public void onSilence() {
+                log.add(loop.now() + " silence");
+            }
+
+            @Override
+            public void fadeVolume(float from, float to, int durationMs, Runnable onComplete) {
+                log.add(loop.now() + " fade " + from + " " + to + " " + durationMs);
+                volume = to;
+                // Completion as a timer, so it is traced like every other callback
+                if (onComplete != null) loop.postDelayed(onComplete, durationMs);
+            }
+
+            @Override
+            public float getVolume() {
+                return volume;
+            }
+
+            @Override
+            public void onPhaseTick(boolean playing, long durationMs, long remainingMs) {
+                log.add(loop.now() + " tick " + playing + " " + durationMs + " " + remainingMs);
+            }
+
+            @Override
+            public long getPreRollLeadMs(long remainingMs) {
+                return ChaosSession.preRollLeadMs(remainingMs, WARM_UP_MS);
+            }
+
+            @Override
+            public void onPreRoll() {
+                log.add(loop.now() + " preroll");
+            }
+        };
+
+        @Override
+        public void onEvent(ChaosEventLoop.Event e) {
+            switch (e.what) {
+                case EV_START:
+                    session = new ChaosSession(scheduler, backend, new SeededRandom(e.arg), params);
+                    session.start();
+                    break;
+                case EV_PAUSE:
+                    session.pause();
+                    break;
+                case EV_RESUME:
+                    session.resume();
+                    break;
+            }
+        }
+
+        // Posts are ignored by a replay loop, so inputs are dispatched directly at the given time
+        void input(int what, long arg, long at) {
+            ChaosEventLoop.Event e = new ChaosEventLoop.Event(what, arg, null);
+            e.at = at;
+            loop.replay(Collections.singletonList(e), this);
+        }
+
+        void runUntil(long untilMs) {
+            while (loop.runNextTimer(this, untilMs)) {
+                // Each call runs one due timer
+            }
+        }
+    }
+
+    private static Rig record(ChaosParams params, long seed) {
+        Rig rig = new Rig(params);
+        rig.input(EV_START, seed, 0);
+        rig.runUntil(RUN_MS / 2);
+        rig.input(EV_PAUSE, 0, RUN_MS / 2);
+        rig.input(EV_RESUME, 0, RUN_MS / 2 + 45_000);
+        rig.runUntil(RUN_MS);
+        return rig;
+    }
+
+    private static void assertReplays(Rig recorded, ChaosParams params) {
+        assertTrue(recorded.loop.isTraceComplete());
+        List<ChaosEventLoop.Event> trace = recorded.loop.getTrace();
+
+        Rig replayed = new Rig(params);
+        replayed.loop.replay(trace, replayed);
+
+        assertEquals(recorded.log.size(), replayed.log.size());
+        for (int i = 0; i < recorded.log.size(); i++) {
+            assertEquals("step " + i, recorded.log.get(i), replayed.log.get(i));
+        }
+    }
+
+    @Test
+    public void replayReproducesSession() {
+        ChaosParams params = new ChaosParams(10, 60, 5, 20, 0.2f, 0.8f, 5);
+        Rig recorded = record(params, 42);
+        assertTrue("events " + recorded.loop.getTrace().size(), recorded.loop.getTrace().size() > 100);
+        assertReplays(recorded, params);
+    }
+
+    @Test
+    public void replayReproducesShortPhasesAndPreRolls() {
+        ChaosParams shortPhases = new ChaosParams(1, 3, 1, 2, 0.2f, 0.8f, 10);
+        assertReplays(record(shortPhases, 7), shortPhases);
+
+        ChaosParams longSilences = new ChaosParams(20, 40, 30, 60, 0.2f, 0.8f, 3);
+        Rig recorded = record(longSilences, 7);
+        assertTrue(recorded.log.stream().anyMatch(l -> l.endsWith(" preroll")));
+        assertReplays(recorded, longSilences);
+    }
+
+    @Test
+    public void differentSeedDiverges() {
+        ChaosParams params = new ChaosParams(10, 60, 5, 20, 0.2f, 0.8f, 5);
+        assertFalse(record(params, 1).log.equals(record(params, 2).log));
+    }
+}
@@ -0,0 +1,298 @@
+package com.sleepchaos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Runs {@link ChaosSession} for whole simulated nights on a virtual clock, with fake audio and
+ * notification backends, and sweeps the parameters that decide how much work a session does.
+ *
+ * The session, its phases, drift and callbacks are the real code. Fades are not: FakeBackend
+ * models them the way the service does in local mode (20 volume steps, each posted by the one
+ * before, a new fade replacing the one in progress), so fade and volume-set counts hold for that
+ * model only. Jittered runs delay every callback by up to {@link #JITTER_MS}, like a busy main
+ * looper.
+ */
+public class SessionSoakTest {
+
+    private static final long HOURS = 12;
+    private static final int JITTER_MS = 50;
+    private static final long SEED = 42;
+    private static final int FADE_STEPS = 20;
+    // Slowest modelled player restart; gives the service's lead for it
+    private static final long WARM_UP_MS = 750;
+    // Tick, drift or pre-roll, the next step of the current fade and a stale step of the one it replaced
+    private static final int MAX_PENDING = 4;
+    // About 80 bytes per callback today: the lambda and queue entry; catches garbage creeping in
+    private static final long MAX_BYTES_PER_CALLBACK = 256;
+
+    private static final int[][] SHORT_PHASES = {{1, 1, 1, 1}, {1, 3, 1, 2}, {2, 5, 1, 3}, {5, 10, 2, 5},
+            {60, 300, 30, 120}};
+
+    /** Priority-queue clock: callbacks run in time order, time jumps straight to the next one. */
+    static class VirtualScheduler implements ChaosSession.Scheduler {
+        private static class Task implements Comparable<Task> {
+            final long at;
+            final long seq;
+            final Runnable r;
+
+            Task(long at, long seq, Runnable r) {
+                this.at = at;
+                this.seq = seq;
+                this.r = r;
+            }
+
+            @Override
+            public int compareTo(Task o) {
+                return at != o.at ? Long.compare(at, o.at) : Long.compare(seq, o.seq);
+            }
+        }
+
+        private final PriorityQueue<Task> queue = new PriorityQueue<>();
+        private final Random jitter;
+        private final int jitterMs;
+        private long now;
+        private long seq;
+
+        long posted;
+        long run;
+        long cancelled;
+        int peakPending;
+
+        VirtualScheduler(int jitterMs, long seed) {
+            this.jitterMs = jitterMs;
+            this.jitter = new Random(seed);
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMs) {
+            long late = jitterMs > 0 ? jitter.nextInt(jitterMs + 1) : 0;
+            queue.add(new Task(now + Math.max(0, delayMs) + late, seq++, r));
+            posted++;
+            peakPending = Math.max(peakPending, queue.size());
+        }
+
+        @Override
+        public void cancelAll() {
+            cancelled += queue.size();
+            queue.clear();
+        }
+
+        int pending() {
+            return queue.size();
+        }
+
+        void runUntil(long endMs) {
+            while (!queue.isEmpty() && queue.peek().at <= endMs) {
+                Task t = queue.poll();
+                now = t.at;
+                run++;
+                t.r.run();
+            }
+            now = endMs;
+        }
+    }
+
+    /** Stands in for players, fades and the notification; counts what the service would do. */
+    static class FakeBackend implements ChaosSession.Backend {
+        private final VirtualScheduler scheduler;
+        private float volume = 0.5f;
+        private boolean playing;
+        private int fadeGeneration;
+        private long fadeEndsAt;
+
+        long fades;
+        long fadeOuts;
+        long superseded;
+        long volumeSets;
+        long notifications;
+        long playStarts;
+        long silences;
+        long preRolls;
+
+        FakeBackend(VirtualScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onPlayPhase() {
+            if (!playing) {
+                playing = true;
+                playStarts++;
+                fadeVolume(0, volume, 1000, null);
+            }
+        }
+
+        @Override
+        public void onSilence() {
+            playing = false;
+            silences++;
+        }
+
+        @Override
+        public void fadeVolume(float from, float to, int durationMs, Runnable onComplete) {
+            long now = scheduler.now();
+            if (fadeEndsAt > now) superseded++;
+            long stepDelay = Math.max(20, durationMs / FADE_STEPS);
+            fadeEndsAt = now + stepDelay * FADE_STEPS;
+            fades++;
+            if (onComplete != null) fadeOuts++;
+            int generation = ++fadeGeneration;
+            scheduler.postDelayed(() -> fadeStep(generation, 1, from, to, stepDelay, onComplete), 0);
+        }
+
+        private void fadeStep(int generation, int step, float from, float to, long stepDelay, Runnable onComplete) {
+            if (generation != fadeGeneration) return;
+            volume = from + (to - from) * step / FADE_STEPS;
+            volumeSets++;
+            if (step < FADE_STEPS) {
+                scheduler.postDelayed(() -> fadeStep(generation, step + 1, from, to, stepDelay, onComplete), stepDelay);
+            } else if (onComplete != null) {
+                scheduler.postDelayed(() -> {
+                    if (generation == fadeGeneration) onComplete.run();
+                }, stepDelay);
+            }
+        }
+
+        @Override
+        public float getVolume() {
+            return volume;
+        }
+
+        @Override
+        public void onPhaseTick(boolean playing, long durationMs, long remainingMs) {
+            notifications++;
+        }
+
+        @Override
+        public long getPreRollLeadMs(long remainingMs) {
+            return ChaosSession.preRollLeadMs(remainingMs, WARM_UP_MS);
+        }
+
+        @Override
+        public void onPreRoll() {
+            preRolls++;
+        }
+    }
+
+    /** One simulated night and what it cost. */
+    static class Soak {
+        final ChaosParams params;
+        final int jitterMs;
+        final VirtualScheduler scheduler;
+        final FakeBackend backend;
+        final ChaosSession session;
+        long pendingAtEnd;
+        long allocatedBytes;
+
+        Soak(ChaosParams params, int jitterMs) {
+            this.params = params;
+            this.jitterMs = jitterMs;
+            scheduler = new VirtualScheduler(jitterMs, SEED);
+            backend = new FakeBackend(scheduler);
+            session = new ChaosSession(scheduler, backend, new SeededRandom(SEED), params);
+        }
+
+        Soak run(long hours) {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long thread = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(thread);
+            session.start();
+            scheduler.runUntil(hours * 3_600_000L);
+            pendingAtEnd = scheduler.pending();
+            session.stop();
+            allocatedBytes = threads.getThreadAllocatedBytes(thread) - before;
+            return this;
+        }
+
+        String describe() {
+            return "play " + params.minPlaySec + "-" + params.maxPlaySec + " pause " + params.minPauseSec + "-"
+                    + params.maxPauseSec + " freq " + params.volumeFreq + " jitter " + jitterMs + " ms";
+        }
+    }
+
+    @Test
+    public void volumeFrequencySweep() {
+        for (int freq = 1; freq <= 10; freq++) {
+            for (int jitter : new int[] {0, JITTER_MS}) {
+                checkNight(new Soak(new ChaosParams(10, 60, 5, 20, 0.2f, 0.8f, freq), jitter).run(HOURS));
+            }
+        }
+    }
+
+    @Test
+    public void shortPhaseSweep() {
+        for (int[] r : SHORT_PHASES) {
+            for (int jitter : new int[] {0, JITTER_MS}) {
+                checkNight(new Soak(new ChaosParams(r[0], r[1], r[2], r[3], 0.2f, 0.8f, 10), jitter).run(HOURS));
+            }
+        }
+    }
+
+    @Test
+    public void callbackQueueDoesNotGrowWithNightLength() {
+        ChaosParams params = new ChaosParams(1, 3, 1, 2, 0.2f, 0.8f, 10);
+        Soak hour = new Soak(params, JITTER_MS).run(1);
+        Soak night = new Soak(params, JITTER_MS).run(HOURS);
+        assertEquals("peak pending callbacks", hour.scheduler.peakPending, night.scheduler.peakPending);
+    }
+
+    @Test
+    public void preRollsOnlyForLongSilences() {
+        Soak shortSilences = new Soak(new ChaosParams(10, 60, 5, 20, 0.2f, 0.8f, 5), 0).run(HOURS);
+        assertEquals(0, shortSilences.backend.preRolls);
+
+        Soak longSilences = new Soak(new ChaosParams(60, 300, 30, 120, 0.2f, 0.8f, 5), 0).run(HOURS);
+        long silencePhases = longSilences.backend.fadeOuts;
+        assertTrue("pre-rolls " + longSilences.backend.preRolls,
+                longSilences.backend.preRolls > 0 && longSilences.backend.preRolls <= silencePhases);
+    }
+
+    private static void checkNight(Soak soak) {
+        String what = soak.describe();
+        ChaosParams p = soak.params;
+        VirtualScheduler scheduler = soak.scheduler;
+        FakeBackend backend = soak.backend;
+        ChaosSession session = soak.session;
+        long nightMs = HOURS * 3_600_000L;
+
+        // Phases: a phase lasts its drawn length plus at most one late callback
+        long longestPair = (p.maxPlaySec + p.maxPauseSec) * 1000L + 2L * soak.jitterMs;
+        long shortestPair = (p.minPlaySec + p.minPauseSec) * 1000L;
+        long phases = session.getPhases();
+        assertTrue(what + ": phases " + phases, phases >= 2 * (nightMs / longestPair) - 2);
+        assertTrue(what + ": phases " + phases, phases <= 2 * (nightMs / shortestPair) + 2);
+        assertTrue(what + ": max lateness " + session.getMaxLatenessMs(),
+                session.getMaxLatenessMs() <= soak.jitterMs);
+        assertTrue(what + ": total lateness", session.getTotalLatenessMs() <= phases * soak.jitterMs);
+
+        // Modelled fades: one per drift, one fade-out per silence, one fade-in per restart
+        assertEquals(what + ": modelled fades", session.getDrifts() + backend.fadeOuts + backend.playStarts,
+                backend.fades);
+        assertTrue(what + ": fade-outs " + backend.fadeOuts, Math.abs(backend.fadeOuts - phases / 2) <= 1);
+        assertTrue(what + ": modelled volume sets", backend.volumeSets <= backend.fades * FADE_STEPS);
+        assertTrue(what + ": modelled superseded fades", backend.superseded <= backend.fades);
+
+        // Callbacks: each one runs or is dropped by a phase change, pause or stop; the queue stays flat
+        assertEquals(what + ": callbacks run or dropped", scheduler.posted, scheduler.run + scheduler.cancelled);
+        assertTrue(what + ": dropped " + scheduler.cancelled,
+                scheduler.cancelled - soak.pendingAtEnd <= (phases + 1) * MAX_PENDING);
+        assertTrue(what + ": peak pending " + scheduler.peakPending, scheduler.peakPending <= MAX_PENDING);
+
+        assertTrue(what + ": progress ticks", backend.notifications >= nightMs / 1000 - phases);
+        assertTrue(what + ": allocated " + soak.allocatedBytes + " bytes for " + scheduler.run + " callbacks",
+                soak.allocatedBytes <= Math.max(1, scheduler.run) * MAX_BYTES_PER_CALLBACK);
+    }
+}